@@ -102,6 +102,13 @@ def create_steps(step):
 		conn = itemgetter('db')(kargs)
 
 		with conn.cursor() as cur:
+			cur.execute("SELECT EXISTS(SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass('pixels'));")
+			if cur.fetchone()[0]:
+				# pixels is partitioned by canvas code, the server detaches the previous canvas' partition
+				# on its next startup with the new canvas code. Nothing has to be deleted here.
+				print('pixels is partitioned, the previous canvas will be detached on the next startup.')
+				print('Run `pixels archive <canvas code>` in the server console afterwards to archive and drop it.')
+				return
 			cur.execute("DROP TABLE IF EXISTS pixels;")
 			print('Database ouput:', cur.statusmessage)
 
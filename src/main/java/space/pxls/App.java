@@ -11,10 +11,17 @@ import space.pxls.data.DBChatMessage;
 import space.pxls.data.DBPixelPlacementFull;
 import space.pxls.data.DBRollbackPixel;
 import space.pxls.data.Database;
+import space.pxls.data.JdbiDatabase;
+import space.pxls.data.MemoryDatabase;
+import space.pxls.metrics.Metrics;
+import space.pxls.metrics.RuntimeMetrics;
+import space.pxls.server.InboundFrameLimiter;
+import space.pxls.server.ProfileCache;
 import space.pxls.server.UndertowServer;
 import space.pxls.server.packets.chat.Badge;
 import space.pxls.server.packets.chat.ClientChatMessage;
 import space.pxls.server.packets.socket.*;
+import space.pxls.tasks.JobScheduler;
 import space.pxls.user.*;
 import space.pxls.util.*;
 import space.pxls.palette.*;
@@ -27,6 +34,7 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class App {
@@ -50,14 +58,13 @@ public class App {
     private static boolean havePlacemap;
     private static Palette palette;
 
-    private static PxlsTimer mapSaveTimer;
-    private static PxlsTimer mapBackupTimer;
+    private static JobScheduler jobScheduler;
+    private static final AtomicBoolean mapChanged = new AtomicBoolean(false);
+    private static final AtomicBoolean mapChangedSinceBackup = new AtomicBoolean(false);
     private static UndertowServer server;
 
     private static String cachedWhoamiOrigin = null;
-    private static int stackMultiplier;
-    private static int stackMaxStacked;
-    private static long userIdleTimeout;
+    private static volatile ConfigSnapshot configSnapshot;
 
     public static void main(String[] args) {
         gson = new Gson();
@@ -90,7 +97,8 @@ public class App {
         havePlacemap = loadPlacemap();
         loadVirginmap();
 
-        database = new Database();
+        jobScheduler = new JobScheduler(config.getDouble("jobs.jitter"));
+        database = createDatabase();
         userManager = new UserManager();
 
         loadRoles();
@@ -107,33 +115,21 @@ public class App {
             }
         }).start();
 
-        new Timer().schedule(new SessionTimer(), 0, 1000 * 3600); // execute once every hour
-
-        int heatmap_timer_cd = (int) App.getConfig().getDuration("board.heatmapCooldown", TimeUnit.SECONDS);
-        new Timer().schedule(new HeatmapTimer(), 0, heatmap_timer_cd * 1000 / 256);
-
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (jobScheduler != null) jobScheduler.shutdown();
+            if (server != null) server.stop();
             System.out.println("Saving map before shutdown...");
             saveMapBackup();
             saveMapForce();
+            System.out.println("Closing database...");
+            database.close();
         }));
 
         server = new UndertowServer(config.getInt("server.port"));
+        Metrics.getInstance().register(new RuntimeMetrics());
         server.start();
 
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                tickStackedPixels();
-                checkUserTimeout();
-            }
-        }, 0, 5000);
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                getServer().getPacketHandler().updateUserData();
-            }
-        }, 0, 600000); //10 minutes
+        scheduleJobs();
 
         try {
             Path backupsDir = getStorageDir().resolve("backups/");
@@ -150,6 +146,28 @@ public class App {
         saveMap();
     }
 
+    private static Database createDatabase() {
+        String backend = config.getString("database.backend").toLowerCase().trim();
+        switch (backend) {
+            case "postgres":
+                return new JdbiDatabase();
+            case "memory":
+                getLogger().warn("Using the in-memory database backend, nothing will be persisted across restarts");
+                return new MemoryDatabase();
+            default:
+                throw new IllegalArgumentException("Unknown database backend: " + backend);
+        }
+    }
+
+    /**
+     * @return The database as a {@link JdbiDatabase}, or null (after telling the console) if another backend is in use.
+     */
+    private static JdbiDatabase requireJdbiDatabase() {
+        if (database instanceof JdbiDatabase) return (JdbiDatabase) database;
+        System.out.println("This command is only available with the postgres database backend");
+        return null;
+    }
+
     private static void handleCommand(String line) {
         try {
             String[] token = line.split(" ");
@@ -160,12 +178,17 @@ public class App {
                     System.out.println("Reloaded configuration");
                     loadPalette();
                     System.out.println("Reloaded palette configuration");
+                    server.getWebHandler().reloadCachedResponses();
                     loadRoles();
                     System.out.println("Reloaded roles configuration");
                     FactionManager.getInstance().invalidateAll();
                     System.out.println("Invalidated all factions");
                     userManager.reload();
                     System.out.println("Reloaded user manager");
+                    server.getWebHandler().getProfileCache().clear();
+                    System.out.println("Cleared profile cache");
+                    server.getPacketHandler().getChatHistory().reload();
+                    System.out.println("Reloaded chat history");
                     System.out.println("Success!");
                 } catch (Exception x) {
                     x.printStackTrace();
@@ -613,6 +636,87 @@ public class App {
                 }
             } else if (token[0].equalsIgnoreCase("sendUserData")) {
                 App.getServer().getPacketHandler().updateUserData();
+            } else if (token[0].equalsIgnoreCase("audit")) {
+                JdbiDatabase jdbiDatabase = requireJdbiDatabase();
+                if (jdbiDatabase == null) return;
+                System.out.println(jdbiDatabase.getAuditLogWriter());
+            } else if (token[0].equalsIgnoreCase("pixels")) {
+                // pixels list|archive $CANVASCODE
+                JdbiDatabase jdbiDatabase = requireJdbiDatabase();
+                if (jdbiDatabase == null) return;
+                String subcommand = token.length > 1 ? token[1].toLowerCase().trim() : "help";
+                switch (subcommand) {
+                    case "list": {
+                        jdbiDatabase.getPixelPartitions().list().forEach((table, attached) ->
+                            System.out.printf("%s%s%n", table, attached ? " (attached)" : ""));
+                        return;
+                    }
+                    case "archive": {
+                        if (token.length < 3) {
+                            System.out.println("pixels archive $CANVASCODE");
+                            return;
+                        }
+                        try {
+                            System.out.printf("Archived to %s%n", jdbiDatabase.getPixelPartitions().archive(token[2]));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        return;
+                    }
+                    default: {
+                        System.out.println("pixels list|archive $CANVASCODE");
+                        return;
+                    }
+                }
+            } else if (token[0].equalsIgnoreCase("dbpools")) {
+                JdbiDatabase jdbiDatabase = requireJdbiDatabase();
+                if (jdbiDatabase == null) return;
+                System.out.println(jdbiDatabase.getReplicaRouter());
+            } else if (token[0].equalsIgnoreCase("jobs")) {
+                // jobs [run NAME]
+                if (token.length > 2 && token[1].equalsIgnoreCase("run")) {
+                    if (jobScheduler.runNow(token[2])) {
+                        System.out.println("Started job " + token[2]);
+                    } else {
+                        System.out.println("No such job, or it is already running: " + token[2]);
+                    }
+                    return;
+                }
+                System.out.println(jobScheduler);
+            } else if (token[0].equalsIgnoreCase("threads")) {
+                System.out.println(server.getThreadStats());
+            } else if (token[0].equalsIgnoreCase("ratelimits")) {
+                System.out.println(RateLimitFactory.getInstance());
+                if (server != null) System.out.println(server.getFrameLimiter());
+            } else if (token[0].equalsIgnoreCase("metrics")) {
+                System.out.print(Metrics.getInstance().scrape());
+            } else if (token[0].equalsIgnoreCase("usercache")) {
+                System.out.println(userManager.getUserCache());
+            } else if (token[0].equalsIgnoreCase("profilecache")) {
+                // profilecache [clear]
+                ProfileCache profileCache = server.getWebHandler().getProfileCache();
+                System.out.println(profileCache);
+                if (token.length > 1 && token[1].equalsIgnoreCase("clear")) {
+                    profileCache.clear();
+                    System.out.println("Profile cache cleared");
+                }
+            } else if (token[0].equalsIgnoreCase("dbstats")) {
+                // dbstats [reset]
+                JdbiDatabase jdbiDatabase = requireJdbiDatabase();
+                if (jdbiDatabase == null) return;
+                System.out.println(jdbiDatabase.getQueryStats());
+                if (token.length > 1 && token[1].equalsIgnoreCase("reset")) {
+                    jdbiDatabase.getQueryStats().reset();
+                    System.out.println("Query statistics reset");
+                }
+            } else if (token[0].equalsIgnoreCase("explain")) {
+                JdbiDatabase jdbiDatabase = requireJdbiDatabase();
+                if (jdbiDatabase == null) return;
+                jdbiDatabase.explainHotQueries().forEach((name, plan) -> {
+                    boolean seqScan = plan.stream().anyMatch(row -> row.contains("Seq Scan"));
+                    System.out.printf("%s%s%n", name, seqScan ? " (WARNING: sequential scan, index not used)" : "");
+                    plan.forEach(row -> System.out.printf("    %s%n", row));
+                });
             } else if (token[0].equalsIgnoreCase("addnotification")) {
                 if (token.length < 4) {
                     System.out.printf("%s TITLE EXPIRY BODY%n", token[0]);
@@ -743,27 +847,20 @@ public class App {
     private static void loadConfig() {
         config = ConfigFactory.parseFile(new File("pxls.conf")).withFallback(ConfigFactory.load());
         config.checkValid(ConfigFactory.load());
+        configSnapshot = new ConfigSnapshot(config);
 
         RateLimitFactory.registerBucketHolder(ClientUndo.class, new RateLimitFactory.BucketConfig(((int) App.getConfig().getDuration("server.limits.undo.time", TimeUnit.SECONDS)), App.getConfig().getInt("server.limits.undo.count")));
         RateLimitFactory.registerBucketHolder(DBChatMessage.class, new RateLimitFactory.BucketConfig(((int) App.getConfig().getDuration("server.limits.chat.time", TimeUnit.SECONDS)), App.getConfig().getInt("server.limits.chat.count")));
         RateLimitFactory.registerBucketHolder("http:discordName", new RateLimitFactory.BucketConfig((int) App.getConfig().getDuration("server.limits.discordNameChange.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.discordNameChange.count")));
-
-        mapSaveTimer = new PxlsTimer(config.getDuration("board.saveInterval", TimeUnit.SECONDS));
-        mapBackupTimer = new PxlsTimer(config.getDuration("board.backupInterval", TimeUnit.SECONDS));
-        stackMultiplier = App.getConfig().getInt("stacking.cooldownMultiplier");
-        stackMaxStacked = App.getConfig().getInt("stacking.maxStacked");
-        userIdleTimeout = App.getConfig().getDuration("userIdleTimeout", TimeUnit.MILLISECONDS);
+        RateLimitFactory.registerBucketHolder(InboundFrameLimiter.CONNECTION_BUCKET, new RateLimitFactory.BucketConfig((int) App.getConfig().getDuration("server.websocket.connection.time", TimeUnit.SECONDS), App.getConfig().getInt("server.websocket.connection.count")));
+        RateLimitFactory.registerBucketHolder(InboundFrameLimiter.USER_BUCKET, new RateLimitFactory.BucketConfig((int) App.getConfig().getDuration("server.websocket.user.time", TimeUnit.SECONDS), App.getConfig().getInt("server.websocket.user.count")));
 
         TextFilter.getInstance().reload();
 
         if (server != null) {
             server.getWebHandler().reloadServicesEnabledState();
-        }
-
-        try {
-            Files.deleteIfExists(getStorageDir().resolve("index_cache.html"));
-        } catch (IOException e) {
-            // do nothing
+            server.getStaticAssets().reload();
+            scheduleJobs();
         }
     }
     private static void loadRoles() {
@@ -807,6 +904,7 @@ public class App {
             List<Role> inherits = Role.fromIDs(inheritStrings);
             role.setInherits(inherits);
         });
+        Role.compilePermissions();
     }
     public static void loadPalette() {
         // NOTE: This differs from the way pxls.conf is handled, as we don't merge the palette-reference.conf
@@ -853,13 +951,24 @@ public class App {
     }
 
     public static int getStackMultiplier() {
-        return stackMultiplier;
+        return configSnapshot.stackMultiplier;
     }
 
     public static int getStackMaxStacked() {
-        return stackMaxStacked;
+        return configSnapshot.stackMaxStacked;
+    }
+
+
+    public static JobScheduler getJobScheduler() {
+        return jobScheduler;
     }
 
+    /**
+     * @return The typed config values used on hot paths. Don't hold on to it, it is replaced on reload.
+     */
+    public static ConfigSnapshot getConfigSnapshot() {
+        return configSnapshot;
+    }
 
     public static Gson getGson() {
         return gson;
@@ -910,15 +1019,15 @@ public class App {
     }
 
     public static boolean isCaptchaEnabled() {
-        return config.getBoolean("captcha.enabled");
+        return configSnapshot.captchaEnabled;
     }
 
     public static boolean isCaptchaConfigured() {
-        return !config.getString("captcha.key").isEmpty() && !config.getString("captcha.secret").isEmpty();
+        return configSnapshot.captchaConfigured;
     }
 
-    public static List<String> getWhoamiAllowedOrigins() {
-        return config.getStringList("whoamiAllowedOrigins");
+    public static Set<String> getWhoamiAllowedOrigins() {
+        return configSnapshot.whoamiAllowedOrigins;
     }
 
     public static int getPixel(int x, int y) {
@@ -934,7 +1043,7 @@ public class App {
     }
 
     public static boolean getSnipMode() {
-        return getConfig().getBoolean("oauth.snipMode");
+        return configSnapshot.snipMode;
     }
 
     public static boolean getRegistrationEnabled() {
@@ -942,7 +1051,7 @@ public class App {
     }
 
     public static boolean isChatEnabled() {
-        return getConfig().getBoolean("chat.enabled");
+        return configSnapshot.chatEnabled;
     }
 
     public static void putPixel(int x, int y, int color, User user, boolean mod_action, String ip, boolean updateDatabase, String action) {
@@ -991,7 +1100,7 @@ public class App {
                 forBroadcast.add(new ServerPlace.Pixel(rbPixel.toPixel.x, rbPixel.toPixel.y, rbPixel.toPixel.color));
                 database.putRollbackPixel(who, rbPixel.fromId, rbPixel.toPixel.id);
             } else { //else rollback to blank canvas
-                DBPixelPlacementFull fromPixel = database.getPixelByID(null, rbPixel.fromId);
+                DBPixelPlacementFull fromPixel = database.getPixelByID(rbPixel.fromId);
                 byte rollbackDefault = getDefaultColor(fromPixel.x, fromPixel.y);
                 putPixel(fromPixel.x, fromPixel.y, rollbackDefault, who, false, "", false, "rollback");
                 forBroadcast.add(new ServerPlace.Pixel(fromPixel.x, fromPixel.y, (int) rollbackDefault));
@@ -1176,34 +1285,41 @@ public class App {
     }
 
     public static void tickStackedPixels() {
-        for (User user : server.getAuthedUsers().values()) {
-            user.tickStack();
-        }
+        server.getStackScheduler().tick();
     }
 
     public static void checkUserTimeout() {
-        Long loopStart = System.currentTimeMillis();
-        boolean anyIdled = false;
-        for (User user : server.getAuthedUsers().values()) {
-            if (user.isIdled()) continue;
-
-            Long toUse = user.getLastPixelTime() == 0L ? user.getInitialAuthTime() : user.getLastPixelTime();
-            Long delta = loopStart - toUse;
-            boolean isIdled = userIdleTimeout - delta <= 0;
-
-            if (isIdled) {
-                anyIdled = true;
-                user.setIdled(true);
-            }
-        }
-        if (anyIdled) {
+        if (server.getIdleTracker().tick()) {
             App.getServer().getPacketHandler().updateUserData();
         }
     }
 
+    /**
+     * (Re)schedules the periodic jobs with the intervals from the current config.
+     */
+    private static void scheduleJobs() {
+        long saveInterval = config.getDuration("board.saveInterval", TimeUnit.MILLISECONDS);
+        long backupInterval = config.getDuration("board.backupInterval", TimeUnit.MILLISECONDS);
+        jobScheduler.schedule("sessions", TimeUnit.HOURS.toMillis(1), 0, new SessionTimer());
+        jobScheduler.schedule("heatmap", config.getDuration("board.heatmapCooldown", TimeUnit.MILLISECONDS) / 256, 0, new HeatmapTimer());
+        jobScheduler.schedule("mapSave", saveInterval, saveInterval, () -> {
+            if (mapChanged.getAndSet(false)) saveMapForce();
+        });
+        jobScheduler.schedule("mapBackup", backupInterval, backupInterval, () -> {
+            if (mapChangedSinceBackup.getAndSet(false)) saveMapBackup();
+        });
+        jobScheduler.schedule("stacks", 1000, 0, App::tickStackedPixels);
+        jobScheduler.schedule("idle", 5000, 0, App::checkUserTimeout);
+        jobScheduler.schedule("userData", TimeUnit.MINUTES.toMillis(10), 0, () -> getServer().getPacketHandler().updateUserData());
+        jobScheduler.schedule("rateLimits", TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1), RateLimitFactory::evictIdle);
+    }
+
+    /**
+     * Marks the map as changed, so the <pre>mapSave</pre> and <pre>mapBackup</pre> jobs write it out on their next run.
+     */
     public static void saveMap() {
-        mapSaveTimer.run(App::saveMapForce);
-        mapBackupTimer.run(App::saveMapBackup);
+        mapChanged.set(true);
+        mapChangedSinceBackup.set(true);
     }
 
     private static void saveMapForce() {
@@ -1241,7 +1357,7 @@ public class App {
     }
 
     public static boolean shouldIncreaseSomePixelCount() {
-        return App.getConfig().getBoolean("pixelCounts.countTowardsAlltime") || App.getConfig().getBoolean("pixelCounts.countTowardsCurrent");
+        return configSnapshot.pixelCountsTowardsAlltime || configSnapshot.pixelCountsTowardsCurrent;
     }
 
     public static Logger getLogger() {
@@ -1271,6 +1387,6 @@ public class App {
     }
 
     public static long getUserIdleTimeout() {
-        return userIdleTimeout;
+        return configSnapshot.userIdleTimeoutMillis;
     }
 }
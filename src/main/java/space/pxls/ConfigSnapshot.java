@@ -0,0 +1,91 @@
+package space.pxls;
+
+import com.typesafe.config.Config;
+import space.pxls.util.TrustedProxies;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable, typed copy of the config values read on hot paths (placing, chatting, every request).<br>
+ * Built by {@link App#loadConfig()} and swapped as a whole on reload, so a reader sees either the old or the
+ *  new values, never a mix, and pays a field read instead of a config path lookup.
+ */
+public final class ConfigSnapshot {
+    public final boolean activityCooldown;
+    public final double activityCooldownSteepness;
+    public final double activityCooldownUserOffset;
+    public final double activityCooldownGlobalOffset;
+    public final double activityCooldownMultiplier;
+    public final int staticCooldownSeconds;
+
+    public final boolean captchaEnabled;
+    public final boolean captchaConfigured;
+    public final int captchaMaxPixels;
+    public final boolean captchaAllTime;
+    public final int captchaThreshold;
+
+    public final boolean backgroundPixelEnabled;
+    public final double backgroundPixelMultiplier;
+    public final long undoWindowMillis;
+    public final int stackMultiplier;
+    public final int stackMaxStacked;
+    public final long userIdleTimeoutMillis;
+    public final boolean pixelCountsTowardsCurrent;
+    public final boolean pixelCountsTowardsAlltime;
+
+    public final boolean chatEnabled;
+    public final int chatCharacterLimit;
+    public final boolean chatTrimInput;
+    public final boolean chatCanvasBanRespected;
+    public final boolean chatShowShadowBannedMessagesToStaff;
+    public final boolean textFilterEnabled;
+
+    public final boolean snipMode;
+    public final boolean useIp;
+    public final TrustedProxies trustedProxies;
+    public final List<String> proxyHeaders;
+    public final long websocketMaxFrameSize;
+    public final int websocketCloseAfterDropped;
+    public final Set<String> whoamiAllowedOrigins;
+
+    public ConfigSnapshot(Config config) {
+        activityCooldown = config.getString("cooldownType").equalsIgnoreCase("activity");
+        activityCooldownSteepness = config.getDouble("activityCooldown.steepness");
+        activityCooldownUserOffset = config.getDouble("activityCooldown.userOffset");
+        activityCooldownGlobalOffset = config.getDouble("activityCooldown.globalOffset");
+        activityCooldownMultiplier = config.getDouble("activityCooldown.multiplier");
+        staticCooldownSeconds = (int) config.getDuration("staticCooldown.time", TimeUnit.SECONDS);
+
+        captchaEnabled = config.getBoolean("captcha.enabled");
+        captchaConfigured = !config.getString("captcha.key").isEmpty() && !config.getString("captcha.secret").isEmpty();
+        captchaMaxPixels = config.getInt("captcha.maxPixels");
+        captchaAllTime = config.getBoolean("captcha.allTime");
+        captchaThreshold = config.getInt("captcha.threshold");
+
+        backgroundPixelEnabled = config.getBoolean("backgroundPixel.enabled");
+        backgroundPixelMultiplier = config.getDouble("backgroundPixel.multiplier");
+        undoWindowMillis = config.getDuration("undo.window", TimeUnit.MILLISECONDS);
+        stackMultiplier = config.getInt("stacking.cooldownMultiplier");
+        stackMaxStacked = config.getInt("stacking.maxStacked");
+        userIdleTimeoutMillis = config.getDuration("userIdleTimeout", TimeUnit.MILLISECONDS);
+        pixelCountsTowardsCurrent = config.getBoolean("pixelCounts.countTowardsCurrent");
+        pixelCountsTowardsAlltime = config.getBoolean("pixelCounts.countTowardsAlltime");
+
+        chatEnabled = config.getBoolean("chat.enabled");
+        chatCharacterLimit = config.getInt("chat.characterLimit");
+        chatTrimInput = config.getBoolean("chat.trimInput");
+        chatCanvasBanRespected = config.getBoolean("chat.canvasBanRespected");
+        chatShowShadowBannedMessagesToStaff = config.getBoolean("chat.showShadowBannedMessagesToStaff");
+        textFilterEnabled = config.getBoolean("textFilter.enabled");
+
+        snipMode = config.getBoolean("oauth.snipMode");
+        useIp = config.getBoolean("oauth.useIp");
+        trustedProxies = new TrustedProxies(config.getStringList("server.proxy.localhosts"));
+        proxyHeaders = List.copyOf(config.getStringList("server.proxy.headers"));
+        websocketMaxFrameSize = config.getBytes("server.websocket.maxFrameSize");
+        websocketCloseAfterDropped = config.getInt("server.websocket.closeAfterDropped");
+        whoamiAllowedOrigins = Set.copyOf(config.getStringList("whoamiAllowedOrigins"));
+    }
+}
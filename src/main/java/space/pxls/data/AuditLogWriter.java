@@ -0,0 +1,182 @@
+package space.pxls.data;
+
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.PreparedBatch;
+import space.pxls.App;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous writer for append-only audit tables (lookups, admin_log, banlogs, ip_log).<br>
+ * Entries are queued on the calling thread and written in batches by a single
+ *  background thread, so request handlers no longer wait on the database for
+ *  audit rows. When the queue is full the entry is written synchronously on the
+ *  calling thread instead of being dropped, which applies backpressure to the
+ *  producer and is counted in {@link #getOverflowed()}.
+ */
+public class AuditLogWriter {
+    private final Jdbi jdbi;
+    private final QueryStats queryStats;
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long flushIntervalMS;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAccumulator largestBatch = new LongAccumulator(Math::max, 0);
+
+    AuditLogWriter(Jdbi jdbi, QueryStats queryStats, int queueSize, int batchSize, long flushIntervalMS) {
+        this.jdbi = jdbi;
+        this.queryStats = queryStats;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMS = Math.max(1, flushIntervalMS);
+        this.flusher = new Thread(this::run, "AuditLogWriter");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a row for insertion.
+     * @param sql The statement to execute. Entries sharing a statement are batched together.
+     * @param binds The named parameters for the statement.
+     */
+    void submit(String sql, Map<String, Object> binds) {
+        Entry entry = new Entry(sql, binds);
+        if (running && queue.offer(entry)) {
+            enqueued.increment();
+            // close() may have drained the queue for the last time between the check and the offer
+            if (!running && queue.remove(entry)) write(List.of(entry));
+            return;
+        }
+        overflowed.increment();
+        write(List.of(entry));
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(flushIntervalMS, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                // nothing interrupts the flusher, close() lets the poll time out instead
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Entry> entries) {
+        // group by statement while keeping the insertion order of each group
+        Map<String, List<Entry>> grouped = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            grouped.computeIfAbsent(entry.sql, k -> new ArrayList<>()).add(entry);
+        }
+        try {
+            queryStats.useTransaction("auditLog", jdbi, handle -> {
+                for (Map.Entry<String, List<Entry>> group : grouped.entrySet()) {
+                    PreparedBatch prepared = handle.prepareBatch(group.getKey());
+                    for (Entry entry : group.getValue()) {
+                        prepared.bindMap(entry.binds).add();
+                    }
+                    prepared.execute();
+                }
+            });
+            written.add(entries.size());
+            batches.increment();
+            largestBatch.accumulate(entries.size());
+        } catch (Exception e) {
+            if (entries.size() > 1) {
+                // retry one by one so a single bad row doesn't lose the rest of the batch
+                for (Entry entry : entries) write(List.of(entry));
+            } else {
+                failed.increment();
+                App.getLogger().error("Failed to write audit log entry", e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new entries and waits for the queue to be flushed. The flusher isn't interrupted, as that would
+     *  fail a write waiting for a pooled connection; it notices within one flush interval. Whatever is still queued
+     *  afterwards is written on the calling thread.
+     * @param timeoutMS The maximum amount of time to wait, in milliseconds.
+     */
+    public void close(long timeoutMS) {
+        running = false;
+        try {
+            flusher.join(timeoutMS);
+        } catch (InterruptedException ignored) {}
+        // entries queued by submit() calls that raced with the flusher exiting
+        List<Entry> left = new ArrayList<>();
+        queue.drainTo(left);
+        if (!left.isEmpty()) write(left);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue %d/%d, enqueued %d, written %d in %d batches (largest %d), overflowed %d, failed %d",
+            getQueueDepth(), getQueueCapacity(), getEnqueued(), getWritten(), getBatches(), getLargestBatch(), getOverflowed(), getFailed());
+    }
+
+    private static class Entry {
+        private final String sql;
+        private final Map<String, Object> binds;
+
+        private Entry(String sql, Map<String, Object> binds) {
+            this.sql = sql;
+            this.binds = binds;
+        }
+    }
+}
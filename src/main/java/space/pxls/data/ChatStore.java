@@ -0,0 +1,162 @@
+package space.pxls.data;
+
+import space.pxls.server.packets.chat.ServerChatLookup;
+import space.pxls.user.Chatban;
+import space.pxls.user.User;
+
+import java.util.List;
+
+/**
+ * Storage for chat messages, purges and chat bans.
+ */
+public interface ChatStore {
+    /**
+     * @param authorID The author's {@link User} ID.
+     * @param sent The chat message's creation epoch.
+     * @param content The chat contents.
+     * @param filtered The filtered chat contents.
+     * @param shadowBanned Whether or not the user sending the message is shadow-banned.
+     * @return The new chat message's ID.
+     */
+    Integer createChatMessage(int authorID, long sent, String content, String filtered, boolean shadowBanned);
+
+    /**
+     * @param author The author {@link User}.
+     * @param sent The chat message's creation epoch.
+     * @param content The chat contents.
+     * @param filtered The filtered chat contents.
+     * @return The new chat message's ID.
+     */
+    default Integer createChatMessage(User author, long sent, String content, String filtered) {
+        return createChatMessage(author == null ? -1 : author.getId(), sent / 1000L, content, filtered, author != null && author.isShadowBanned());
+    }
+
+    /**
+     * Retrieves the {@link DBChatMessage} associated with the given <pre>id</pre>.
+     * @param id The {@link DBChatMessage} id to fetch with.
+     * @return The retrieved {@link DBChatMessage}.
+     */
+    DBChatMessage getChatMessageByID(int id);
+
+    /**
+     * Retrieves all {@link DBChatMessage}s by the specified author, sorted by date sent descending.
+     * @param authorID The author's {@link User} ID.
+     * @return The retrieved {@link DBChatMessage}s.
+     */
+    List<DBChatMessage> getChatMessagesByAuthor(int authorID);
+
+    List<DBChatMessage> getLastXMessagesFromUID(int authorID, int limit);
+
+    /**
+     * Retrieves the last <pre>x</pre> amount of {@link DBChatMessage}s.
+     * @param x The amount of chat messages to retrieve.
+     * @param includePurged Whether or not to include purged messages.
+     * @return The retrieved {@link DBChatMessage}s. The length is determined by the amount of stored messages.
+     */
+    List<DBChatMessage> getLastXMessages(int x, boolean includePurged);
+
+    /**
+     * Updates the permanent chat ban status for the specified {@link User} by their ID.
+     * @param toUpdateID The {@link User}'s ID.
+     * @param isPermaChatBanned Whether or not the {@link User} is permanently chat banned.
+     */
+    void updateChatBanPerma(int toUpdateID, boolean isPermaChatBanned);
+
+    /**
+     * Updates the permanent chat ban status for the specified {@link User}.
+     * @param toUpdate The {@link User}.
+     * @param isPermaChatBanned Whether or not the {@link User} is permanently chat banned.
+     */
+    default void updateChatBanPerma(User toUpdate, boolean isPermaChatBanned) {
+        if (toUpdate == null) throw new IllegalArgumentException("Cannot update a non-existent user's chat ban");
+        updateChatBanPerma(toUpdate.getId(), isPermaChatBanned);
+    }
+
+    /**
+     * Updates the chat ban expiry for the specified {@link User} by their ID.
+     * @param targetID The {@link User}'s ID.
+     * @param expiry The new chat ban expiry epoch.
+     */
+    void updateChatBanExpiry(int targetID, long expiry);
+
+    /**
+     * Updates the chat ban expiry for the specified {@link User}.
+     * @param target The target {@link User}.
+     * @param expiry The new chat ban expiry epoch.
+     */
+    default void updateChatBanExpiry(User target, long expiry) {
+        updateChatBanExpiry(target.getId(), expiry);
+    }
+
+    /**
+     * Purges an amount of chat messages sent by the specified {@link User}, for the specified reason.
+     * @param target The {@link User} to purge messages from.
+     * @param initiator The {@link User} who purged chat messages.
+     * @param amount The amount of chat messages to purge.
+     * @param reason The reason for the purge.
+     * @param broadcast Whether or not to broadcast a purge message.
+     */
+    void purgeChat(User target, User initiator, int amount, String reason, boolean broadcast);
+
+    /**
+     * Purges an specific chat message, for the specified reason.
+     * @param target The {@link User} to purge messages from, for logging purposes.
+     * @param initiator The {@link User} who purged chat messages.
+     * @param id The id of the chat message to purge.
+     * @param reason The reason for the purge.
+     * @param broadcast Whether or not to broadcast a purge message.
+     */
+    void purgeChatID(User target, User initiator, Integer id, String reason, boolean broadcast);
+
+    /**
+     * Gets the {@link User}'s chat ban reason.
+     * @param id The {@link User}'s ID.
+     * @return The chat ban reason.
+     */
+    String getChatBanReason(int id);
+
+    /**
+     * Updates the {@link User}'s chat ban reason.
+     * @param id The {@link User}'s ID.
+     * @param reason The new chat ban reason.
+     */
+    void updateChatBanReason(int id, String reason);
+
+    /**
+     * Returns the requested user's last 100 messages and chatbans.
+     *
+     * @param username The {@link User}'s name to look up.
+     * @param history_limit The maximum number of chat message history to fetch.
+     * @return The requested user's last 100 messages and chatbans.
+     */
+    ServerChatLookup runChatLookupForUsername(String username, int history_limit);
+
+    /**
+     * Initiates a new chat ban.
+     * @param targetID The chat ban {@link User} ID.
+     * @param initiatorID The chat ban initiator's {@link User} ID.
+     * @param when When the chat ban was initiated.
+     * @param type The chat ban type.
+     * @param expiry The chat ban expiry epoch.
+     * @param reason The chat ban reason.
+     * @param purge Whether to purge all messages.
+     * @return The inserted row ID.
+     */
+    Integer initiateChatBan(int targetID, int initiatorID, long when, String type, long expiry, String reason, boolean purge);
+
+    /**
+     * Inserts a new chat ban by {@link Chatban} instance.
+     * @param chatBan The {@link Chatban} instance.
+     * @return The inserted row ID.
+     */
+    default Integer initiateChatBan(Chatban chatBan) {
+        int targetID = chatBan.target != null ? chatBan.target.getId() : 0;
+        int initiatorID = chatBan.initiator != null ? chatBan.initiator.getId() : 0;
+        long when = chatBan.instantiatedMS / 1000L;
+        String type = chatBan.type.toString();
+        long expiry = chatBan.expiryTimeMS / 1000L;
+        String reason = chatBan.reason;
+        boolean purge = chatBan.purge;
+        return initiateChatBan(targetID, initiatorID, when, type, expiry, reason, purge);
+    }
+}
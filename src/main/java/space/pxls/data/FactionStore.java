@@ -0,0 +1,171 @@
+package space.pxls.data;
+
+import space.pxls.user.Faction;
+import space.pxls.user.User;
+
+import java.util.List;
+
+/**
+ * Storage for factions, their memberships and bans.<br>
+ * Note: most faction operations should be done in the {@link space.pxls.user.FactionManager}, which caches these.
+ */
+public interface FactionStore {
+    /**
+     * Creates a new faction.<br>
+     * Note: This is included for db access, but most faction operations should
+     *       be done in the {@link space.pxls.user.FactionManager}.
+     *
+     * @param factionName The name of the faction.
+     * @param factionTag The faction's tag.
+     * @param owner_uid The owner's ID.
+     * @param color The faction's color, or null for default.
+     * @return The ID of the newly created faction, or null on insertion error.
+     * @see space.pxls.user.FactionManager#create
+     */
+    DBFaction createFaction(String factionName, String factionTag, int owner_uid, Integer color);
+
+    /**
+     * Gets the requested faction by ID.<br>
+     * Note: This is included for db access, but most faction operations should
+     *       be done in the {@link space.pxls.user.FactionManager}.
+     *
+     * @param fid The faction ID
+     * @return The faction
+     * @see space.pxls.user.FactionManager#getByID(Integer)
+     */
+    DBFaction getFactionByID(int fid);
+
+    /**
+     * Creates a new faction membership specified by (faction.id, user.id)
+     *
+     * @param fid The faction ID
+     * @param uid The user ID
+     */
+    void joinFaction(int fid, int uid);
+
+    /**
+     * Removes the faction membership specified by (faction.id, user.id)
+     *
+     * @param fid The faction ID
+     * @param uid The user ID
+     */
+    void leaveFaction(int fid, int uid);
+
+    /**
+     * Gets factions that this user belongs to.
+     *
+     * @param uid The user's ID
+     * @return The factions that this user belongs to.
+     */
+    List<DBFaction> getFactionsForUID(int uid);
+
+    /**
+     * Gets users that belong to the given faction.
+     *
+     * @param fid The faction's ID
+     * @return A list of users that belong to the given faction
+     */
+    List<DBUser> getUsersForFID(int fid);
+
+    /**
+     * Gets the number of factions this user owns.
+     *
+     * @param uid The user's ID
+     * @return The number of factions
+     */
+    Integer getOwnedFactionCountForUID(int uid);
+
+    List<DBUser> getBansForFID(int fid);
+
+    /**
+     * Updates an existing faction in the database with the provided Faction
+     * object.<br>
+     * Note: This is included for db access, but most faction operations should
+     *       be done in the {@link space.pxls.user.FactionManager}.
+     *
+     * @param faction The faction to update.
+     *                Updates where `faction.id` = {@link Faction#getId()} and
+     *                uses faction values where appropriate.
+     * @see space.pxls.user.FactionManager#update(Faction, boolean)
+     */
+    void updateFaction(Faction faction);
+
+    /**
+     * Deletes the faction and removes all faction memberships.<br>
+     * Note: This is included for db access, but most faction operations should
+     *       be done in the {@link space.pxls.user.FactionManager}.
+     *
+     * @param fid The ID of the faction.
+     *
+     * @see space.pxls.user.FactionManager#deleteByID(int)
+     */
+    void deleteFactionByFID(int fid);
+
+    /**
+     * Deletes factions that do not have any members.
+     *
+     * @return A list of deleted orphaned factions.
+     */
+    List<DBFaction> pruneOrphanedFactions();
+
+    /**
+     * Gets factions that do not currently have any members.
+     *
+     * @return A list of orphaned factions.
+     */
+    List<DBFaction> getOrphanedFactions();
+
+    /**
+     * Updates the user's displayed faction.
+     *
+     * @param uid The user's ID
+     * @param fid The faction's ID, or null to unset.
+     */
+    void setDisplayedFactionForUID(int uid, Integer fid);
+
+    /**
+     * Removes a faction ban for the given uid.
+     *
+     * @param uid The user's ID to remove
+     * @param fid The faction ID to modify
+     */
+    void removeFactionBanForUID(int uid, int fid);
+
+    /**
+     * Adds a faction ban for the given uid. Will also remove an active
+     *  faction_membership.
+     *
+     * @param uid The user's ID to add
+     * @param fid The faction ID to modify
+     */
+    void addFactionBanForUID(int uid, int fid);
+
+    /**
+     * Sets a new owner for the faction. Does not verify faction_member state.
+     *
+     * @param fid The ID of the faction to modify
+     * @param uid The ID of the user to set as owner
+     */
+    void setFactionOwnerForFID(int fid, int uid);
+
+    /**
+     * Performs a left-anchored case insensitive search with the given input.
+     *  Supports basic pagination using the `after` param, which maps to a
+     *  faction ID.
+     *
+     * @param search The search term
+     * @param offset The pagination offset.
+     * @param searchContext The user to add context from (currently,
+     *                      "memberJoined"), or null for none.
+     * @return A list of {@link DBFactionSearch}s.
+     */
+    List<DBFactionSearch> searchFactions(String search, int offset, User searchContext);
+
+    /**
+     * Sets the color for this faction. Expects an integer value of a color.
+     *
+     * @param fid The faction's ID
+     * @param color The integer value of a color.
+     */
+    void setColorForFID(int fid, int color);
+}
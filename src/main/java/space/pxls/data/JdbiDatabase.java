@@ -0,0 +1,1265 @@
+package space.pxls.data;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.Query;
+import space.pxls.App;
+import space.pxls.server.packets.chat.Badge;
+import space.pxls.server.packets.chat.ChatMessage;
+import space.pxls.server.packets.chat.ServerChatLookup;
+import space.pxls.user.Faction;
+import space.pxls.user.Role;
+import space.pxls.user.User;
+
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.lang.Math.toIntExact;
+
+public class JdbiDatabase implements Database {
+    private final QueryStats queryStats;
+    private final ReplicaRouter replicaRouter;
+    private final Jdbi jdbi;
+    private final AuditLogWriter auditLogWriter;
+    private final PixelPartitions pixelPartitions;
+    private static final String SQL_USER_UNDO_PIXEL = "SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.rollback_action, p.undone, p.undo_action, p.most_recent, u.id as u_id, u.stacked, u.username, u.login, u.signup_time, u.cooldown_expiry, u.ban_expiry, u.is_shadow_banned, u.signup_ip, u.last_ip, u.last_ip_alert, u.perma_chat_banned, u.chat_ban_expiry, u.chat_ban_reason, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.is_rename_requested, u.discord_name, u.chat_name_color FROM pixels p LEFT JOIN users u ON p.who = u.id WHERE p.who = :who AND NOT p.rollback_action ORDER BY p.id DESC LIMIT 1";
+    private static final String SQL_ROLLBACK_PIXELS = "SELECT id, secondary_id FROM pixels WHERE most_recent AND who = :who AND (time + :seconds * '1 SECOND'::INTERVAL > NOW())";
+    private static final String SQL_UNDO_PIXELS = "SELECT DISTINCT secondary_id FROM pixels WHERE rollback_action AND who = :who AND secondary_id IS NOT NULL";
+    private static final String SQL_PIXEL_AT = "SELECT p.id as p_id, p.x, p.y, p.color, p.time, p.mod_action, u.id as u_id, u.username, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.login as u_login, u.discord_name, f.name as \"faction\" FROM pixels p LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE p.x = :x AND p.y = :y AND p.most_recent ORDER BY p.time DESC LIMIT 1";
+    private static final String SQL_LAST_MESSAGES_FROM_UID = "SELECT * FROM chat_messages WHERE author = :uid ORDER BY sent DESC LIMIT :limit";
+    private static final String SQL_LAST_MESSAGES = "SELECT * FROM chat_messages cm WHERE CASE WHEN :includePurged THEN true ELSE purged = false END ORDER BY sent DESC LIMIT :limit";
+    private static final String SQL_USER_BY_LOGIN = "SELECT id, stacked, username, login, signup_time, cooldown_expiry, ban_expiry, is_shadow_banned, signup_ip, last_ip, last_ip_alert, perma_chat_banned, chat_ban_expiry, chat_ban_reason, ban_reason, user_agent, pixel_count, pixel_count_alltime, is_rename_requested, discord_name, chat_name_color, displayed_faction, faction_restricted FROM users WHERE login = :login";
+    private static final String SQL_USER_BY_NAME = "SELECT id, stacked, username, login, signup_time, cooldown_expiry, ban_expiry, is_shadow_banned, signup_ip, last_ip, last_ip_alert, perma_chat_banned, chat_ban_expiry, chat_ban_reason, ban_reason, user_agent, pixel_count, pixel_count_alltime, is_rename_requested, discord_name, chat_name_color, displayed_faction, faction_restricted FROM users WHERE username = :username";
+
+    public JdbiDatabase() {
+        try {
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+
+        queryStats = new QueryStats(App.getConfig().getDuration("database.stats.slowQueryThreshold", TimeUnit.MILLISECONDS));
+        replicaRouter = new ReplicaRouter(queryStats);
+        jdbi = replicaRouter.writer();
+
+        new MigrationRunner(jdbi).run();
+        pixelPartitions = new PixelPartitions(jdbi);
+        pixelPartitions.ensureCurrent(App.getCanvasCode());
+
+        auditLogWriter = new AuditLogWriter(jdbi, queryStats,
+            App.getConfig().getInt("database.audit.queueSize"),
+            App.getConfig().getInt("database.audit.batchSize"),
+            App.getConfig().getDuration("database.audit.flushInterval", TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public Integer placePixel(int x, int y, int color, User who, boolean mod_action) {
+        return queryStats.withHandle("placePixel", jdbi, handle -> {
+            Optional<Integer> second_id = handle.select("SELECT id FROM pixels AS pp WHERE pp.x = :x AND pp.y = :y AND pp.most_recent ORDER BY id DESC LIMIT 1")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .mapTo(Integer.class)
+                    .findFirst();
+            int whoID = who != null ? who.getId() : 0;
+            handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .execute();
+            int rowID = handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, mod_action) VALUES (:x, :y, :color, :who, :second_id, :mod)")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("color", color)
+                    .bind("who", whoID)
+                    .bind("second_id", second_id)
+                    .bind("mod", mod_action)
+                    .execute();
+            return rowID;
+        });
+    }
+
+    @Override
+    public void updateUserTime(int id, long seconds) {
+        queryStats.useHandle("updateUserTime", jdbi, handle -> handle.createUpdate("UPDATE users SET cooldown_expiry = NOW() + :seconds * '1 SECOND'::INTERVAL WHERE id = :id")
+                .bind("seconds", seconds)
+                .bind("id", id)
+                .execute());
+    }
+
+    @Override
+    public Optional<DBPixelPlacementFull> getFullPixelAt(int x, int y) {
+        Optional<DBPixelPlacementFull> pp;
+        try {
+            pp = queryStats.withHandle("getFullPixelAt", jdbi, handle -> handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.ban_reason, u.user_agent, u.discord_name, f.name as \"faction\" FROM pixels p LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE p.x = :x AND p.y = :y AND p.most_recent ORDER BY p.time DESC LIMIT 1")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .map(new DBPixelPlacementFull.Mapper())
+                    .findFirst());
+        } catch (NullPointerException e) {
+            return Optional.empty();
+        }
+        return pp;
+    }
+
+    @Override
+    public Optional<DBPixelPlacement> getPixelAt(int x, int y) {
+        Optional<DBPixelPlacement> pp;
+        try {
+            pp = queryStats.withHandle("getPixelAt", replicaRouter.reader("getPixelAt"), handle -> handle.select(SQL_PIXEL_AT)
+                    .bind("x", x)
+                    .bind("y", y)
+                    .map(new DBPixelPlacement.Mapper())
+                    .findFirst());
+        } catch (NullPointerException e) {
+            return Optional.empty();
+        }
+        return pp;
+    }
+
+    @Override
+    public List<DBPixelPlacementFull> getFullPixelsAt(int[] xs, int[] ys) {
+        if (xs.length == 0) return Collections.emptyList();
+        // one index probe per position, latest pixel per position like ORDER BY p.time DESC LIMIT 1
+        return queryStats.withHandle("getFullPixelsAt", replicaRouter.reader("getFullPixelsAt"), handle -> handle.select("SELECT DISTINCT ON (p.x, p.y) p.id as p_id, p.x, p.y, p.color, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.ban_reason, u.user_agent, u.discord_name, f.name as \"faction\" FROM unnest(:xs, :ys) AS c(x, y) JOIN pixels p ON p.x = c.x AND p.y = c.y AND p.most_recent LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction ORDER BY p.x, p.y, p.time DESC")
+                .bindArray("xs", Integer.class, (Object[]) boxed(xs))
+                .bindArray("ys", Integer.class, (Object[]) boxed(ys))
+                .map(new DBPixelPlacementFull.Mapper())
+                .list());
+    }
+
+    @Override
+    public List<DBPixelPlacement> getPixelsAt(int[] xs, int[] ys) {
+        if (xs.length == 0) return Collections.emptyList();
+        // inner join on users: the mapper can't handle nukes, which getPixelAt drops by catching the exception
+        return queryStats.withHandle("getPixelsAt", replicaRouter.reader("getPixelsAt"), handle -> handle.select("SELECT DISTINCT ON (p.x, p.y) p.id as p_id, p.x, p.y, p.color, p.time, p.mod_action, u.id as u_id, u.username, u.ban_expiry, u.is_shadow_banned, u.pixel_count, u.pixel_count_alltime, u.login as u_login, u.discord_name, f.name as \"faction\" FROM unnest(:xs, :ys) AS c(x, y) JOIN pixels p ON p.x = c.x AND p.y = c.y AND p.most_recent JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction ORDER BY p.x, p.y, p.time DESC")
+                .bindArray("xs", Integer.class, (Object[]) boxed(xs))
+                .bindArray("ys", Integer.class, (Object[]) boxed(ys))
+                .map(new DBPixelPlacement.Mapper())
+                .list());
+    }
+
+    private static Integer[] boxed(int[] values) {
+        Integer[] boxed = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) boxed[i] = values[i];
+        return boxed;
+    }
+
+    @Override
+    public DBPixelPlacementFull getPixelByID(int id) {
+        return getPixelByID(null, id);
+    }
+
+    private DBPixelPlacementFull getPixelByID(Handle handle, int id) {
+        Optional<DBPixelPlacementFull> pp;
+        try {
+            if (handle == null)
+                pp = queryStats.withHandle("getPixelByID", jdbi, handle2 -> handle2.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login, u.ban_expiry, u.is_shadow_banned, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.discord_name, f.name as \"faction\" FROM pixels p LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE p.id = :id")
+                        .bind("id", id)
+                        .map(new DBPixelPlacementFull.Mapper())
+                        .findFirst());
+            else
+                pp = handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login, u.ban_expiry, u.is_shadow_banned, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.discord_name, f.name as \"faction\" FROM pixels p LEFT JOIN users u ON p.who = u.id LEFT OUTER JOIN faction f ON f.id = u.displayed_faction WHERE p.id = :id")
+                        .bind("id", id)
+                        .map(new DBPixelPlacementFull.Mapper())
+                        .findFirst();
+        } catch (NullPointerException e) {
+            return null;
+        }
+        if (!pp.isPresent()) return null;
+        if (pp.get().userId == 0) {
+            return null;
+        }
+        return pp.get();
+    }
+
+    // returns ids of all pixels that should be rolled back and the DBPixelPlacement for all pixels to rollback to
+    // DBRollbackPixel is (DBPixelPlacement and fromID) so it has all the info needed to rollback
+
+    @Override
+    public List<DBRollbackPixel> getRollbackPixels(User who, int fromSeconds) {
+        return queryStats.withHandle("getRollbackPixels", jdbi, handle -> handle.select(SQL_ROLLBACK_PIXELS)
+                .bind("who", who.getId())
+                .bind("seconds", fromSeconds)
+                .mapToMap()
+                .map(entry -> {
+                    DBPixelPlacementFull toPixel;
+                    try {
+                        int prevId = toIntExact((long) entry.get("secondary_id"));
+                        toPixel = getPixelByID(handle, prevId);
+                        while (toPixel.banned || toPixel.ban_expiry > Instant.now().toEpochMilli() || toPixel.userId == who.getId() || toPixel.undoAction) {
+                            if (toPixel.secondaryId != 0) {
+                                toPixel = getPixelByID(handle, toPixel.secondaryId);
+                            } else {
+                                toPixel = null;
+                                break;
+                            }
+                        }
+                    } catch (NullPointerException e) {
+                        toPixel = null;
+                    }
+                    return new DBRollbackPixel(toPixel, toIntExact((long) entry.get("id")));
+                })
+                .list());
+    }
+
+    @Override
+    public List<DBPixelPlacementFull> getUndoPixels(User who) {
+        return queryStats.withHandle("getUndoPixels", jdbi, handle -> handle.select(SQL_UNDO_PIXELS)
+                .bind("who", who.getId())
+                .mapToMap()
+                .map(entry -> {
+                    int from = toIntExact((long) entry.get("secondary_id"));
+                    return handle.select("SELECT p.id as p_id, p.x, p.y, p.color, p.who, p.secondary_id, p.time, p.mod_action, p.undo_action, u.id as u_id, u.username, u.login, u.ban_expiry, u.is_shadow_banned, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.discord_name FROM pixels p LEFT JOIN users u on p.who = u.id WHERE p.id = :id")
+                            .bind("id", from)
+                            .map(new DBPixelPlacementFull.Mapper())
+                            .first();
+                })
+                .stream()
+                // Filter out places where pixels were placed after the initial rollback.
+                .filter(fromPixel -> handle.select("SELECT NOT EXISTS(SELECT 1 FROM pixels WHERE x = :x AND y = :y AND most_recent AND id > :id)")
+                    .bind("x", fromPixel.x)
+                    .bind("y", fromPixel.y)
+                    .bind("id", fromPixel.id)
+                    .mapTo(Boolean.class)
+                    .first())
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public Integer putUndoPixel(int x, int y, int color, User who, int from) {
+        int whoID = who == null ? 0 : who.getId();
+        int rowID = queryStats.withHandle("putUndoPixel", jdbi, handle -> {
+            int rowID2 = handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, rollback_action, most_recent) VALUES (:x, :y, :color, :who, NULL, true, false)")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("color", color)
+                    .bind("who", whoID)
+                    .execute();
+            handle.createUpdate("UPDATE pixels SET most_recent = true WHERE id = :from")
+                    .bind("from", from)
+                    .execute();
+            return rowID2;
+        });
+        return rowID;
+    }
+
+    @Override
+    public Integer putRollbackPixel(User who, int from, int to) {
+        int rowID = queryStats.withHandle("putRollbackPixel", jdbi, handle -> {
+           int rowID2 = handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, rollback_action, most_recent) SELECT x, y, color, :who, :from, true, false FROM pixels AS pp WHERE pp.id = :to ORDER BY id DESC LIMIT 1")
+                   .bind("who", who.getId())
+                   .bind("from", from)
+                   .bind("to", to)
+                   .execute();
+           handle.createUpdate("UPDATE pixels SET most_recent = true WHERE id = :to")
+                   .bind("to", to)
+                   .execute();
+           handle.createUpdate("UPDATE pixels SET most_recent = false WHERE id = :from")
+                   .bind("from", from)
+                   .execute();
+           return rowID2;
+        });
+        return rowID;
+    }
+
+    @Override
+    public Integer putRollbackPixelNoPrevious(int x, int y, User who, int from) {
+        int rowID = queryStats.withHandle("putRollbackPixelNoPrevious", jdbi, handle -> {
+            handle.createUpdate("INSERT INTO PIXELS (x, y, color, who, secondary_id, rollback_action, most_recent) VALUES (:x, :y, :default_color, :who, :from, true, false)")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("default_color", App.getDefaultColor(x, y))
+                    .bind("who", who.getId())
+                    .bind("from", from)
+                    .execute();
+            return handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .execute();
+        });
+        return rowID;
+    }
+
+    @Override
+    public Integer putNukePixel(int x, int y, int color) {
+        Optional<DBPixelPlacementFull> pp = getFullPixelAt(x, y);
+        int rowID = queryStats.withHandle("putNukePixel", jdbi, handle -> {
+            handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .execute();
+            return handle.createUpdate("INSERT INTO pixels (x, y, color, most_recent) VALUES (:x, :y, :color, :recent)")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("color", color)
+                    .bind("recent", pp.isEmpty() || pp.get().secondaryId > 0)
+                    .execute();
+        });
+        return rowID;
+    }
+
+    @Override
+    public Integer putNukePixel(int x, int y, Integer replace, int color) {
+        Optional<DBPixelPlacementFull> pp = getFullPixelAt(x, y);
+        int rowID = queryStats.withHandle("putNukePixel", jdbi, handle -> {
+            handle.createUpdate("UPDATE pixels SET most_recent = false WHERE x = :x AND y = :y AND color = :replace")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("replace", replace)
+                    .execute();
+            return handle.createUpdate("INSERT INTO pixels (x, y, color, most_recent) VALUES (:x, :y, :color, :recent)")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("color", color)
+                    .bind("recent", pp.isEmpty() || pp.get().secondaryId > 0)
+                    .execute();
+        });
+        return rowID;
+    }
+
+    @Override
+    public DBPixelPlacementFull getUserUndoPixel(User who) {
+        return queryStats.withHandle("getUserUndoPixel", jdbi, handle -> handle.select(SQL_USER_UNDO_PIXEL)
+                .bind("who", who.getId())
+                .map(new DBPixelPlacementFull.Mapper())
+                .first());
+    }
+
+    @Override
+    public void putUserUndoPixel(DBPixelPlacementFull backPixel, User who, int from) {
+        int whoID = who == null ? 0 : who.getId();
+        queryStats.useHandle("putUserUndoPixel", jdbi, handle -> {
+            handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, undo_action, most_recent) VALUES (:x, :y, :color, :who, NULL, true, false)")
+                    .bind("x", backPixel.x)
+                    .bind("y", backPixel.y)
+                    .bind("color", backPixel.color)
+                    .bind("who", whoID)
+                    .execute();
+            handle.createUpdate("UPDATE pixels SET most_recent = true, undone = false WHERE id = :back_id")
+                    .bind("back_id", backPixel.id)
+                    .execute();
+            handle.createUpdate("UPDATE pixels SET most_recent = false, undone = true WHERE id = :from")
+                    .bind("from", from)
+                    .execute();
+        });
+    }
+
+    @Override
+    public void putUserUndoPixel(int x, int y, int color, User who, int from) {
+        int whoID = who == null ? 0 : who.getId();
+        queryStats.useHandle("putUserUndoPixel", jdbi, handle -> {
+            handle.createUpdate("INSERT INTO pixels (x, y, color, who, secondary_id, undo_action, most_recent) VALUES (:x, :y, :color, :who, NULL, true, false)")
+                    .bind("x", x)
+                    .bind("y", y)
+                    .bind("color", color)
+                    .bind("who", whoID)
+                    .execute();
+            handle.createUpdate("UPDATE pixels SET most_recent = true, undone = false WHERE id = :back_id")
+                    .bind("back_id", 0)
+                    .execute();
+            handle.createUpdate("UPDATE pixels SET most_recent = false, undone = true WHERE id = :from")
+                    .bind("from", from)
+                    .execute();
+        });
+    }
+
+    @Override
+    public Optional<DBUser> getUserByLogin(String login) {
+        return queryStats.withHandle("getUserByLogin", jdbi, handle -> handle.select(SQL_USER_BY_LOGIN)
+                .bind("login", login)
+                .map(new DBUser.Mapper())
+                .findFirst());
+    }
+
+    @Override
+    public Optional<DBUser> getUserByName(String name) {
+        return queryStats.withHandle("getUserByName", jdbi, handle -> handle.select(SQL_USER_BY_NAME)
+                .bind("username", name)
+                .map(new DBUser.Mapper())
+                .findFirst());
+    }
+
+    @Override
+    public Optional<DBUser> getUserByID(int who) {
+        return queryStats.withHandle("getUserByID", jdbi, handle -> handle.select("SELECT id, stacked, username, login, signup_time, cooldown_expiry, ban_expiry, is_shadow_banned, signup_ip, last_ip, last_ip_alert, perma_chat_banned, chat_ban_expiry, chat_ban_reason, ban_reason, user_agent, pixel_count, pixel_count_alltime, is_rename_requested, discord_name, chat_name_color, displayed_faction, faction_restricted FROM users WHERE id = :who")
+                .bind("who", who)
+                .map(new DBUser.Mapper())
+                .findFirst());
+    }
+
+    @Override
+    public Optional<DBUser> getUserByToken(String token) {
+        return queryStats.withHandle("getUserByToken", jdbi, handle -> handle.select("SELECT u.id, u.stacked, u.username, u.login, u.signup_time, u.cooldown_expiry, u.ban_expiry, u.is_shadow_banned, u.signup_ip, u.last_ip, u.last_ip_alert, u.perma_chat_banned, u.chat_ban_expiry, u.chat_ban_reason, u.ban_reason, u.user_agent, u.pixel_count, u.pixel_count_alltime, u.is_rename_requested, u.discord_name, u.chat_name_color, u.displayed_faction, u.faction_restricted FROM users u INNER JOIN sessions s ON u.id = s.who WHERE s.token = :token")
+                .bind("token", token)
+                .map(new DBUser.Mapper())
+                .findFirst());
+    }
+
+    @Override
+    public Optional<DBUser> createUser(String name, String login, String ip) {
+        queryStats.useHandle("createUser", jdbi, handle -> handle.createUpdate("INSERT INTO users (username, login, signup_ip, last_ip, chat_name_color) VALUES (:username, :login, :ip::INET, :ip::INET, :chat_name_color)")
+                .bind("username", name)
+                .bind("login", login)
+                .bind("ip", ip)
+                .bind("chat_name_color", App.getConfig().getInt("chat.defaultColorIndex"))
+                .execute());
+        return getUserByName(name);
+    }
+
+    @Override
+    public void createSession(int who, String token) {
+        queryStats.useHandle("createSession", jdbi, handle -> handle.createUpdate("INSERT INTO sessions (who, token) VALUES (:who, :token)")
+                .bind("who", who)
+                .bind("token", token)
+                .execute());
+    }
+
+    @Override
+    public void destroySession(String token) {
+        queryStats.useHandle("destroySession", jdbi, handle -> handle.createUpdate("DELETE FROM sessions WHERE token = :token")
+                .bind("token", token)
+                .execute());
+    }
+
+    @Override
+    public void updateSession(String token) {
+        queryStats.useHandle("updateSession", jdbi, handle -> handle.createUpdate("UPDATE sessions SET time = CURRENT_TIMESTAMP WHERE token = :token")
+                .bind("token", token)
+                .execute());
+    }
+
+    @Override
+    public List<Role> getUserRoles(int who) {
+        return queryStats.withHandle("getUserRoles", jdbi, handle ->
+                handle.createQuery("SELECT role FROM roles WHERE id = :who")
+                        .bind("who", who)
+                        .map(new Role.Mapper())
+                        .withStream(stream -> stream
+                            .filter(role -> role != null)
+                            .collect(Collectors.toList())
+                        )
+        );
+    }
+
+    @Override
+    public void setUserRoles(int userID, List<Role> roles) {
+        queryStats.useHandle("setUserRoles", jdbi, handle -> handle.createUpdate("DELETE FROM roles WHERE id = :who")
+                .bind("who", userID)
+                .execute());
+        queryStats.useTransaction("setUserRoles", jdbi, handle -> {
+            for (Role role : roles) {
+                handle.createUpdate("INSERT INTO roles VALUES (:who, :role)")
+                        .bind("who", userID)
+                        .bind("role", role.getID())
+                        .execute();
+            }
+        });
+    }
+
+    @Override
+    public void updateBan(User user, Integer time) {
+        queryStats.useHandle("updateBan", jdbi, handle -> {
+            String expiryStr = "NOW() + :expiry * '1 SECOND'::INTERVAL";
+            if (time == null) {
+                expiryStr = "NULL";
+            } else if (time == 0) {
+                expiryStr = "TO_TIMESTAMP(0)";
+            }
+            handle.createUpdate("UPDATE users SET ban_expiry = " + expiryStr + " WHERE id = :who")
+                    .bind("who", user.getId())
+                    .bind("expiry", time)
+                    .execute();
+        });
+    }
+
+    @Override
+    public void updateBanReason(User user, String reason) {
+        queryStats.useHandle("updateBanReason", jdbi, handle -> handle.createUpdate("UPDATE users SET ban_reason = :ban_reason WHERE id = :who")
+                .bind("who", user.getId())
+                .bind("ban_reason", reason)
+                .execute());
+    }
+
+    @Override
+    public void updateUserShadowBanned(User user, boolean shadowBanned) {
+        queryStats.useHandle("updateUserShadowBanned", jdbi, handle -> handle.createUpdate("UPDATE users SET is_shadow_banned = :shadow_banned WHERE id = :who")
+                .bind("who", user.getId())
+                .bind("shadow_banned", shadowBanned)
+                .execute());
+    }
+
+    @Override
+    public void updateUserAgent(User user, String agent) {
+        queryStats.useHandle("updateUserAgent", jdbi, handle -> handle.createUpdate("UPDATE users SET user_agent = :user_agent WHERE id = :who")
+                .bind("who", user.getId())
+                .bind("user_agent", agent)
+                .execute());
+    }
+
+    @Override
+    public void updateUserIP(User user, String ip) {
+        queryStats.useHandle("updateUserIP", jdbi, handle -> handle.createUpdate("UPDATE users SET last_ip = :ip::INET WHERE id = :who")
+                .bind("who", user.getId())
+                .bind("ip", ip)
+                .execute());
+    }
+
+    @Override
+    public void updateUserStacked(User user, int stacked) {
+        queryStats.useHandle("updateUserStacked", jdbi, handle -> handle.createUpdate("UPDATE users SET stacked = :stacked WHERE id = :who")
+                .bind("who", user.getId())
+                .bind("stacked", stacked)
+                .execute());
+    }
+
+    @Override
+    public boolean isRenameRequested(int who) {
+        return queryStats.withHandle("isRenameRequested", jdbi, handle -> handle.select("SELECT is_rename_requested FROM users WHERE id = :who")
+                .bind("who", who)
+                .mapTo(Boolean.class)
+                .first());
+    }
+
+    @Override
+    public void setRenameRequested(int who, boolean isRequested) {
+        queryStats.useHandle("setRenameRequested", jdbi, handle -> handle.createUpdate("UPDATE users SET is_rename_requested = :is_requested WHERE id = :who")
+                .bind("who", who)
+                .bind("is_requested", isRequested)
+                .execute());
+    }
+
+    @Override
+    public void updateUsername(int who, String username) {
+        queryStats.useHandle("updateUsername", jdbi, handle -> handle.createUpdate("UPDATE users SET username = :username WHERE id = :who")
+                .bind("who", who)
+                .bind("username", username)
+                .execute());
+    }
+
+    @Override
+    public void setDiscordName(int who, String discordName) {
+        queryStats.useHandle("setDiscordName", jdbi, handle -> handle.createUpdate("UPDATE users SET discord_name = :name WHERE id = :who")
+                .bind("who", who)
+                .bind("name", discordName)
+                .execute());
+    }
+
+    @Override
+    public void setUserFactionBlocked(int who, boolean factionBlocked) {
+        queryStats.useHandle("setUserFactionBlocked", jdbi, handle -> handle.createUpdate("UPDATE users SET faction_restricted = :blocked WHERE id = :who")
+            .bind("who", who)
+            .bind("blocked", factionBlocked)
+            .execute());
+    }
+
+    @Override
+    public String getUserBanReason(int who) {
+        return queryStats.withHandle("getUserBanReason", jdbi, handle -> handle.select("SELECT ban_reason FROM users WHERE id = :who")
+                .bind("who", who)
+                .mapTo(String.class)
+                .first());
+    }
+
+    @Override
+    public int getUserPixelCount(int who) {
+        return queryStats.withHandle("getUserPixelCount", jdbi, handle -> handle.select("SELECT pixel_count FROM users WHERE id = :who")
+                .bind("who", who)
+                .mapTo(Integer.class)
+                .first());
+    }
+
+    @Override
+    public int getUserPixelCountAllTime(int who) {
+        return queryStats.withHandle("getUserPixelCountAllTime", jdbi, handle -> handle.select("SELECT pixel_count_alltime FROM users WHERE id = :who")
+                .bind("who", who)
+                .mapTo(Integer.class)
+                .first());
+    }
+
+    @Override
+    public void clearOldSessions() {
+        queryStats.useHandle("clearOldSessions", jdbi, handle -> handle.createUpdate("DELETE FROM sessions WHERE (time + '24 DAYS'::INTERVAL) < NOW()")
+                .execute());
+    }
+
+    @Override
+    public boolean didPixelChange(int x, int y) {
+        return queryStats.withHandle("didPixelChange", jdbi, handle -> handle.select("SELECT EXISTS(SELECT 1 FROM pixels WHERE x = :x AND y = :y AND most_recent)")
+                .bind("x", x)
+                .bind("y", y)
+                .mapTo(Boolean.class)
+                .first());
+    }
+
+    @Override
+    public boolean shouldPixelTimeIncrease(int who, int x, int y) {
+        return App.getConfig().getBoolean("selfPixelTimeIncrease") ? didPixelChange(x, y) : queryStats.withHandle("shouldPixelTimeIncrease", jdbi, handle -> handle.select("SELECT EXISTS(SELECT 1 FROM pixels WHERE x = :x AND y = :y AND who <> :who AND most_recent)")
+                .bind("who", who)
+                .bind("x", x)
+                .bind("y", y)
+                .mapTo(Boolean.class)
+                .first());
+    }
+
+    @Override
+    public boolean hasLastIPAlertFlag(int who) {
+        return queryStats.withHandle("hasLastIPAlertFlag", jdbi, handle -> handle.select("SELECT last_ip_alert FROM users WHERE id = :who")
+                .bind("who", who)
+                .mapTo(Boolean.class)
+                .first());
+    }
+
+    @Override
+    public void setLastIPAlertFlag(int who, boolean isFlagged) {
+        queryStats.useHandle("setLastIPAlertFlag", jdbi, handle -> handle.createUpdate("UPDATE users SET last_ip_alert = :flagged WHERE id = :who")
+                .bind("flagged", isFlagged)
+                .bind("who", who)
+                .execute());
+    }
+
+    @Override
+    public void insertAdminLog(int who, String message) {
+        Map<String, Object> binds = new HashMap<>();
+        binds.put("who", who);
+        binds.put("message", message);
+        binds.put("time", Instant.now().getEpochSecond());
+        auditLogWriter.submit("INSERT INTO admin_log (channel, level, message, time, userid) VALUES ('pxlsCanvas', 200, :message, :time, :who)", binds);
+    }
+
+    @Override
+    public void insertServerAdminLog(String message) {
+        Map<String, Object> binds = new HashMap<>();
+        binds.put("message", message);
+        binds.put("time", Instant.now().getEpochSecond());
+        auditLogWriter.submit("INSERT INTO admin_log (channel, level, message, time, userid) VALUES ('pxlsConsole', 200, :message, :time, NULL)", binds);
+    }
+
+    @Override
+    public Integer insertReport(int reporter, int reported, int pixel, int x, int y, String message) {
+        return queryStats.withHandle("insertReport", jdbi, handle -> handle.createUpdate("INSERT INTO reports (who, reported, pixel_id, x, y, message, time) VALUES (:reporter, :reported, :pixel, :x, :y, :message, (SELECT EXTRACT(EPOCH FROM NOW())))")
+                .bind("reporter", reporter)
+                .bind("reported", reported)
+                .bind("pixel", pixel)
+                .bind("x", x)
+                .bind("y", y)
+                .bind("message", message)
+                .executeAndReturnGeneratedKeys("id")
+                .mapTo(Integer.TYPE)
+                .first());
+    }
+
+    @Override
+    public List<DBChatReport> getChatReportsFromUser(int uid) {
+        return queryStats.withHandle("getChatReportsFromUser", jdbi, handle ->
+            handle.createQuery("SELECT * FROM chat_reports WHERE initiator = :uid ORDER BY time DESC")
+                .bind("uid", uid)
+                .map(new DBChatReport.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public List<DBCanvasReport> getCanvasReportsFromUser(int uid) {
+        return queryStats.withHandle("getCanvasReportsFromUser", jdbi, handle ->
+            handle.createQuery("SELECT * FROM reports WHERE who = :uid ORDER BY time DESC")
+                .bind("uid", uid)
+                .map(new DBCanvasReport.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public Integer insertServerReport(int reported, String message) {
+        return queryStats.withHandle("insertServerReport", jdbi, handle -> handle.createUpdate("INSERT INTO reports (who, pixel_id, x, y, message, reported, time) VALUES (0, 0, 0, 0, :message, :reported, (SELECT EXTRACT(EPOCH FROM NOW())))")
+                .bind("message", message)
+                .bind("reported", reported)
+                .executeAndReturnGeneratedKeys("id")
+                .mapTo(Integer.TYPE)
+                .first());
+    }
+
+    @Override
+    public boolean haveDuplicateIP(int who, String ip) {
+        return queryStats.withHandle("haveDuplicateIP", jdbi, handle -> handle.select("SELECT EXISTS(SELECT 1 FROM users WHERE (last_ip = :ip::INET OR signup_ip = :ip::INET) AND id <> :who )")
+                .bind("ip", ip)
+                .bind("who", who)
+                .mapTo(Boolean.class)
+                .first());
+    }
+
+    @Override
+    public int getDuplicateCount(int who, String ip) {
+        return queryStats.withHandle("getDuplicateCount", jdbi, handle -> handle.select("SELECT count(id) FROM users WHERE (last_ip = :ip::INET or signup_ip = :ip::INET) AND id <> :who")
+                .bind("ip", ip)
+                .bind("who", who)
+                .mapTo(Integer.class)
+                .first());
+    }
+
+    @Override
+    public List<Integer> getDuplicateUsers(int who, String ip) {
+        return queryStats.withHandle("getDuplicateUsers", jdbi, handle -> handle.select("SELECT id FROM users WHERE (last_ip = :ip::INET OR signup_ip = :ip::INET) AND id <> :who")
+                .bind("ip", ip)
+                .bind("who", who)
+                .mapTo(Integer.class)
+                .list());
+    }
+
+    @Override
+    public void insertLookup(Integer who, String ip) {
+        Map<String, Object> binds = new HashMap<>();
+        binds.put("who", who);
+        binds.put("ip", ip);
+        binds.put("time", Timestamp.from(Instant.now()));
+        auditLogWriter.submit("INSERT INTO lookups (who, time, ip) VALUES (:who, :time, :ip::INET)", binds);
+    }
+
+    @Override
+    public void setChatNameColor(int who, int color) {
+        queryStats.useHandle("setChatNameColor", jdbi, handle -> handle.createUpdate("UPDATE users SET chat_name_color = :color WHERE id = :who")
+                .bind("who", who)
+                .bind("color", color)
+                .execute());
+    }
+
+    @Override
+    public void insertBanLog(Integer initiatorID, int bannedID, long when, Long expiry, String action, String reason) {
+        if (expiry == null) expiry = 0L;
+        Map<String, Object> binds = new HashMap<>();
+        binds.put("when", when / 1000L);
+        binds.put("banner", initiatorID);
+        binds.put("banned", bannedID);
+        binds.put("expiry", expiry / 1000L);
+        binds.put("action", action);
+        binds.put("reason", reason);
+        auditLogWriter.submit("INSERT INTO banlogs (\"when\", banner, banned, ban_expiry, action, ban_reason) VALUES (:when, :banner, :banned, :expiry, :action, :reason)", binds);
+    }
+
+    /* CHAT */
+
+    @Override
+    public Integer createChatMessage(int authorID, long sent, String content, String filtered, boolean shadowBanned) {
+        return queryStats.withHandle("createChatMessage", jdbi, handle -> handle.createUpdate("INSERT INTO chat_messages (author, sent, content, filtered, shadow_banned) VALUES (:author, :sent, :content, :filtered, :shadow_banned)")
+                .bind("author", authorID)
+                .bind("sent", sent)
+                .bind("content", content)
+                .bind("filtered", filtered)
+                .bind("shadow_banned", shadowBanned)
+                .executeAndReturnGeneratedKeys("id")
+                    .mapTo(Integer.TYPE)
+                    .first());
+    }
+
+    @Override
+    public DBChatMessage getChatMessageByID(int id) {
+        return queryStats.withHandle("getChatMessageByID", jdbi, handle -> handle.select("SELECT * FROM chat_messages WHERE id = :id LIMIT 1")
+                .bind("id", id)
+                .map(new DBChatMessage.Mapper())
+                .first());
+    }
+
+    @Override
+    public List<DBChatMessage> getChatMessagesByAuthor(int authorID) {
+        return queryStats.withHandle("getChatMessagesByAuthor", jdbi, handle -> handle.select("SELECT * FROM chat_messages WHERE author = :author ORDER BY sent ASC")
+                .bind("author", authorID)
+                .map(new DBChatMessage.Mapper())
+                .list());
+    }
+
+    @Override
+    public List<DBChatMessage> getLastXMessagesFromUID(int authorID, int limit) {
+        return queryStats.withHandle("getLastXMessagesFromUID", jdbi, handle -> handle.select(SQL_LAST_MESSAGES_FROM_UID)
+            .bind("uid", authorID)
+            .bind("limit", limit)
+            .map(new DBChatMessage.Mapper())
+            .list());
+    }
+
+    @Override
+    public List<DBChatMessage> getLastXMessages(int x, boolean includePurged) {
+        return queryStats.withHandle("getLastXMessages", jdbi, handle -> handle.select(SQL_LAST_MESSAGES)
+                .bind("includePurged", includePurged)
+                .bind("limit", x)
+                .map(new DBChatMessage.Mapper())
+                .list());
+    }
+
+    @Override
+    public void updateChatBanPerma(int toUpdateID, boolean isPermaChatBanned) {
+        queryStats.useHandle("updateChatBanPerma", jdbi, handle -> handle.createUpdate("UPDATE users SET perma_chat_banned = :banned WHERE id = :id")
+                .bind("banned", isPermaChatBanned)
+                .bind("id", toUpdateID)
+                .execute());
+    }
+
+    @Override
+    public void updateChatBanExpiry(int targetID, long expiry) {
+        queryStats.useHandle("updateChatBanExpiry", jdbi, handle -> handle.createUpdate("UPDATE users SET chat_ban_expiry = :expiry WHERE id = :id")
+                .bind("expiry", new Timestamp(expiry))
+                .bind("id", targetID)
+                .execute());
+    }
+
+    @Override
+    public Integer insertChatReport(int cmid, int targetID, int initiatorID, String reportMessage) {
+        return queryStats.withHandle("insertChatReport", jdbi, handle -> handle.createUpdate("INSERT INTO chat_reports (cmid, target, initiator, report_message, time) VALUES (:cmid, :target, :initiator, :report_message, (SELECT EXTRACT(EPOCH FROM NOW())))")
+                .bind("cmid", cmid)
+                .bind("target", targetID)
+                .bind("initiator", initiatorID)
+                .bind("report_message", reportMessage)
+                .executeAndReturnGeneratedKeys("id")
+                    .mapTo(Integer.TYPE)
+                    .first());
+    }
+
+    @Override
+    public void purgeChat(User target, User initiator, int amount, String reason, boolean broadcast) {
+        queryStats.useHandle("purgeChat", jdbi, handle -> handle.createUpdate("UPDATE chat_messages SET purged = true, purged_by = :initiator, purge_reason = :reason WHERE author = :who")
+                .bind("initiator", initiator == null ? 0 : initiator.getId())
+                .bind("who", target.getId())
+                .bind("reason", reason)
+                .execute());
+        String initiatorName = initiator == null ? "CONSOLE" : initiator.getName();
+        int initiatorID = initiator == null ? 0 : initiator.getId();
+        String logReason = reason != null && reason.length() > 0 ? " with reason: " + reason : "";
+        String logMessage = String.format("<%s, %s> purged %s messages from <%s, %s>%s.", initiatorName, initiatorID, amount, target.getName(), target.getId(), logReason);
+        if (initiator == null) {
+            insertServerAdminLog(logMessage);
+        } else {
+            insertAdminLog(initiatorID, logMessage);
+        }
+        App.getServer().getPacketHandler().getChatHistory().purgeAuthor(target.getId(), new ChatMessage.Purge(initiatorID, reason));
+        if (broadcast) {
+            App.getServer().getPacketHandler().sendChatPurge(target, initiator, amount, reason);
+        }
+    }
+
+    @Override
+    public void purgeChatID(User target, User initiator, Integer id, String reason, boolean broadcast) {
+        queryStats.useHandle("purgeChatID", jdbi, handle -> handle.createUpdate("UPDATE chat_messages SET purged = true, purged_by = :initiator, purge_reason = :reason WHERE id = :id")
+                .bind("initiator", initiator.getId())
+                .bind("id", id)
+                .bind("reason", reason)
+                .execute());
+        String initiatorName = initiator == null ? "CONSOLE" : initiator.getName();
+        int initiatorID = initiator == null ? 0 : initiator.getId();
+        String logReason = reason != null && reason.length() > 0 ? " with reason: " + reason : "";
+        String logMessage = String.format("<%s, %s> purged message with id %d from <%s, %s>%s.", initiatorName, initiatorID, id, target.getName(), target.getId(), logReason);
+        if (initiator == null) {
+            insertServerAdminLog(logMessage);
+        } else {
+            insertAdminLog(initiatorID, logMessage);
+        }
+        App.getServer().getPacketHandler().getChatHistory().purgeIDs(Collections.singletonList(id), new ChatMessage.Purge(initiatorID, reason));
+        if (broadcast) {
+            App.getServer().getPacketHandler().sendSpecificPurge(target, initiator, id, reason);
+        }
+    }
+
+    @Override
+    public String getChatBanReason(int id) {
+        return queryStats.withHandle("getChatBanReason", jdbi, handle -> handle.select("SELECT chat_ban_reason FROM users WHERE id = :id")
+                .bind("id", id)
+                .mapTo(String.class)
+                .first());
+    }
+
+    @Override
+    public void updateChatBanReason(int id, String reason) {
+        queryStats.useHandle("updateChatBanReason", jdbi, handle -> handle.createUpdate("UPDATE users SET chat_ban_reason = :reason WHERE id = :id")
+                .bind("reason", reason)
+                .bind("id", id)
+                .execute());
+    }
+
+    @Override
+    public ServerChatLookup runChatLookupForUsername(String username, int history_limit) {
+        // we want to run all these queries with their own handle so we don't hit the pool x times.
+        return queryStats.withHandle("runChatLookupForUsername", jdbi, handle -> {
+            Optional<DBUser> dbu = handle.createQuery(SQL_USER_BY_NAME)
+                    .bind("username", username)
+                    .map(new DBUser.Mapper())
+                    .findFirst();
+            if (!dbu.isPresent()) return null;
+            DBUser dbUser = dbu.get();
+
+            List<DBExtendedChatban> chatbans = handle.createQuery("SELECT cb.*,u.username AS target_name,u1.username AS initiator_name FROM chatbans cb INNER JOIN users u ON u.id = cb.target INNER JOIN users u1 ON u1.id = cb.initiator WHERE cb.target = :uid ORDER BY \"when\" DESC;")
+                    .bind("uid", dbUser.id)
+                    .map(new DBExtendedChatban.Mapper())
+                    .list();
+
+            List<DBChatMessage> messages = handle.createQuery("SELECT * FROM chat_messages WHERE author = :uid ORDER BY sent DESC LIMIT :lim")
+                    .bind("uid", dbUser.id)
+                    .bind("lim", history_limit)
+                    .map(new DBChatMessage.Mapper())
+                    .list();
+
+            return new ServerChatLookup(dbUser, messages, chatbans);
+        });
+    }
+
+    /* END CHAT */
+
+    /* NOTIFICATIONS */
+
+    @Override
+    public List<DBNotification> getNotifications(boolean expired) {
+        return queryStats.withHandle("getNotifications", jdbi, handle -> handle.select("SELECT n.id, n.time, n.expiry, n.title, n.content, n.who, u.username AS who_name FROM notifications n LEFT OUTER JOIN users u ON u.id = n.who WHERE CASE WHEN :expired THEN TRUE ELSE (SELECT EXTRACT(EPOCH FROM NOW())) < n.expiry OR n.expiry = 0 END ORDER BY n.time DESC")
+                .bind("expired", expired)
+                .map(new DBNotification.Mapper())
+                .list());
+    }
+
+    @Override
+    public DBNotification getNotification(int id) {
+        return queryStats.withHandle("getNotification", jdbi, handle -> handle.select("SELECT n.id, n.time, n.expiry, n.title, n.content, n.who, u.username AS who_name FROM notifications n LEFT OUTER JOIN users u ON u.id = n.who WHERE n.id = :id")
+                .bind("id", id)
+                .map(new DBNotification.Mapper())
+                .first());
+    }
+
+    @Override
+    public void setNotificationExpiry(int id, long expiry) {
+        queryStats.useHandle("setNotificationExpiry", jdbi, handle -> handle.createUpdate("UPDATE notifications SET expiry = :expiry WHERE id = :id")
+                .bind("expiry", expiry)
+                .bind("id", id)
+                .execute());
+    }
+
+    @Override
+    public Integer createNotification(int creatorID, String title, String content, Long expiry) {
+        return queryStats.withHandle("createNotification", jdbi, handle -> handle.createUpdate("INSERT INTO notifications (time, expiry, title, content, who) VALUES (EXTRACT(epoch FROM CURRENT_TIMESTAMP)::INTEGER, :expiry, :title, :content, :who)")
+                .bind("who", creatorID)
+                .bind("title", title)
+                .bind("content", content)
+                .bind("expiry", expiry)
+                .executeAndReturnGeneratedKeys("id")
+                    .mapTo(Integer.TYPE)
+                    .first());
+    }
+
+    /* END NOTIFICATIONS */
+
+    /* CHATBAN LOGS */
+
+    @Override
+    public Integer initiateChatBan(int targetID, int initiatorID, long when, String type, long expiry, String reason, boolean purge) {
+        return queryStats.withHandle("initiateChatBan", jdbi, handle -> handle.createUpdate("INSERT INTO chatbans (target, initiator, \"when\", type, expiry, reason, purged) VALUES (:target, :initiator, :when, :type, :expiry, :reason, :purge)")
+                .bind("target", targetID)
+                .bind("initiator", initiatorID)
+                .bind("when", when)
+                .bind("type", type)
+                .bind("expiry", expiry)
+                .bind("reason", reason)
+                .bind("purge", purge)
+                .execute());
+    }
+
+    /* END CHATBAN LOGS */
+
+    @Override
+    public void insertOrUpdateIPLog(int id, String ip) {
+        Map<String, Object> binds = new HashMap<>();
+        binds.put("id", id);
+        binds.put("ip", ip);
+        binds.put("time", Timestamp.from(Instant.now()));
+        auditLogWriter.submit("INSERT INTO ip_log (\"user\", \"ip\", \"last_used\") VALUES (:id, :ip::INET, :time) ON CONFLICT (\"user\", \"ip\") DO UPDATE SET \"last_used\" = :time WHERE \"ip_log\".\"user\" = :id AND \"ip_log\".\"ip\" = :ip::INET", binds);
+    }
+
+    @Override
+    public DBFaction createFaction(String factionName, String factionTag, int owner_uid, Integer color) {
+        final Integer _color = color == null ? 0 : color;
+
+        return queryStats.withHandle("createFaction", jdbi, handle -> {
+            DBFaction toRet = handle.createQuery("INSERT INTO faction (\"name\", \"tag\", \"owner\", \"created\", \"color\", \"canvasCode\") VALUES (:name, :tag, :owner, now(), :color, :canvasCode) RETURNING *")
+                .bind("name", factionName)
+                .bind("tag", factionTag)
+                .bind("owner", owner_uid)
+                .bind("color", _color)
+                .bind("canvasCode", App.getConfig().getString("canvascode"))
+                .map(new DBFaction.Mapper())
+                .findFirst()
+                .orElse(null);
+            if (toRet != null) {
+                handle.createUpdate("INSERT INTO faction_membership (\"fid\", \"uid\") VALUES (:fid, :uid)")
+                    .bind("fid", toRet.id)
+                    .bind("uid", owner_uid)
+                    .execute();
+            }
+            return toRet;
+        });
+    }
+
+    @Override
+    public DBFaction getFactionByID(int fid) {
+        return queryStats.withHandle("getFactionByID", jdbi, handle ->
+            handle.createQuery("SELECT * FROM faction WHERE id = :fid")
+                .bind("fid", fid)
+                .map(new DBFaction.Mapper())
+                .findFirst()
+                .orElse(null)
+        );
+    }
+
+    @Override
+    public void joinFaction(int fid, int uid) {
+        queryStats.useHandle("joinFaction", jdbi, handle ->
+            handle.createUpdate("INSERT INTO faction_membership (\"fid\", \"uid\") VALUES (:fid, :uid) ON CONFLICT DO NOTHING")
+                .bind("fid", fid)
+                .bind("uid", uid)
+                .execute()
+        );
+    }
+
+    @Override
+    public void leaveFaction(int fid, int uid) {
+        queryStats.useHandle("leaveFaction", jdbi, handle -> {
+            handle.createUpdate("UPDATE users SET displayed_faction=null WHERE id=:uid AND displayed_faction=:fid")
+                .bind("uid", uid)
+                .bind("fid", fid)
+                .execute();
+            handle.createUpdate("DELETE FROM faction_membership WHERE fid = :fid AND uid = :uid")
+                .bind("fid", fid)
+                .bind("uid", uid)
+                .execute();
+        });
+    }
+
+    @Override
+    public List<DBFaction> getFactionsForUID(int uid) {
+        return queryStats.withHandle("getFactionsForUID", jdbi, handle ->
+            handle.createQuery("SELECT * FROM faction WHERE id IN (SELECT fid FROM faction_membership WHERE uid = :uid)")
+                .bind("uid", uid)
+                .map(new DBFaction.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public List<DBUser> getUsersForFID(int fid) {
+        return queryStats.withHandle("getUsersForFID", jdbi, handle ->
+            handle.createQuery("SELECT * FROM users WHERE id IN (SELECT uid FROM faction_membership WHERE fid = :fid)")
+                .bind("fid", fid)
+                .map(new DBUser.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public Integer getOwnedFactionCountForUID(int uid) {
+        return queryStats.withHandle("getOwnedFactionCountForUID", jdbi, handle ->
+            handle.createQuery("SELECT count(id) FROM faction WHERE owner = :uid")
+                .bind("uid", uid)
+                .mapTo(Integer.TYPE)
+                .findFirst()
+                .orElse(0)
+        );
+    }
+
+    @Override
+    public List<DBUser> getBansForFID(int fid) {
+        return queryStats.withHandle("getBansForFID", jdbi, handle ->
+            handle.createQuery("SELECT * FROM users WHERE id IN (SELECT uid FROM faction_ban WHERE fid = :fid)")
+                .bind("fid", fid)
+                .map(new DBUser.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public void updateFaction(Faction faction) {
+        queryStats.useHandle("updateFaction", jdbi, handle ->
+            handle.createUpdate("UPDATE faction SET name=:name,tag=:tag,owner=:owner,color=:color WHERE id=:id")
+                .bind("name", faction.getName())
+                .bind("tag", faction.getTag())
+                .bind("owner", faction.getOwner())
+                .bind("id", faction.getId())
+                .bind("color", faction.getColor())
+                .execute()
+        );
+    }
+
+    @Override
+    public void deleteFactionByFID(int fid) {
+        queryStats.useHandle("deleteFactionByFID", jdbi, handle -> { // only consume a single connection for these ops.
+            handle.createUpdate("UPDATE users SET displayed_faction=null WHERE displayed_faction=:fid") // can't delete fid if there's a dependent present.
+                .bind("fid", fid)
+                .execute();
+            handle.createUpdate("DELETE FROM faction_membership WHERE fid=:fid")
+                .bind("fid", fid)
+                .execute();
+            handle.createUpdate("DELETE FROM faction_ban WHERE fid=:fid")
+                .bind("fid", fid)
+                .execute();
+            handle.createUpdate("DELETE FROM faction WHERE id=:fid")
+                .bind("fid", fid)
+                .execute();
+        });
+    }
+
+    @Override
+    public List<DBFaction> pruneOrphanedFactions() {
+        return queryStats.withHandle("pruneOrphanedFactions", jdbi, handle ->
+            handle.createQuery("DELETE FROM faction WHERE id NOT IN (SELECT fid FROM faction_membership GROUP BY fid) RETURNING *")
+                .map(new DBFaction.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public List<DBFaction> getOrphanedFactions() {
+        return queryStats.withHandle("getOrphanedFactions", jdbi, handle ->
+            handle.createQuery("SELECT * FROM faction WHERE id NOT IN (SELECT fid FROM faction_membership GROUP BY fid)")
+                .map(new DBFaction.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public void setDisplayedFactionForUID(int uid, Integer fid) {
+        queryStats.useHandle("setDisplayedFactionForUID", jdbi, handle ->
+            handle.createUpdate("UPDATE users SET displayed_faction=:fid WHERE id=:uid")
+                .bind("fid", fid)
+                .bind("uid", uid)
+                .execute()
+        );
+    }
+
+    @Override
+    public void removeFactionBanForUID(int uid, int fid) {
+        queryStats.useHandle("removeFactionBanForUID", jdbi, handle -> handle.createUpdate("DELETE FROM faction_ban WHERE uid=:uid AND fid=:fid")
+            .bind("uid", uid)
+            .bind("fid", fid)
+            .execute()
+        );
+    }
+
+    @Override
+    public void addFactionBanForUID(int uid, int fid) {
+        queryStats.useHandle("addFactionBanForUID", jdbi, handle -> {
+            handle.createUpdate("DELETE FROM faction_membership WHERE uid=:uid AND fid=:fid")
+                .bind("uid", uid)
+                .bind("fid", fid)
+                .execute();
+            handle.createUpdate("INSERT INTO faction_ban (\"uid\", \"fid\") VALUES (:uid, :fid) ON CONFLICT DO NOTHING")
+                .bind("uid", uid)
+                .bind("fid", fid)
+                .execute();
+        });
+    }
+
+    @Override
+    public void setFactionOwnerForFID(int fid, int uid) {
+        queryStats.useHandle("setFactionOwnerForFID", jdbi, handle ->
+            handle.createUpdate("UPDATE faction SET owner = :uid WHERE id = :fid")
+                .bind("fid", fid)
+                .bind("uid", uid)
+                .execute()
+        );
+    }
+
+    @Override
+    public List<DBFactionSearch> searchFactions(String search, int offset, User searchContext) {
+        // note (socc): there was no performance boost by indexing name and performing lower() searches rather than using ilike, regardless of where the anchor was.
+        //              if something changes in future psql versions, we should reconfirm.
+        return queryStats.withHandle("searchFactions", jdbi, handle ->
+            handle.createQuery("SELECT f.*,count(fm.fid) AS \"memberCount\",(case when :userCtx is null then false else exists(select fm1.fid from faction_membership fm1 where fm1.fid=f.id and fm1.uid=:userCtx) end) as \"userJoined\" FROM faction f INNER JOIN faction_membership fm ON fm.fid = f.id WHERE f.name ILIKE concat('%', :search, '%') GROUP BY f.id ORDER BY \"memberCount\" DESC, \"canvasCode\" DESC, \"id\" DESC LIMIT 50 OFFSET :offset")
+                .bind("search", search)
+                .bind("offset", offset)
+                .bind("userCtx", searchContext == null ? null : searchContext.getId())
+                .map(new DBFactionSearch.Mapper())
+                .list()
+        );
+    }
+
+    @Override
+    public void setColorForFID(int fid, int color) {
+        queryStats.useHandle("setColorForFID", jdbi, handle ->
+            handle.createUpdate("UPDATE factions SET color = :color WHERE id = :fid")
+                .bind("fid", fid)
+                .bind("color", color)
+                .execute()
+        );
+    }
+
+    @Override
+    public DBUserPixelCounts modifyPixelCounts(int who, int amount, boolean increaseCurrent, boolean increaseAllTime) {
+        return queryStats.withHandle("modifyPixelCounts", jdbi, handle ->
+            handle.createQuery("UPDATE users SET pixel_count = pixel_count + :current_amount, pixel_count_alltime = pixel_count_alltime + :alltime_amount WHERE id = :who RETURNING pixel_count, pixel_count_alltime")
+                .bind("who", who)
+                .bind("current_amount", increaseCurrent ? amount : 0)
+                .bind("alltime_amount", increaseAllTime ? amount : 0)
+                .map(new DBUserPixelCounts.Mapper())
+                .findFirst()
+                .orElse(null)
+        );
+    }
+
+    /**
+     * @return The per-query latency and pool wait statistics.
+     */
+    public QueryStats getQueryStats() {
+        return queryStats;
+    }
+
+    /**
+     * @return The {@link AuditLogWriter} used for the append-only audit tables.
+     */
+    public AuditLogWriter getAuditLogWriter() {
+        return auditLogWriter;
+    }
+
+    /**
+     * Runs <pre>EXPLAIN</pre> on the hot lookup queries to verify that they are served by the indexes
+     *  created in {@link MigrationRunner}. Sequential scans are disabled for the check so that small
+     *  tables still report whether an index is usable.
+     * @return The query plans, keyed by query name.
+     */
+    public Map<String, List<String>> explainHotQueries() {
+        // the statements the real methods run, with placeholder parameters
+        Map<String, Function<Handle, Query>> queries = new LinkedHashMap<>();
+        queries.put("getUserUndoPixel", handle -> handle.select("EXPLAIN " + SQL_USER_UNDO_PIXEL).bind("who", 0));
+        queries.put("getRollbackPixels", handle -> handle.select("EXPLAIN " + SQL_ROLLBACK_PIXELS).bind("who", 0).bind("seconds", 60));
+        queries.put("getUndoPixels", handle -> handle.select("EXPLAIN " + SQL_UNDO_PIXELS).bind("who", 0));
+        queries.put("getPixelAt", handle -> handle.select("EXPLAIN " + SQL_PIXEL_AT).bind("x", 0).bind("y", 0));
+        queries.put("getLastXMessagesFromUID", handle -> handle.select("EXPLAIN " + SQL_LAST_MESSAGES_FROM_UID).bind("uid", 0).bind("limit", 100));
+        queries.put("getLastXMessages", handle -> handle.select("EXPLAIN " + SQL_LAST_MESSAGES).bind("includePurged", false).bind("limit", 100));
+        queries.put("getUserByLogin", handle -> handle.select("EXPLAIN " + SQL_USER_BY_LOGIN).bind("login", ""));
+        Map<String, List<String>> plans = new LinkedHashMap<>();
+        jdbi.useTransaction(handle -> {
+            handle.execute("SET LOCAL enable_seqscan = off");
+            queries.forEach((name, query) -> plans.put(name, query.apply(handle).mapTo(String.class).list()));
+            handle.rollback();
+        });
+        return plans;
+    }
+
+    /**
+     * @return The {@link PixelPartitions} managing the per-canvas partitions of the pixels table.
+     */
+    public PixelPartitions getPixelPartitions() {
+        return pixelPartitions;
+    }
+
+    /**
+     * @return The {@link ReplicaRouter} holding the primary and (optional) replica connection pools.
+     */
+    public ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    @Override
+    public void close() {
+        auditLogWriter.close(10000);
+    }
+}
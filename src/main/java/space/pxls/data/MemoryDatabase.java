@@ -0,0 +1,1041 @@
+package space.pxls.data;
+
+import space.pxls.App;
+import space.pxls.server.packets.chat.ChatMessage;
+import space.pxls.server.packets.chat.ServerChatLookup;
+import space.pxls.user.Faction;
+import space.pxls.user.Role;
+import space.pxls.user.User;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link Database} that keeps everything in memory, selected with <pre>database.backend: "memory"</pre>.<br>
+ * It mirrors the semantics of the queries in {@link JdbiDatabase} (most recent pixel tracking, rollbacks,
+ *  undos, bans, chat purges, faction membership...) so the server behaves the same, just without the
+ *  round trips. Nothing is persisted: everything is lost on restart. Audit rows (lookups, ban logs,
+ *  IP logs) are discarded and admin logs are only written to the server log.
+ */
+public class MemoryDatabase implements Database {
+    private static final long SESSION_LIFETIME_MS = TimeUnit.DAYS.toMillis(24);
+
+    // pixels are only ever mutated under the write lock since most operations touch several rows at once
+    private final ReadWriteLock pixelLock = new ReentrantReadWriteLock();
+    private final Map<Integer, PixelRow> pixels = new ConcurrentHashMap<>();
+    private final Map<Long, List<PixelRow>> pixelsByPosition = new ConcurrentHashMap<>();
+    private final Map<Integer, List<PixelRow>> pixelsByUser = new ConcurrentHashMap<>();
+    private final AtomicInteger pixelIDs = new AtomicInteger();
+
+    private final Map<Integer, UserRow> users = new ConcurrentHashMap<>();
+    private final Map<String, Integer> usersByLogin = new ConcurrentHashMap<>();
+    private final Map<String, Integer> usersByName = new ConcurrentHashMap<>();
+    private final AtomicInteger userIDs = new AtomicInteger();
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private final ConcurrentNavigableMap<Integer, DBChatMessage> chatMessages = new ConcurrentSkipListMap<>();
+    private final AtomicInteger chatMessageIDs = new AtomicInteger();
+    private final ConcurrentNavigableMap<Integer, DBChatban> chatbans = new ConcurrentSkipListMap<>();
+    private final AtomicInteger chatbanIDs = new AtomicInteger();
+
+    private final ConcurrentNavigableMap<Integer, DBCanvasReport> canvasReports = new ConcurrentSkipListMap<>();
+    private final AtomicInteger canvasReportIDs = new AtomicInteger();
+    private final ConcurrentNavigableMap<Integer, DBChatReport> chatReports = new ConcurrentSkipListMap<>();
+    private final AtomicInteger chatReportIDs = new AtomicInteger();
+
+    private final ConcurrentNavigableMap<Integer, NotificationRow> notifications = new ConcurrentSkipListMap<>();
+    private final AtomicInteger notificationIDs = new AtomicInteger();
+
+    private final Map<Integer, DBFaction> factions = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> factionMembers = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> factionBans = new ConcurrentHashMap<>();
+    private final AtomicInteger factionIDs = new AtomicInteger();
+
+    /* PIXELS */
+
+    private static long position(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private List<PixelRow> rowsAt(int x, int y) {
+        return pixelsByPosition.getOrDefault(position(x, y), Collections.emptyList());
+    }
+
+    private PixelRow insertPixel(int x, int y, int color, Integer who, Integer secondaryID, boolean modAction, boolean rollbackAction, boolean undoAction, boolean mostRecent) {
+        PixelRow row = new PixelRow(pixelIDs.incrementAndGet(), x, y, color, who, secondaryID, System.currentTimeMillis(), modAction, rollbackAction, undoAction, mostRecent);
+        pixels.put(row.id, row);
+        pixelsByPosition.computeIfAbsent(position(x, y), k -> new ArrayList<>()).add(row);
+        if (who != null) pixelsByUser.computeIfAbsent(who, k -> new ArrayList<>()).add(row);
+        return row;
+    }
+
+    private void clearMostRecent(int x, int y, Predicate<PixelRow> filter) {
+        for (PixelRow row : rowsAt(x, y)) {
+            if (filter.test(row)) row.mostRecent = false;
+        }
+    }
+
+    private void setMostRecent(int id, boolean mostRecent, Boolean undone) {
+        PixelRow row = pixels.get(id);
+        if (row == null) return;
+        row.mostRecent = mostRecent;
+        if (undone != null) row.undone = undone;
+    }
+
+    /**
+     * @return The most recent row at the specified position, latest first, like <pre>ORDER BY time DESC LIMIT 1</pre>.
+     */
+    private Optional<PixelRow> mostRecentAt(int x, int y) {
+        return rowsAt(x, y).stream()
+            .filter(row -> row.mostRecent)
+            .max(Comparator.comparingLong((PixelRow row) -> row.time).thenComparingInt(row -> row.id));
+    }
+
+    private String factionName(Integer fid) {
+        if (fid == null) return null;
+        DBFaction faction = factions.get(fid);
+        return faction == null ? null : faction.name;
+    }
+
+    private DBPixelPlacementFull toFullPixel(PixelRow row) {
+        UserRow user = row.who == null ? null : users.get(row.who);
+        if (user == null) {
+            return new DBPixelPlacementFull(row.id, row.x, row.y, row.color, row.secondaryID == null ? 0 : row.secondaryID, row.time,
+                0, null, null, 0, 0, 0, null, false, row.modAction, row.undoAction, null, null, null);
+        }
+        synchronized (user) {
+            return new DBPixelPlacementFull(row.id, row.x, row.y, row.color, row.secondaryID == null ? 0 : row.secondaryID, row.time,
+                user.id, user.username, user.login, user.banExpiry == null ? 0 : user.banExpiry, user.pixelCount, user.pixelCountAllTime,
+                user.banReason, user.banExpiry != null, row.modAction, row.undoAction, user.userAgent, user.discordName, factionName(user.displayedFaction));
+        }
+    }
+
+    private <T> T withPixelReadLock(Supplier<T> supplier) {
+        pixelLock.readLock().lock();
+        try {
+            return supplier.get();
+        } finally {
+            pixelLock.readLock().unlock();
+        }
+    }
+
+    private <T> T withPixelWriteLock(Supplier<T> supplier) {
+        pixelLock.writeLock().lock();
+        try {
+            return supplier.get();
+        } finally {
+            pixelLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Integer placePixel(int x, int y, int color, User who, boolean mod_action) {
+        return withPixelWriteLock(() -> {
+            Integer secondID = rowsAt(x, y).stream()
+                .filter(row -> row.mostRecent)
+                .map(row -> row.id)
+                .max(Integer::compare)
+                .orElse(null);
+            clearMostRecent(x, y, row -> true);
+            return insertPixel(x, y, color, who != null ? who.getId() : 0, secondID, mod_action, false, false, true).id;
+        });
+    }
+
+    @Override
+    public Optional<DBPixelPlacementFull> getFullPixelAt(int x, int y) {
+        return withPixelReadLock(() -> mostRecentAt(x, y).map(this::toFullPixel));
+    }
+
+    @Override
+    public Optional<DBPixelPlacement> getPixelAt(int x, int y) {
+        return withPixelReadLock(() -> mostRecentAt(x, y)
+            // pixels without an author (nukes) aren't looked up, same as the LEFT JOIN in JdbiDatabase
+            .filter(row -> row.who != null && users.containsKey(row.who))
+            .map(this::toPixel));
+    }
+
+    @Override
+    public List<DBPixelPlacementFull> getFullPixelsAt(int[] xs, int[] ys) {
+        return withPixelReadLock(() -> {
+            List<DBPixelPlacementFull> result = new ArrayList<>();
+            for (int i = 0; i < xs.length; i++) {
+                mostRecentAt(xs[i], ys[i]).map(this::toFullPixel).ifPresent(result::add);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public List<DBPixelPlacement> getPixelsAt(int[] xs, int[] ys) {
+        return withPixelReadLock(() -> {
+            List<DBPixelPlacement> result = new ArrayList<>();
+            for (int i = 0; i < xs.length; i++) {
+                mostRecentAt(xs[i], ys[i])
+                    .filter(row -> row.who != null && users.containsKey(row.who))
+                    .map(this::toPixel)
+                    .ifPresent(result::add);
+            }
+            return result;
+        });
+    }
+
+    private DBPixelPlacement toPixel(PixelRow row) {
+        DBPixelPlacementFull full = toFullPixel(row);
+        String username = full.login.startsWith("ip:") ? "-snip-" : full.username;
+        return new DBPixelPlacement(full.id, full.x, full.y, full.color, full.time, username, full.modAction,
+            full.pixelCount, full.pixelCountAlltime, full.discordName, full.faction);
+    }
+
+    @Override
+    public DBPixelPlacementFull getPixelByID(int id) {
+        return withPixelReadLock(() -> getPixelByIDLocked(id));
+    }
+
+    private DBPixelPlacementFull getPixelByIDLocked(int id) {
+        PixelRow row = pixels.get(id);
+        if (row == null) return null;
+        DBPixelPlacementFull pixel = toFullPixel(row);
+        return pixel.userId == 0 ? null : pixel;
+    }
+
+    @Override
+    public List<DBRollbackPixel> getRollbackPixels(User who, int fromSeconds) {
+        long since = System.currentTimeMillis() - fromSeconds * 1000L;
+        return withPixelReadLock(() -> pixelsByUser.getOrDefault(who.getId(), Collections.emptyList()).stream()
+            .filter(row -> row.mostRecent && row.time > since)
+            .map(row -> {
+                DBPixelPlacementFull toPixel = row.secondaryID == null ? null : getPixelByIDLocked(row.secondaryID);
+                while (toPixel != null && (toPixel.banned || toPixel.ban_expiry > Instant.now().toEpochMilli() || toPixel.userId == who.getId() || toPixel.undoAction)) {
+                    toPixel = toPixel.secondaryId != 0 ? getPixelByIDLocked(toPixel.secondaryId) : null;
+                }
+                return new DBRollbackPixel(toPixel, row.id);
+            })
+            .collect(Collectors.toList()));
+    }
+
+    @Override
+    public List<DBPixelPlacementFull> getUndoPixels(User who) {
+        return withPixelReadLock(() -> pixelsByUser.getOrDefault(who.getId(), Collections.emptyList()).stream()
+            .filter(row -> row.rollbackAction && row.secondaryID != null)
+            .map(row -> row.secondaryID)
+            .distinct()
+            .map(pixels::get)
+            .filter(Objects::nonNull)
+            // Filter out places where pixels were placed after the initial rollback.
+            .filter(from -> rowsAt(from.x, from.y).stream().noneMatch(row -> row.mostRecent && row.id > from.id))
+            .map(this::toFullPixel)
+            .collect(Collectors.toList()));
+    }
+
+    @Override
+    public Integer putUndoPixel(int x, int y, int color, User who, int from) {
+        return withPixelWriteLock(() -> {
+            PixelRow row = insertPixel(x, y, color, who == null ? 0 : who.getId(), null, false, true, false, false);
+            setMostRecent(from, true, null);
+            return row.id;
+        });
+    }
+
+    @Override
+    public Integer putRollbackPixel(User who, int from, int to) {
+        return withPixelWriteLock(() -> {
+            PixelRow target = pixels.get(to);
+            PixelRow row = target == null ? null : insertPixel(target.x, target.y, target.color, who.getId(), from, false, true, false, false);
+            setMostRecent(to, true, null);
+            setMostRecent(from, false, null);
+            return row == null ? 0 : row.id;
+        });
+    }
+
+    @Override
+    public Integer putRollbackPixelNoPrevious(int x, int y, User who, int from) {
+        return withPixelWriteLock(() -> {
+            PixelRow row = insertPixel(x, y, App.getDefaultColor(x, y), who.getId(), from, false, true, false, false);
+            clearMostRecent(x, y, r -> true);
+            return row.id;
+        });
+    }
+
+    @Override
+    public Integer putNukePixel(int x, int y, int color) {
+        return withPixelWriteLock(() -> {
+            Optional<DBPixelPlacementFull> pp = mostRecentAt(x, y).map(this::toFullPixel);
+            clearMostRecent(x, y, row -> true);
+            return insertPixel(x, y, color, null, null, false, false, false, pp.isEmpty() || pp.get().secondaryId > 0).id;
+        });
+    }
+
+    @Override
+    public Integer putNukePixel(int x, int y, Integer replace, int color) {
+        return withPixelWriteLock(() -> {
+            Optional<DBPixelPlacementFull> pp = mostRecentAt(x, y).map(this::toFullPixel);
+            clearMostRecent(x, y, row -> replace != null && row.color == replace);
+            return insertPixel(x, y, color, null, null, false, false, false, pp.isEmpty() || pp.get().secondaryId > 0).id;
+        });
+    }
+
+    @Override
+    public DBPixelPlacementFull getUserUndoPixel(User who) {
+        return withPixelReadLock(() -> pixelsByUser.getOrDefault(who.getId(), Collections.emptyList()).stream()
+            .filter(row -> !row.rollbackAction)
+            .max(Comparator.comparingInt(row -> row.id))
+            .map(this::toFullPixel)
+            .orElse(null));
+    }
+
+    @Override
+    public void putUserUndoPixel(DBPixelPlacementFull backPixel, User who, int from) {
+        withPixelWriteLock(() -> {
+            insertPixel(backPixel.x, backPixel.y, backPixel.color, who == null ? 0 : who.getId(), null, false, false, true, false);
+            setMostRecent(backPixel.id, true, false);
+            setMostRecent(from, false, true);
+            return null;
+        });
+    }
+
+    @Override
+    public void putUserUndoPixel(int x, int y, int color, User who, int from) {
+        withPixelWriteLock(() -> {
+            insertPixel(x, y, color, who == null ? 0 : who.getId(), null, false, false, true, false);
+            setMostRecent(from, false, true);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean didPixelChange(int x, int y) {
+        return withPixelReadLock(() -> rowsAt(x, y).stream().anyMatch(row -> row.mostRecent));
+    }
+
+    @Override
+    public boolean shouldPixelTimeIncrease(int who, int x, int y) {
+        if (App.getConfig().getBoolean("selfPixelTimeIncrease")) return didPixelChange(x, y);
+        return withPixelReadLock(() -> rowsAt(x, y).stream().anyMatch(row -> row.mostRecent && row.who != null && row.who != who));
+    }
+
+    /* USERS */
+
+    private Optional<DBUser> toDBUser(Integer id) {
+        UserRow user = id == null ? null : users.get(id);
+        if (user == null) return Optional.empty();
+        synchronized (user) {
+            return Optional.of(user.toDBUser());
+        }
+    }
+
+    private void updateUser(int id, Consumer<UserRow> update) {
+        UserRow user = users.get(id);
+        if (user == null) return;
+        synchronized (user) {
+            update.accept(user);
+        }
+    }
+
+    private <T> T readUser(int id, Function<UserRow, T> read, T fallback) {
+        UserRow user = users.get(id);
+        if (user == null) return fallback;
+        synchronized (user) {
+            return read.apply(user);
+        }
+    }
+
+    @Override
+    public void updateUserTime(int id, long seconds) {
+        updateUser(id, user -> user.cooldownExpiry = System.currentTimeMillis() + seconds * 1000L);
+    }
+
+    @Override
+    public Optional<DBUser> getUserByLogin(String login) {
+        return toDBUser(usersByLogin.get(login));
+    }
+
+    @Override
+    public Optional<DBUser> getUserByName(String name) {
+        return toDBUser(usersByName.get(name));
+    }
+
+    @Override
+    public Optional<DBUser> getUserByID(int who) {
+        return toDBUser(who);
+    }
+
+    @Override
+    public Optional<DBUser> createUser(String name, String login, String ip) {
+        synchronized (users) {
+            if (usersByName.containsKey(name) || usersByLogin.containsKey(login)) {
+                throw new IllegalArgumentException("A user with this name or login already exists");
+            }
+            UserRow user = new UserRow(userIDs.incrementAndGet(), name, login, ip, App.getConfig().getInt("chat.defaultColorIndex"));
+            users.put(user.id, user);
+            usersByName.put(name, user.id);
+            usersByLogin.put(login, user.id);
+        }
+        return getUserByName(name);
+    }
+
+    @Override
+    public List<Role> getUserRoles(int who) {
+        return readUser(who, user -> new ArrayList<>(user.roles), new ArrayList<>());
+    }
+
+    @Override
+    public void setUserRoles(int userID, List<Role> roles) {
+        updateUser(userID, user -> user.roles = new ArrayList<>(roles));
+    }
+
+    @Override
+    public void updateBan(User user, Integer time) {
+        Long expiry = time == null ? null : time == 0 ? 0L : System.currentTimeMillis() + time * 1000L;
+        updateUser(user.getId(), row -> row.banExpiry = expiry);
+    }
+
+    @Override
+    public void updateBanReason(User user, String reason) {
+        updateUser(user.getId(), row -> row.banReason = reason);
+    }
+
+    @Override
+    public void updateUserShadowBanned(User user, boolean shadowBanned) {
+        updateUser(user.getId(), row -> row.shadowBanned = shadowBanned);
+    }
+
+    @Override
+    public void updateUserAgent(User user, String agent) {
+        updateUser(user.getId(), row -> row.userAgent = agent);
+    }
+
+    @Override
+    public void updateUserIP(User user, String ip) {
+        updateUser(user.getId(), row -> row.lastIP = ip);
+    }
+
+    @Override
+    public void updateUserStacked(User user, int stacked) {
+        updateUser(user.getId(), row -> row.stacked = stacked);
+    }
+
+    @Override
+    public boolean isRenameRequested(int who) {
+        return readUser(who, user -> user.renameRequested, false);
+    }
+
+    @Override
+    public void setRenameRequested(int who, boolean isRequested) {
+        updateUser(who, user -> user.renameRequested = isRequested);
+    }
+
+    @Override
+    public void updateUsername(int who, String username) {
+        synchronized (users) {
+            if (usersByName.containsKey(username)) {
+                throw new IllegalArgumentException("A user with this name already exists");
+            }
+            updateUser(who, user -> {
+                usersByName.remove(user.username, who);
+                user.username = username;
+                usersByName.put(username, who);
+            });
+        }
+    }
+
+    @Override
+    public void setDiscordName(int who, String discordName) {
+        updateUser(who, user -> user.discordName = discordName);
+    }
+
+    @Override
+    public void setUserFactionBlocked(int who, boolean factionBlocked) {
+        updateUser(who, user -> user.factionRestricted = factionBlocked);
+    }
+
+    @Override
+    public String getUserBanReason(int who) {
+        return readUser(who, user -> user.banReason, null);
+    }
+
+    @Override
+    public int getUserPixelCount(int who) {
+        return readUser(who, user -> user.pixelCount, 0);
+    }
+
+    @Override
+    public int getUserPixelCountAllTime(int who) {
+        return readUser(who, user -> user.pixelCountAllTime, 0);
+    }
+
+    @Override
+    public boolean hasLastIPAlertFlag(int who) {
+        return readUser(who, user -> user.lastIPAlert, false);
+    }
+
+    @Override
+    public void setLastIPAlertFlag(int who, boolean isFlagged) {
+        updateUser(who, user -> user.lastIPAlert = isFlagged);
+    }
+
+    private Stream<UserRow> usersWithIP(int who, String ip) {
+        return users.values().stream()
+            .filter(user -> user.id != who)
+            .filter(user -> {
+                synchronized (user) {
+                    return ip.equals(user.lastIP) || ip.equals(user.signupIP);
+                }
+            });
+    }
+
+    @Override
+    public boolean haveDuplicateIP(int who, String ip) {
+        return usersWithIP(who, ip).findAny().isPresent();
+    }
+
+    @Override
+    public int getDuplicateCount(int who, String ip) {
+        return (int) usersWithIP(who, ip).count();
+    }
+
+    @Override
+    public List<Integer> getDuplicateUsers(int who, String ip) {
+        return usersWithIP(who, ip).map(user -> user.id).collect(Collectors.toList());
+    }
+
+    @Override
+    public void setChatNameColor(int who, int color) {
+        updateUser(who, user -> user.chatNameColor = color);
+    }
+
+    @Override
+    public DBUserPixelCounts modifyPixelCounts(int who, int amount, boolean increaseCurrent, boolean increaseAllTime) {
+        return readUser(who, user -> {
+            if (increaseCurrent) user.pixelCount += amount;
+            if (increaseAllTime) user.pixelCountAllTime += amount;
+            return new DBUserPixelCounts(user.pixelCount, user.pixelCountAllTime);
+        }, null);
+    }
+
+    /* SESSIONS */
+
+    @Override
+    public Optional<DBUser> getUserByToken(String token) {
+        Session session = sessions.get(token);
+        return session == null ? Optional.empty() : toDBUser(session.who);
+    }
+
+    @Override
+    public void createSession(int who, String token) {
+        sessions.put(token, new Session(who));
+    }
+
+    @Override
+    public void destroySession(String token) {
+        sessions.remove(token);
+    }
+
+    @Override
+    public void updateSession(String token) {
+        Session session = sessions.get(token);
+        if (session != null) session.time = System.currentTimeMillis();
+    }
+
+    @Override
+    public void clearOldSessions() {
+        long cutoff = System.currentTimeMillis() - SESSION_LIFETIME_MS;
+        sessions.values().removeIf(session -> session.time < cutoff);
+    }
+
+    /* LOGS */
+
+    @Override
+    public void insertAdminLog(int who, String message) {
+        App.getLogger().info("[admin log] <{}> {}", who, message);
+    }
+
+    @Override
+    public void insertServerAdminLog(String message) {
+        App.getLogger().info("[admin log] <console> {}", message);
+    }
+
+    @Override
+    public void insertLookup(Integer who, String ip) {
+        // not kept in memory
+    }
+
+    @Override
+    public void insertBanLog(Integer initiatorID, int bannedID, long when, Long expiry, String action, String reason) {
+        // not kept in memory
+    }
+
+    @Override
+    public void insertOrUpdateIPLog(int id, String ip) {
+        // not kept in memory
+    }
+
+    /* REPORTS */
+
+    private static int now() {
+        return (int) Instant.now().getEpochSecond();
+    }
+
+    @Override
+    public Integer insertReport(int reporter, int reported, int pixel, int x, int y, String message) {
+        int id = canvasReportIDs.incrementAndGet();
+        canvasReports.put(id, new DBCanvasReport(id, reporter, x, y, pixel, reported, 0, now(), false, message));
+        return id;
+    }
+
+    @Override
+    public List<DBChatReport> getChatReportsFromUser(int uid) {
+        return chatReports.descendingMap().values().stream()
+            .filter(report -> report.initiator == uid)
+            .sorted(Comparator.comparing((DBChatReport report) -> report.time).reversed())
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<DBCanvasReport> getCanvasReportsFromUser(int uid) {
+        return canvasReports.descendingMap().values().stream()
+            .filter(report -> report.who == uid)
+            .sorted(Comparator.comparing((DBCanvasReport report) -> report.time).reversed())
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public Integer insertServerReport(int reported, String message) {
+        int id = canvasReportIDs.incrementAndGet();
+        canvasReports.put(id, new DBCanvasReport(id, 0, 0, 0, 0, reported, 0, now(), false, message));
+        return id;
+    }
+
+    @Override
+    public Integer insertChatReport(int cmid, int targetID, int initiatorID, String reportMessage) {
+        int id = chatReportIDs.incrementAndGet();
+        chatReports.put(id, new DBChatReport(id, now(), cmid, reportMessage, targetID, initiatorID, 0, false));
+        return id;
+    }
+
+    /* CHAT */
+
+    @Override
+    public Integer createChatMessage(int authorID, long sent, String content, String filtered, boolean shadowBanned) {
+        int id = chatMessageIDs.incrementAndGet();
+        chatMessages.put(id, new DBChatMessage(id, authorID, sent, content, filtered, false, 0, null, shadowBanned));
+        return id;
+    }
+
+    @Override
+    public DBChatMessage getChatMessageByID(int id) {
+        return chatMessages.get(id);
+    }
+
+    @Override
+    public List<DBChatMessage> getChatMessagesByAuthor(int authorID) {
+        return chatMessages.values().stream()
+            .filter(message -> message.author_uid == authorID)
+            .sorted(Comparator.comparing((DBChatMessage message) -> message.sent))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<DBChatMessage> getLastXMessagesFromUID(int authorID, int limit) {
+        return chatMessages.descendingMap().values().stream()
+            .filter(message -> message.author_uid == authorID)
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<DBChatMessage> getLastXMessages(int x, boolean includePurged) {
+        return chatMessages.descendingMap().values().stream()
+            .filter(message -> includePurged || !message.purged)
+            .limit(x)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public void updateChatBanPerma(int toUpdateID, boolean isPermaChatBanned) {
+        updateUser(toUpdateID, user -> user.permaChatBanned = isPermaChatBanned);
+    }
+
+    @Override
+    public void updateChatBanExpiry(int targetID, long expiry) {
+        updateUser(targetID, user -> user.chatBanExpiry = expiry);
+    }
+
+    private void purge(int initiatorID, String reason, Predicate<DBChatMessage> filter) {
+        chatMessages.replaceAll((id, message) -> filter.test(message)
+            ? new DBChatMessage(message.id, message.author_uid, message.sent, message.content, message.filtered_content, true, initiatorID, reason, message.author_was_shadow_banned)
+            : message);
+    }
+
+    @Override
+    public void purgeChat(User target, User initiator, int amount, String reason, boolean broadcast) {
+        String initiatorName = initiator == null ? "CONSOLE" : initiator.getName();
+        int initiatorID = initiator == null ? 0 : initiator.getId();
+        purge(initiatorID, reason, message -> message.author_uid == target.getId());
+        String logReason = reason != null && reason.length() > 0 ? " with reason: " + reason : "";
+        String logMessage = String.format("<%s, %s> purged %s messages from <%s, %s>%s.", initiatorName, initiatorID, amount, target.getName(), target.getId(), logReason);
+        if (initiator == null) {
+            insertServerAdminLog(logMessage);
+        } else {
+            insertAdminLog(initiatorID, logMessage);
+        }
+        App.getServer().getPacketHandler().getChatHistory().purgeAuthor(target.getId(), new ChatMessage.Purge(initiatorID, reason));
+        if (broadcast) {
+            App.getServer().getPacketHandler().sendChatPurge(target, initiator, amount, reason);
+        }
+    }
+
+    @Override
+    public void purgeChatID(User target, User initiator, Integer id, String reason, boolean broadcast) {
+        String initiatorName = initiator == null ? "CONSOLE" : initiator.getName();
+        int initiatorID = initiator == null ? 0 : initiator.getId();
+        purge(initiatorID, reason, message -> message.id == id);
+        String logReason = reason != null && reason.length() > 0 ? " with reason: " + reason : "";
+        String logMessage = String.format("<%s, %s> purged message with id %d from <%s, %s>%s.", initiatorName, initiatorID, id, target.getName(), target.getId(), logReason);
+        if (initiator == null) {
+            insertServerAdminLog(logMessage);
+        } else {
+            insertAdminLog(initiatorID, logMessage);
+        }
+        App.getServer().getPacketHandler().getChatHistory().purgeIDs(Collections.singletonList(id), new ChatMessage.Purge(initiatorID, reason));
+        if (broadcast) {
+            App.getServer().getPacketHandler().sendSpecificPurge(target, initiator, id, reason);
+        }
+    }
+
+    @Override
+    public String getChatBanReason(int id) {
+        return readUser(id, user -> user.chatBanReason, null);
+    }
+
+    @Override
+    public void updateChatBanReason(int id, String reason) {
+        updateUser(id, user -> user.chatBanReason = reason);
+    }
+
+    @Override
+    public ServerChatLookup runChatLookupForUsername(String username, int history_limit) {
+        Optional<DBUser> dbu = getUserByName(username);
+        if (!dbu.isPresent()) return null;
+        DBUser dbUser = dbu.get();
+
+        List<DBExtendedChatban> bans = new ArrayList<>();
+        for (DBChatban ban : chatbans.descendingMap().values()) {
+            if (ban.target != dbUser.id) continue;
+            String initiatorName = readUser(ban.initiator, user -> user.username, null);
+            // mirror the INNER JOIN in JdbiDatabase, which skips bans whose initiator isn't a user
+            if (initiatorName == null) continue;
+            bans.add(new DBExtendedChatban(ban.id, ban.target, dbUser.username, ban.initiator, initiatorName, ban.when, ban.type, ban.expiry, ban.reason, ban.purged));
+        }
+        bans.sort(Comparator.comparingInt((DBExtendedChatban ban) -> ban.when).reversed());
+
+        return new ServerChatLookup(dbUser, getLastXMessagesFromUID(dbUser.id, history_limit), bans);
+    }
+
+    @Override
+    public Integer initiateChatBan(int targetID, int initiatorID, long when, String type, long expiry, String reason, boolean purge) {
+        int id = chatbanIDs.incrementAndGet();
+        chatbans.put(id, new DBChatban(id, targetID, initiatorID, (int) when, type, (int) expiry, reason, purge));
+        return id;
+    }
+
+    /* NOTIFICATIONS */
+
+    private DBNotification toDBNotification(NotificationRow row) {
+        return new DBNotification(row.id, row.time, row.expiry, readUser(row.who, user -> user.username, null), row.title, row.content);
+    }
+
+    @Override
+    public List<DBNotification> getNotifications(boolean expired) {
+        long now = Instant.now().getEpochSecond();
+        return notifications.values().stream()
+            .filter(row -> expired || now < row.expiry || row.expiry == 0)
+            .sorted(Comparator.comparingLong((NotificationRow row) -> row.time).thenComparingInt(row -> row.id).reversed())
+            .map(this::toDBNotification)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public DBNotification getNotification(int id) {
+        NotificationRow row = notifications.get(id);
+        return row == null ? null : toDBNotification(row);
+    }
+
+    @Override
+    public void setNotificationExpiry(int id, long expiry) {
+        NotificationRow row = notifications.get(id);
+        if (row != null) row.expiry = expiry;
+    }
+
+    @Override
+    public Integer createNotification(int creatorID, String title, String content, Long expiry) {
+        int id = notificationIDs.incrementAndGet();
+        notifications.put(id, new NotificationRow(id, Instant.now().getEpochSecond(), expiry == null ? 0 : expiry, creatorID, title, content));
+        return id;
+    }
+
+    /* FACTIONS */
+
+    private Set<Integer> membersOf(int fid) {
+        return factionMembers.computeIfAbsent(fid, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    private Set<Integer> bansOf(int fid) {
+        return factionBans.computeIfAbsent(fid, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    private List<DBUser> toDBUsers(Set<Integer> ids) {
+        return ids.stream()
+            .map(this::toDBUser)
+            .flatMap(Optional::stream)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public DBFaction createFaction(String factionName, String factionTag, int owner_uid, Integer color) {
+        int id = factionIDs.incrementAndGet();
+        DBFaction faction = new DBFaction(id, factionName, factionTag, color == null ? 0 : color, owner_uid, Timestamp.from(Instant.now()), App.getConfig().getString("canvascode"));
+        factions.put(id, faction);
+        membersOf(id).add(owner_uid);
+        return faction;
+    }
+
+    @Override
+    public DBFaction getFactionByID(int fid) {
+        return factions.get(fid);
+    }
+
+    @Override
+    public void joinFaction(int fid, int uid) {
+        membersOf(fid).add(uid);
+    }
+
+    @Override
+    public void leaveFaction(int fid, int uid) {
+        updateUser(uid, user -> {
+            if (Objects.equals(user.displayedFaction, fid)) user.displayedFaction = null;
+        });
+        membersOf(fid).remove(uid);
+    }
+
+    @Override
+    public List<DBFaction> getFactionsForUID(int uid) {
+        return factions.values().stream()
+            .filter(faction -> membersOf(faction.id).contains(uid))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<DBUser> getUsersForFID(int fid) {
+        return toDBUsers(membersOf(fid));
+    }
+
+    @Override
+    public Integer getOwnedFactionCountForUID(int uid) {
+        return (int) factions.values().stream().filter(faction -> faction.owner == uid).count();
+    }
+
+    @Override
+    public List<DBUser> getBansForFID(int fid) {
+        return toDBUsers(bansOf(fid));
+    }
+
+    @Override
+    public void updateFaction(Faction faction) {
+        factions.computeIfPresent(faction.getId(), (id, old) ->
+            new DBFaction(id, faction.getName(), faction.getTag(), faction.getColor(), faction.getOwner(), old.created, old.canvasCode));
+    }
+
+    @Override
+    public void deleteFactionByFID(int fid) {
+        for (UserRow user : users.values()) {
+            updateUser(user.id, row -> {
+                if (Objects.equals(row.displayedFaction, fid)) row.displayedFaction = null;
+            });
+        }
+        factionMembers.remove(fid);
+        factionBans.remove(fid);
+        factions.remove(fid);
+    }
+
+    @Override
+    public List<DBFaction> pruneOrphanedFactions() {
+        List<DBFaction> orphaned = getOrphanedFactions();
+        orphaned.forEach(faction -> factions.remove(faction.id));
+        return orphaned;
+    }
+
+    @Override
+    public List<DBFaction> getOrphanedFactions() {
+        return factions.values().stream()
+            .filter(faction -> membersOf(faction.id).isEmpty())
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public void setDisplayedFactionForUID(int uid, Integer fid) {
+        updateUser(uid, user -> user.displayedFaction = fid);
+    }
+
+    @Override
+    public void removeFactionBanForUID(int uid, int fid) {
+        bansOf(fid).remove(uid);
+    }
+
+    @Override
+    public void addFactionBanForUID(int uid, int fid) {
+        membersOf(fid).remove(uid);
+        bansOf(fid).add(uid);
+    }
+
+    @Override
+    public void setFactionOwnerForFID(int fid, int uid) {
+        factions.computeIfPresent(fid, (id, old) -> new DBFaction(id, old.name, old.tag, old.color, uid, old.created, old.canvasCode));
+    }
+
+    @Override
+    public List<DBFactionSearch> searchFactions(String search, int offset, User searchContext) {
+        String needle = search.toLowerCase();
+        return factions.values().stream()
+            .filter(faction -> faction.name.toLowerCase().contains(needle))
+            .map(faction -> {
+                Set<Integer> members = membersOf(faction.id);
+                boolean joined = searchContext != null && members.contains(searchContext.getId());
+                return new DBFactionSearch(faction.id, faction.name, faction.tag, faction.color, faction.owner, faction.created, faction.canvasCode, members.size(), joined);
+            })
+            // the INNER JOIN on faction_membership in JdbiDatabase skips empty factions
+            .filter(faction -> faction.memberCount > 0)
+            .sorted(Comparator.comparingInt((DBFactionSearch faction) -> faction.memberCount)
+                .thenComparing(faction -> faction.canvasCode, Comparator.nullsLast(Comparator.<String>naturalOrder()))
+                .thenComparingInt(faction -> faction.id)
+                .reversed())
+            .skip(offset)
+            .limit(50)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public void setColorForFID(int fid, int color) {
+        factions.computeIfPresent(fid, (id, old) -> new DBFaction(id, old.name, old.tag, color, old.owner, old.created, old.canvasCode));
+    }
+
+    private static class PixelRow {
+        private final int id;
+        private final int x;
+        private final int y;
+        private final int color;
+        private final Integer who;
+        private final Integer secondaryID;
+        private final long time;
+        private final boolean modAction;
+        private final boolean rollbackAction;
+        private final boolean undoAction;
+        private boolean undone = false;
+        private boolean mostRecent;
+
+        private PixelRow(int id, int x, int y, int color, Integer who, Integer secondaryID, long time, boolean modAction, boolean rollbackAction, boolean undoAction, boolean mostRecent) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.color = color;
+            this.who = who;
+            this.secondaryID = secondaryID;
+            this.time = time;
+            this.modAction = modAction;
+            this.rollbackAction = rollbackAction;
+            this.undoAction = undoAction;
+            this.mostRecent = mostRecent;
+        }
+    }
+
+    private static class UserRow {
+        private final int id;
+        private final String login;
+        private final Timestamp signupTime = Timestamp.from(Instant.now());
+        private final String signupIP;
+        private String username;
+        private String lastIP;
+        private boolean lastIPAlert = false;
+        private int stacked = 0;
+        private long cooldownExpiry = 0;
+        private Long banExpiry = null;
+        private String banReason = null;
+        private boolean shadowBanned = false;
+        private boolean permaChatBanned = false;
+        private long chatBanExpiry = 0;
+        private String chatBanReason = null;
+        private String userAgent = null;
+        private int pixelCount = 0;
+        private int pixelCountAllTime = 0;
+        private boolean renameRequested = false;
+        private String discordName = null;
+        private int chatNameColor;
+        private Integer displayedFaction = null;
+        private boolean factionRestricted = false;
+        private List<Role> roles = new ArrayList<>();
+
+        private UserRow(int id, String username, String login, String ip, int chatNameColor) {
+            this.id = id;
+            this.username = username;
+            this.login = login;
+            this.signupIP = ip;
+            this.lastIP = ip;
+            this.chatNameColor = chatNameColor;
+        }
+
+        private DBUser toDBUser() {
+            // displayed_faction is read with getInt() by DBUser.Mapper, which turns NULL into 0
+            return new DBUser(id, stacked, username, login, signupTime, cooldownExpiry, pixelCount, pixelCountAllTime, banExpiry,
+                shadowBanned, permaChatBanned, chatBanExpiry, renameRequested, discordName, chatBanReason, chatNameColor,
+                displayedFaction == null ? 0 : displayedFaction, factionRestricted);
+        }
+    }
+
+    private static class Session {
+        private final int who;
+        private volatile long time = System.currentTimeMillis();
+
+        private Session(int who) {
+            this.who = who;
+        }
+    }
+
+    private static class NotificationRow {
+        private final int id;
+        private final long time;
+        private volatile long expiry;
+        private final int who;
+        private final String title;
+        private final String content;
+
+        private NotificationRow(int id, long time, long expiry, int who, String title, String content) {
+            this.id = id;
+            this.time = time;
+            this.expiry = expiry;
+            this.who = who;
+            this.title = title;
+            this.content = content;
+        }
+    }
+}
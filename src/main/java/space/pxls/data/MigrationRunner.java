@@ -0,0 +1,374 @@
+package space.pxls.data;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import space.pxls.App;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Applies the versioned schema migrations in {@link #MIGRATIONS} at startup.<br>
+ * Each migration runs in its own transaction and is recorded in the
+ *  <pre>schema_migrations</pre> table once applied, so it is never run twice.
+ *  An advisory lock keeps two instances starting against the same database
+ *  from applying the same migration concurrently.<br>
+ * Migrations that can't run in a transaction, like <pre>CREATE INDEX CONCURRENTLY</pre>,
+ *  run in autocommit mode instead and must be safe to retry if they fail halfway.<br>
+ * New migrations must be appended with the next version number; applied
+ *  migrations should never be edited.
+ */
+public class MigrationRunner {
+    private static final long ADVISORY_LOCK_KEY = 0x7078_6C73_6D69_67L; // "pxlsmig"
+
+    private static final List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "baseline schema", handle -> {
+            // pixels
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS pixels (" +
+                    "id BIGSERIAL NOT NULL PRIMARY KEY," +
+                    "x INT NOT NULL," +
+                    "y INT NOT NULL," +
+                    "color SMALLINT NOT NULL," +
+                    "who INT," +
+                    "secondary_id BIGINT," + //is previous pixel's id normally, is the id that was changed from for rollback action, is NULL if there's no previous or it was undo of rollback
+                    "time TIMESTAMP NOT NULL DEFAULT NOW()," +
+                    "mod_action BOOL NOT NULL DEFAULT false," +
+                    "rollback_action BOOL NOT NULL DEFAULT false," +
+                    "undone BOOL NOT NULL DEFAULT false," +
+                    "undo_action BOOL NOT NULL DEFAULT false," +
+                    "most_recent BOOL NOT NULL DEFAULT true);" +
+                    "CREATE INDEX IF NOT EXISTS pos ON pixels (x,y);" +
+                    "CREATE INDEX IF NOT EXISTS most_recent ON pixels (most_recent)")
+                    .execute();
+            // users
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS users (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "username VARCHAR(32) UNIQUE NOT NULL," +
+                    "login VARCHAR(64) NOT NULL," +
+                    "signup_time TIMESTAMP NOT NULL DEFAULT NOW()," +
+                    "cooldown_expiry TIMESTAMP," +
+                    "ban_expiry TIMESTAMP," +
+                    "is_shadow_banned BOOL NOT NULL DEFAULT false," +
+                    "signup_ip INET," +
+                    "last_ip INET," +
+                    "last_ip_alert BOOL NOT NULL DEFAULT false," +
+                    "perma_chat_banned BOOL DEFAULT false," +
+                    "chat_ban_expiry TIMESTAMP DEFAULT NOW()," +
+                    "chat_ban_reason TEXT," +
+                    "ban_reason VARCHAR(512) NOT NULL DEFAULT ''," +
+                    "pixel_count INT NOT NULL DEFAULT 0," +
+                    "pixel_count_alltime INT NOT NULL DEFAULT 0," +
+                    "user_agent VARCHAR(512) NOT NULL DEFAULT ''," +
+                    "stacked INT DEFAULT 0," +
+                    "is_rename_requested BOOL NOT NULL DEFAULT false," +
+                    "discord_name VARCHAR(37)," +
+                    "chat_name_color INT NOT NULL," +
+                    "displayed_faction INT," +
+                    "faction_restricted BOOLEAN NOT NULL DEFAULT false)")
+                    .execute();
+            // roles
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS roles (" +
+                    "id INTEGER REFERENCES users," +
+                    "role VARCHAR(512)," +
+                    "PRIMARY KEY (id, role))")
+                    .execute();
+            // sessions
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS sessions ("+
+                    "id SERIAL NOT NULL PRIMARY KEY,"+
+                    "who INT NOT NULL,"+
+                    "token VARCHAR(60) NOT NULL,"+
+                    "time TIMESTAMP DEFAULT CURRENT_TIMESTAMP);" +
+                    "CREATE INDEX IF NOT EXISTS token ON sessions (token)")
+                    .execute();
+            // lookups
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS lookups (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "who INT," +
+                    "time TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                    "ip INET)")
+                    .execute();
+            // admin_log
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS admin_log (" +
+                    "id BIGSERIAL PRIMARY KEY," +
+                    "channel VARCHAR(255)," +
+                    "level INT," +
+                    "message TEXT," +
+                    "time INT," +
+                    "userid INT)")
+                    .execute();
+            // reports
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS reports (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "who INT," +
+                    "x INT," +
+                    "y INT," +
+                    "message TEXT," +
+                    "pixel_id INT," +
+                    "reported INT," +
+                    "claimed_by INT NOT NULL DEFAULT 0," +
+                    "closed BOOL NOT NULL DEFAULT false," +
+                    "time INT DEFAULT NULL)")
+                    .execute();
+            // stats
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS stats (" +
+                    "id SERIAL NOT NULL PRIMARY KEY, " +
+                    "channel VARCHAR(20) NOT NULL DEFAULT '0', " +
+                    "value INT NOT NULL, " +
+                    "timestamp INT NOT NULL)")
+                    .execute();
+            // admin_notes
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS admin_notes (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "user_id INT NOT NULL," +
+                    "target_id INT NOT NULL," +
+                    "reply_to INT DEFAULT NULL," +
+                    "message TEXT NOT NULL," +
+                    "timestamp INT NOT NULL)")
+                    .execute();
+            // banlogs
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS banlogs (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "\"when\" INT NOT NULL," +
+                    "banner INT NOT NULL," +
+                    "banned INT NOT NULL," +
+                    "ban_expiry INT DEFAULT 0," +
+                    "action VARCHAR(256) NOT NULL," +
+                    "ban_reason VARCHAR(512) NOT NULL)")
+                    .execute();
+            // chat_messages
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS chat_messages (" +
+                    "id BIGSERIAL PRIMARY KEY," +
+                    "author INT," +
+                    "sent BIGINT NOT NULL," +
+                    "content VARCHAR(2048) NOT NULL," +
+                    "filtered VARCHAR(2048) NOT NULL DEFAULT ''," +
+                    "purged BOOL NOT NULL DEFAULT false," +
+                    "purged_by INT," +
+                    "purge_reason TEXT," +
+                    "shadow_banned BOOL NOT NULL DEFAULT false)")
+                    .execute();
+            // chat_reports
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS chat_reports (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "time INT DEFAULT NULL," +
+                    "cmid BIGINT NOT NULL," +
+                    "report_message TEXT NOT NULL," +
+                    "target INT NOT NULL," +
+                    "initiator INT NOT NULL," +
+                    "claimed_by INT NOT NULL default 0," +
+                    "closed BOOL NOT NULL default false)")
+                    .execute();
+            // ip_log
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS ip_log (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "\"user\" INT NOT NULL," +
+                    "ip INET NOT NULL," +
+                    "last_used TIMESTAMP NOT NULL DEFAULT NOW());" +
+                    "CREATE UNIQUE INDEX IF NOT EXISTS \"ip_log_user_ip_pair\" ON \"ip_log\" (\"user\", \"ip\")")
+                    .execute();
+            // notifications
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS notifications (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "time INT NOT NULL," +
+                    "expiry INT DEFAULT NULL," +
+                    "title TEXT NOT NULL," +
+                    "content TEXT NOT NULL," +
+                    "who INT NOT NULL)")
+                    .execute();
+            // chatbans
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS chatbans (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "target INT NOT NULL," +
+                    "initiator INT NOT NULL," +
+                    "\"when\" INT NOT NULL," +
+                    "type VARCHAR(256) NOT NULL," +
+                    "expiry INT," +
+                    "reason TEXT NOT NULL," +
+                    "purged BOOL NOT NULL);")
+                    .execute();
+            // factions
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS faction (" +
+                    "id SERIAL NOT NULL PRIMARY KEY," +
+                    "name TEXT NOT NULL," +
+                    "tag TEXT NOT NULL," +
+                    "color INT NOT NULL DEFAULT 0," +
+                    "owner INT NOT NULL REFERENCES users(id)," +
+                    "created TIMESTAMP NOT NULL DEFAULT NOW()," +
+                    "\"canvasCode\" VARCHAR(256) NOT NULL DEFAULT 0" +
+                    ");" +
+                    "CREATE INDEX IF NOT EXISTS _faction_name ON faction (\"name\");" +
+                    "CREATE INDEX IF NOT EXISTS _faction_tag ON faction (tag);" +
+                    "CREATE INDEX IF NOT EXISTS _owner ON faction (owner);")
+                    .execute();
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS faction_membership (" +
+                    "fid INT NOT NULL REFERENCES faction(id)," +
+                    "uid INT NOT NULL REFERENCES users(id)" +
+                    ");" +
+                    "CREATE INDEX IF NOT EXISTS _faction_membership_fid ON faction_membership(fid);" +
+                    "CREATE INDEX IF NOT EXISTS _faction_membership_uuid ON faction_membership(uid);" +
+                    "CREATE UNIQUE INDEX IF NOT EXISTS _faction_membership_uid_fid_pair ON faction_membership(uid, fid);")
+                    .execute();
+            handle.createUpdate("CREATE TABLE IF NOT EXISTS faction_ban (" +
+                    "fid INT NOT NULL REFERENCES faction(id)," +
+                    "uid INT NOT NULL REFERENCES users(id)" +
+                    ");" +
+                    "CREATE INDEX IF NOT EXISTS _faction_ban_fid ON faction_ban(fid);" +
+                    "CREATE INDEX IF NOT EXISTS _faction_ban_uuid ON faction_ban(uid);" +
+                    "CREATE UNIQUE INDEX IF NOT EXISTS _faction_ban_uid_fid_pair ON faction_ban(uid, fid);")
+                    .execute();
+        }),
+        // builds the indexes without blocking writes to the tables, so it can't run in a transaction
+        new Migration(2, "hot path indexes", false, handle -> {
+            // getUserUndoPixel: WHERE who = :who AND NOT rollback_action ORDER BY id DESC, getRollbackPixels: WHERE most_recent AND who = :who
+            createIndexConcurrently(handle, "pixels_who_id", "pixels (who, id DESC)");
+            // getUndoPixels: WHERE rollback_action AND who = :who
+            createIndexConcurrently(handle, "pixels_rollback_who", "pixels (who) WHERE rollback_action");
+            // getPixelAt, getFullPixelAt, didPixelChange: WHERE x = :x AND y = :y AND most_recent
+            createIndexConcurrently(handle, "pixels_pos_most_recent", "pixels (x, y) WHERE most_recent");
+            // getChatMessagesByAuthor, getLastXMessagesFromUID, purgeChat: WHERE author = :uid ORDER BY sent
+            createIndexConcurrently(handle, "chat_messages_author_sent", "chat_messages (author, sent DESC)");
+            // getLastXMessages: ORDER BY sent DESC LIMIT :limit
+            createIndexConcurrently(handle, "chat_messages_sent", "chat_messages (sent DESC)");
+            // getUserByLogin: WHERE login = :login
+            createIndexConcurrently(handle, "users_login", "users (login)");
+        }),
+        new Migration(3, "partition pixels by canvas code", handle -> {
+            // requires PostgreSQL 11+. The existing table becomes the partition of the current canvas,
+            // see PixelPartitions for how partitions are switched and archived afterwards.
+            String code = App.getCanvasCode();
+            String literal = PixelPartitions.quoteLiteral(code);
+            String partition = PixelPartitions.partitionName(code);
+            handle.createUpdate("ALTER TABLE pixels RENAME TO pixels_legacy;" +
+                    "DROP INDEX IF EXISTS most_recent;" +
+                    "ALTER INDEX IF EXISTS pos RENAME TO pixels_legacy_pos;" +
+                    "ALTER INDEX IF EXISTS pixels_who_id RENAME TO pixels_legacy_who_id;" +
+                    "ALTER INDEX IF EXISTS pixels_rollback_who RENAME TO pixels_legacy_rollback_who;" +
+                    "ALTER INDEX IF EXISTS pixels_pos_most_recent RENAME TO pixels_legacy_pos_most_recent;" +
+                    "ALTER TABLE pixels_legacy ADD COLUMN canvas_code VARCHAR(256) NOT NULL DEFAULT " + literal)
+                    .execute();
+            handle.createUpdate("CREATE TABLE pixels (" +
+                    "id BIGINT NOT NULL DEFAULT nextval('pixels_id_seq')," +
+                    "x INT NOT NULL," +
+                    "y INT NOT NULL," +
+                    "color SMALLINT NOT NULL," +
+                    "who INT," +
+                    "secondary_id BIGINT," +
+                    "time TIMESTAMP NOT NULL DEFAULT NOW()," +
+                    "mod_action BOOL NOT NULL DEFAULT false," +
+                    "rollback_action BOOL NOT NULL DEFAULT false," +
+                    "undone BOOL NOT NULL DEFAULT false," +
+                    "undo_action BOOL NOT NULL DEFAULT false," +
+                    "most_recent BOOL NOT NULL DEFAULT true," +
+                    "canvas_code VARCHAR(256) NOT NULL DEFAULT " + literal + "," +
+                    "PRIMARY KEY (id, canvas_code)" +
+                    ") PARTITION BY LIST (canvas_code);" +
+                    "ALTER SEQUENCE pixels_id_seq OWNED BY pixels.id;" +
+                    "CREATE INDEX pos ON pixels (x, y);" +
+                    "CREATE INDEX pixels_who_id ON pixels (who, id DESC);" +
+                    "CREATE INDEX pixels_rollback_who ON pixels (who) WHERE rollback_action;" +
+                    "CREATE INDEX pixels_pos_most_recent ON pixels (x, y) WHERE most_recent")
+                    .execute();
+            handle.createUpdate("ALTER TABLE pixels_legacy RENAME TO " + partition + ";" +
+                    "ALTER TABLE pixels ATTACH PARTITION " + partition + " FOR VALUES IN (" + literal + ")")
+                    .execute();
+        })
+    );
+
+    private final Jdbi jdbi;
+
+    public MigrationRunner(Jdbi jdbi) {
+        this.jdbi = jdbi;
+    }
+
+    /**
+     * Applies every migration that hasn't been recorded in <pre>schema_migrations</pre> yet, in version order.
+     */
+    public void run() {
+        jdbi.useHandle(handle -> handle.createUpdate("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                "version INT NOT NULL PRIMARY KEY," +
+                "description TEXT NOT NULL," +
+                "applied_at TIMESTAMP NOT NULL DEFAULT NOW())")
+                .execute());
+
+        for (Migration migration : MIGRATIONS) {
+            if (migration.transactional) {
+                jdbi.useTransaction(handle -> {
+                    handle.select("SELECT pg_advisory_xact_lock(?)", ADVISORY_LOCK_KEY).mapToMap().list();
+                    apply(handle, migration);
+                });
+            } else {
+                jdbi.useHandle(handle -> {
+                    // polled rather than blocked on, a waiting query would hold a snapshot that CREATE INDEX CONCURRENTLY waits for
+                    while (!handle.select("SELECT pg_try_advisory_lock(?)", ADVISORY_LOCK_KEY).mapTo(Boolean.class).findOne().orElse(false)) {
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while waiting for the migration lock", e);
+                        }
+                    }
+                    try {
+                        apply(handle, migration);
+                    } finally {
+                        handle.select("SELECT pg_advisory_unlock(?)", ADVISORY_LOCK_KEY).mapToMap().list();
+                    }
+                });
+            }
+        }
+    }
+
+    private static void apply(Handle handle, Migration migration) {
+        if (getAppliedVersions(handle).contains(migration.version)) return;
+
+        long start = System.currentTimeMillis();
+        migration.body.accept(handle);
+        handle.createUpdate("INSERT INTO schema_migrations (version, description) VALUES (:version, :description)")
+            .bind("version", migration.version)
+            .bind("description", migration.description)
+            .execute();
+        App.getLogger().info("Applied schema migration {} ({}) in {}ms", migration.version, migration.description, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Builds an index without blocking writes to its table. Must be called outside of a transaction.
+     * @param name The index name.
+     * @param definition The table and columns, as they follow <pre>ON</pre> in <pre>CREATE INDEX</pre>.
+     */
+    private static void createIndexConcurrently(Handle handle, String name, String definition) {
+        // a failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would then skip
+        boolean invalid = handle.select("SELECT NOT indisvalid FROM pg_index WHERE indexrelid = to_regclass(:name)")
+            .bind("name", name)
+            .mapTo(Boolean.class)
+            .findOne().orElse(false);
+        if (invalid) {
+            handle.execute("DROP INDEX CONCURRENTLY " + name);
+        }
+        handle.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + definition);
+    }
+
+    private static Set<Integer> getAppliedVersions(Handle handle) {
+        return handle.createQuery("SELECT version FROM schema_migrations")
+            .mapTo(Integer.class)
+            .collect(Collectors.toSet());
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final boolean transactional;
+        private final Consumer<Handle> body;
+
+        private Migration(int version, String description, Consumer<Handle> body) {
+            this(version, description, true, body);
+        }
+
+        private Migration(int version, String description, boolean transactional, Consumer<Handle> body) {
+            this.version = version;
+            this.description = description;
+            this.transactional = transactional;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package space.pxls.data;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.postgresql.PGConnection;
+import space.pxls.App;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Manages the per-canvas partitions of the <pre>pixels</pre> table.<br>
+ * <pre>pixels</pre> is partitioned by <pre>canvas_code</pre> (see migration 3 in {@link MigrationRunner}).
+ *  Only the current canvas' partition stays attached, so every pixel query only ever touches the
+ *  current canvas' heap and indexes. When the canvas code changes, the previous partition is
+ *  detached on startup and kept as a standalone table until it is archived with {@link #archive(String)},
+ *  which makes a canvas reset a partition switch rather than a bulk delete.
+ */
+public class PixelPartitions {
+    private static final String PARTITION_PREFIX = "pixels_canvas_";
+    // PostgreSQL truncates longer identifiers, which would make distinct codes share a partition
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+    private static final Pattern VALID_CODE = Pattern.compile("[a-z0-9_]+");
+
+    private final Jdbi jdbi;
+
+    PixelPartitions(Jdbi jdbi) {
+        this.jdbi = jdbi;
+    }
+
+    /**
+     * @param canvasCode The canvas code.
+     * @return The name of the partition table holding the pixels of the canvas.
+     * @throws IllegalArgumentException If the code isn't lowercase letters, digits and underscores, or is too long
+     *  to name a table.
+     */
+    public static String partitionName(String canvasCode) {
+        if (!VALID_CODE.matcher(canvasCode).matches()) {
+            throw new IllegalArgumentException("Canvas code " + canvasCode + " must only contain lowercase letters, digits and underscores");
+        }
+        String name = PARTITION_PREFIX + canvasCode;
+        if (name.length() > MAX_IDENTIFIER_LENGTH) {
+            throw new IllegalArgumentException("Canvas code " + canvasCode + " is longer than " + (MAX_IDENTIFIER_LENGTH - PARTITION_PREFIX.length()) + " characters");
+        }
+        return name;
+    }
+
+    static String quoteLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Makes the partition of the specified canvas the only attached partition of <pre>pixels</pre>,
+     *  creating it if needed, and makes it the default target for inserts.
+     * @param canvasCode The current canvas code.
+     */
+    public void ensureCurrent(String canvasCode) {
+        String current = partitionName(canvasCode);
+        jdbi.useTransaction(handle -> {
+            if (!isPartitioned(handle)) {
+                App.getLogger().warn("pixels is not a partitioned table, skipping partition switch");
+                return;
+            }
+            for (String attached : getAttached(handle)) {
+                if (attached.equals(current)) continue;
+                handle.execute("ALTER TABLE pixels DETACH PARTITION " + attached);
+                App.getLogger().info("Detached pixels partition {}, run \"pixels archive\" to archive it", attached);
+            }
+            if (!getAttached(handle).contains(current)) {
+                String bound = " FOR VALUES IN (" + quoteLiteral(canvasCode) + ")";
+                if (tableExists(handle, current)) {
+                    handle.execute("ALTER TABLE pixels ATTACH PARTITION " + current + bound);
+                } else {
+                    handle.execute("CREATE TABLE " + current + " PARTITION OF pixels" + bound);
+                }
+                App.getLogger().info("Attached pixels partition {}", current);
+            }
+            handle.execute("ALTER TABLE pixels ALTER COLUMN canvas_code SET DEFAULT " + quoteLiteral(canvasCode));
+        });
+    }
+
+    /**
+     * @return Every pixel partition table, attached or not, mapped to whether it is attached.
+     */
+    public Map<String, Boolean> list() {
+        return jdbi.withHandle(handle -> {
+            List<String> attached = getAttached(handle);
+            Map<String, Boolean> partitions = new TreeMap<>();
+            handle.select("SELECT tablename FROM pg_tables WHERE schemaname = current_schema() AND tablename LIKE 'pixels\\_canvas\\_%'")
+                .mapTo(String.class)
+                .forEach(table -> partitions.put(table, attached.contains(table)));
+            return partitions;
+        });
+    }
+
+    /**
+     * Exports a detached canvas partition to a gzipped PostgreSQL binary COPY file in the
+     *  <pre>archives</pre> storage directory, then drops the table.<br>
+     * The archive can be restored with <pre>COPY ... FROM ... WITH (FORMAT binary)</pre> into a table
+     *  created with <pre>CREATE TABLE ... (LIKE pixels)</pre>.
+     * @param canvasCode The canvas code of the partition to archive. Must not be the current canvas.
+     * @return The path of the written archive.
+     * @throws IOException If the archive could not be written. The table is left untouched.
+     */
+    public Path archive(String canvasCode) throws IOException {
+        String table = partitionName(canvasCode);
+        if (table.equals(partitionName(App.getCanvasCode()))) {
+            throw new IllegalArgumentException("Refusing to archive the current canvas");
+        }
+        Path archive = App.getStorageDir().resolve("archives").resolve(table + ".pgcopy.gz");
+        Files.createDirectories(archive.getParent());
+        jdbi.useTransaction(handle -> {
+            if (!tableExists(handle, table)) {
+                throw new IllegalArgumentException("No pixels partition for canvas " + canvasCode);
+            }
+            if (getAttached(handle).contains(table)) {
+                handle.execute("ALTER TABLE pixels DETACH PARTITION " + table);
+            }
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(archive))) {
+                handle.getConnection().unwrap(PGConnection.class).getCopyAPI()
+                    .copyOut("COPY " + table + " TO STDOUT WITH (FORMAT binary)", out);
+            } catch (SQLException e) {
+                throw new IOException("Failed to export " + table, e);
+            }
+            handle.execute("DROP TABLE " + table);
+        });
+        return archive;
+    }
+
+    private static boolean isPartitioned(Handle handle) {
+        return handle.select("SELECT EXISTS(SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass('pixels'))")
+            .mapTo(Boolean.class)
+            .findOne().orElse(false);
+    }
+
+    private static boolean tableExists(Handle handle, String table) {
+        return handle.select("SELECT to_regclass(:table) IS NOT NULL")
+            .bind("table", table)
+            .mapTo(Boolean.class)
+            .findOne().orElse(false);
+    }
+
+    private static List<String> getAttached(Handle handle) {
+        return handle.select("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass('pixels')")
+            .mapTo(String.class)
+            .list();
+    }
+}
@@ -0,0 +1,171 @@
+package space.pxls.data;
+
+import space.pxls.user.User;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Storage for pixel placements, including undo, rollback and nuke actions.
+ */
+public interface PixelStore {
+    /**
+     * Places a pixel.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @param color The pixel's color.
+     * @param who Who placed the pixel.
+     * @param mod_action Whether or not the pixel is a mod action.
+     */
+    Integer placePixel(int x, int y, int color, User who, boolean mod_action);
+
+    /**
+     * Gets all pixel and user information at the coordinates.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @return The pixel and user information.
+     */
+    Optional<DBPixelPlacementFull> getFullPixelAt(int x, int y);
+
+    /**
+     * Gets basic pixel and user information from the coordinates.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @return The pixel and user information.
+     */
+    @ReadOnly
+    Optional<DBPixelPlacement> getPixelAt(int x, int y);
+
+    /**
+     * Gets all pixel and user information at many positions with a single query.
+     * @param xs The pixels' x-coordinates.
+     * @param ys The pixels' y-coordinates, paired with <pre>xs</pre> by index.
+     * @return The pixel and user information of the positions that have a pixel, in no particular order.
+     */
+    @ReadOnly
+    List<DBPixelPlacementFull> getFullPixelsAt(int[] xs, int[] ys);
+
+    /**
+     * Gets basic pixel and user information at many positions with a single query. Like
+     *  {@link #getPixelAt(int, int)}, pixels without an author are left out.
+     * @param xs The pixels' x-coordinates.
+     * @param ys The pixels' y-coordinates, paired with <pre>xs</pre> by index.
+     * @return The pixel and user information of the positions that have a pixel, in no particular order.
+     */
+    @ReadOnly
+    List<DBPixelPlacement> getPixelsAt(int[] xs, int[] ys);
+
+    /**
+     * Gets a pixel by its ID, using the specified handle (or a new one if null).
+     * @param handle The handle.
+     * @param id The ID.
+     * @return The pixel.
+     */
+    DBPixelPlacementFull getPixelByID(int id);
+
+    /**
+     * Gets pixels to be rolled back to.
+     * @param who The user.
+     * @param fromSeconds Seconds past now.
+     * @return A list of rollback pixels.
+     */
+    List<DBRollbackPixel> getRollbackPixels(User who, int fromSeconds);
+
+    /**
+     * Gets all undo pixels by the specified user.
+     * @param who The user.
+     * @return A list of undo pixels.
+     */
+    List<DBPixelPlacementFull> getUndoPixels(User who);
+
+    /**
+     * Undoes a pixel.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @param color The new color.
+     * @param who The user who undid the pixel.
+     * @param from The previous pixel ID.
+     * @return The inserted row ID.
+     */
+    Integer putUndoPixel(int x, int y, int color, User who, int from);
+
+    /**
+     * Rolls back a pixel.
+     * @param who The user who "owns" the rollback pixel.
+     * @param from The previous pixel ID.
+     * @param to The new color.
+     * @return The inserted row ID.
+     */
+    Integer putRollbackPixel(User who, int from, int to);
+
+    /**
+     * Rolls back a pixel to its default color.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @param who Who "owns" the rollback pixel.
+     * @param from The previous pixel ID.
+     * @return The inserted row ID.
+     */
+    Integer putRollbackPixelNoPrevious(int x, int y, User who, int from);
+
+    /**
+     * Replaces the pixel at the coordinates with color.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @param color The color to replace with.
+     * @return The inserted row ID.
+     */
+    Integer putNukePixel(int x, int y, int color);
+
+    /**
+     * Replaces the pixel at the coordinates.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @param replace The color to replace.
+     * @param color The color to replace with.
+     * @return The inserted row ID.
+     */
+    Integer putNukePixel(int x, int y, Integer replace, int color);
+
+    /**
+     * Gets the latest undo pixel from a user.
+     * @param who The user.
+     * @return The latest undo pixel.
+     */
+    DBPixelPlacementFull getUserUndoPixel(User who);
+
+    /**
+     * Puts an undo pixel with the specified {@link DBPixelPlacementFull} data.
+     * @param backPixel The previous pixel's data.
+     * @param who Who undid the pixel.
+     * @param from The undone pixel ID.
+     */
+    void putUserUndoPixel(DBPixelPlacementFull backPixel, User who, int from);
+
+    /**
+     * Puts an undo pixel at the specified coordinates.
+     * @param x The pixel's x-coordinates.
+     * @param y The pixel's y-coordinates.
+     * @param color The pixel's color.
+     * @param who Who undid the pixel.
+     * @param from The undone pixel ID.
+     */
+    void putUserUndoPixel(int x, int y, int color, User who, int from);
+
+    /**
+     * Gets whether or not the pixel at the specified pixel has been changed.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @return The pixel's changed status.
+     */
+    boolean didPixelChange(int x, int y);
+
+    /**
+     * Gets whether or not the pixel cooldown timer should increase for the specified pixel.
+     * @param who The {@link User}'s ID.
+     * @param x The pixel's x-coordinate.
+     * @param y The pixel's y-coordinate.
+     * @return Whether the cooldown timer should increase.
+     */
+    boolean shouldPixelTimeIncrease(int who, int x, int y);
+}
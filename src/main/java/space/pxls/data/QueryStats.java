@@ -0,0 +1,227 @@
+package space.pxls.data;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import org.jdbi.v3.core.HandleCallback;
+import org.jdbi.v3.core.HandleConsumer;
+import org.jdbi.v3.core.Jdbi;
+import space.pxls.App;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Per-query latency, result and error counters for {@link JdbiDatabase}, plus connection pool wait times.<br>
+ * Every call site is timed under the name of the {@link Database} method it belongs to. Queries taking longer
+ *  than <pre>database.stats.slowQueryThreshold</pre> are logged. Latencies are kept in lock-free log-linear
+ *  histograms (four buckets per power of two, so percentiles are accurate to ~20%).<br>
+ * Results count what a call returned, not the rows it touched: the size of a returned collection, 1 for any other
+ *  value or a present {@link Optional}, 0 otherwise. An update returning its row count counts as 1, a call
+ *  returning nothing as 0.
+ */
+public class QueryStats {
+    private final Map<String, Timer> queries = new ConcurrentHashMap<>();
+    private final Map<String, Timer> poolWaits = new ConcurrentHashMap<>();
+    private final long slowQueryThresholdNanos;
+
+    QueryStats(long slowQueryThresholdMS) {
+        this.slowQueryThresholdNanos = slowQueryThresholdMS <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMS);
+    }
+
+    <R, X extends Exception> R withHandle(String query, Jdbi jdbi, HandleCallback<R, X> callback) throws X {
+        long start = System.nanoTime();
+        boolean failed = true;
+        R result = null;
+        try {
+            result = jdbi.withHandle(callback);
+            failed = false;
+            return result;
+        } finally {
+            record(query, System.nanoTime() - start, countResults(result), failed);
+        }
+    }
+
+    <X extends Exception> void useHandle(String query, Jdbi jdbi, HandleConsumer<X> consumer) throws X {
+        withHandle(query, jdbi, handle -> {
+            consumer.useHandle(handle);
+            return null;
+        });
+    }
+
+    <X extends Exception> void useTransaction(String query, Jdbi jdbi, HandleConsumer<X> consumer) throws X {
+        withHandle(query, jdbi, handle -> {
+            handle.useTransaction(consumer::useHandle);
+            return null;
+        });
+    }
+
+    private static long countResults(Object result) {
+        if (result == null) return 0;
+        if (result instanceof Collection) return ((Collection<?>) result).size();
+        if (result instanceof Optional) return ((Optional<?>) result).isPresent() ? 1 : 0;
+        return 1;
+    }
+
+    private void record(String query, long nanos, long results, boolean failed) {
+        queries.computeIfAbsent(query, Timer::new).record(nanos, results, failed);
+        if (nanos >= slowQueryThresholdNanos) {
+            App.getLogger().warn("Slow query {} took {}ms{}", query, TimeUnit.NANOSECONDS.toMillis(nanos), failed ? " and failed" : "");
+        }
+    }
+
+    /**
+     * @return A Hikari {@link MetricsTrackerFactory} recording how long threads wait for a pooled connection.
+     */
+    MetricsTrackerFactory poolTracker() {
+        return (poolName, poolStats) -> {
+            Timer timer = poolWaits.computeIfAbsent(poolName, name -> new Timer("pool wait: " + name));
+            return new IMetricsTracker() {
+                @Override
+                public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                    timer.record(elapsedAcquiredNanos, 1, false);
+                }
+
+                @Override
+                public void recordConnectionTimeout() {
+                    timer.record(0, 0, true);
+                }
+            };
+        };
+    }
+
+    /**
+     * @return The query timers, slowest total time first.
+     */
+    public List<Timer> getQueries() {
+        return queries.values().stream()
+            .sorted(Comparator.comparingLong(Timer::getTotalNanos).reversed())
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @return The connection wait timers, one per pool. Errors are connection timeouts.
+     */
+    public List<Timer> getPoolWaits() {
+        return poolWaits.values().stream()
+            .sorted(Comparator.comparing(Timer::getName))
+            .collect(Collectors.toList());
+    }
+
+    public void reset() {
+        queries.clear();
+        poolWaits.values().forEach(Timer::reset);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%-32s %10s %8s %10s %9s %9s %9s %11s", "query", "calls", "errors", "results", "p50 ms", "p99 ms", "max ms", "total ms"));
+        for (Timer timer : getQueries()) sb.append(System.lineSeparator()).append(timer);
+        for (Timer timer : getPoolWaits()) sb.append(System.lineSeparator()).append(timer);
+        return sb.toString();
+    }
+
+    public static class Timer {
+        // values below 4 microseconds get a bucket each, everything above gets 4 buckets per power of two
+        private static final int BUCKETS = 4 + 4 * 62;
+
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder results = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        private void record(long nanos, long resultCount, boolean failed) {
+            calls.increment();
+            if (failed) errors.increment();
+            results.add(resultCount);
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            histogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        }
+
+        private void reset() {
+            calls.reset();
+            errors.reset();
+            results.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            for (int i = 0; i < BUCKETS; i++) histogram.set(i, 0);
+        }
+
+        private static int bucket(long micros) {
+            if (micros < 4) return (int) Math.max(0, micros);
+            int msb = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (msb - 2)) & 3;
+            return 4 + (msb - 2) * 4 + sub;
+        }
+
+        private static long bucketUpperBound(int bucket) {
+            if (bucket < 4) return bucket;
+            int msb = (bucket - 4) / 4 + 2;
+            int sub = (bucket - 4) % 4;
+            return ((5L + sub) << (msb - 2)) - 1;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 1.
+         * @return The upper bound of the histogram bucket holding the percentile, in microseconds.
+         */
+        public long getPercentileMicros(double percentile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) count += histogram.get(i);
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) return bucketUpperBound(i);
+            }
+            return bucketUpperBound(BUCKETS - 1);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getResults() {
+            return results.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-32s %10d %8d %10d %9.2f %9.2f %9.2f %11.1f", name, getCalls(), getErrors(), getResults(),
+                getPercentileMicros(0.5) / 1000d, getPercentileMicros(0.99) / 1000d, getMaxNanos() / 1e6, getTotalNanos() / 1e6);
+        }
+    }
+}
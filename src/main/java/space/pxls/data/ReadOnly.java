@@ -0,0 +1,20 @@
+package space.pxls.data;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link Database} method as read-only, so {@link JdbiDatabase} may run it on the read replica when one is
+ *  configured and healthy. {@link ReplicaRouter#reader(String)} refuses every method without it.<br>
+ * Only put this on methods whose callers can tolerate reading data that is up to
+ *  <pre>database.replica.maxLag</pre> old, and never on methods whose result feeds a write. Every other method
+ *  runs against the primary.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ReadOnly {
+}
@@ -0,0 +1,206 @@
+package space.pxls.data;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.jdbi.v3.core.Jdbi;
+import space.pxls.App;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes read-only queries to an optional read replica.<br>
+ * The replica's replay lag is polled in the background; while it is unreachable or lags behind by
+ *  more than <pre>database.replica.maxLag</pre>, read-only queries fall back to the primary.
+ *  Without a configured replica, everything goes to the primary.<br>
+ * Only {@link Database} methods annotated with {@link ReadOnly} may use the replica. The annotations are checked
+ *  when this class is loaded at startup.
+ */
+public class ReplicaRouter {
+    private static final String SQL_REPLICA_LAG = "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+        "ELSE (EXTRACT(EPOCH FROM NOW() - pg_last_xact_replay_timestamp()) * 1000)::BIGINT END";
+
+    private static final Set<String> READ_ONLY_METHODS = findReadOnlyMethods();
+
+    private final HikariDataSource primaryDataSource;
+    private final HikariDataSource replicaDataSource;
+    private final Jdbi primary;
+    private final Jdbi replica;
+    private final long maxLagMS;
+    private volatile boolean replicaHealthy = false;
+    private volatile long replicaLagMS = -1;
+
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+
+    ReplicaRouter(QueryStats queryStats) {
+        primaryDataSource = createDataSource(queryStats, "primary",
+            App.getConfig().getString("database.url"),
+            App.getConfig().getString("database.user"),
+            App.getConfig().getString("database.pass"),
+            200, false); // this is plenty, the websocket uses 32
+        primary = Jdbi.create(primaryDataSource);
+
+        String replicaUrl = App.getConfig().getString("database.replica.url");
+        maxLagMS = App.getConfig().getDuration("database.replica.maxLag", TimeUnit.MILLISECONDS);
+        if (replicaUrl.isEmpty()) {
+            replicaDataSource = null;
+            replica = null;
+            return;
+        }
+
+        String user = App.getConfig().getString("database.replica.user");
+        String pass = App.getConfig().getString("database.replica.pass");
+        replicaDataSource = createDataSource(queryStats, "replica", replicaUrl,
+            user.isEmpty() ? App.getConfig().getString("database.user") : user,
+            user.isEmpty() ? App.getConfig().getString("database.pass") : pass,
+            App.getConfig().getInt("database.replica.poolSize"), true);
+        replica = Jdbi.create(replicaDataSource);
+
+        checkReplicaLag();
+        long interval = App.getConfig().getDuration("database.replica.lagCheckInterval", TimeUnit.MILLISECONDS);
+        App.getJobScheduler().schedule("replicaLag", interval, interval, this::checkReplicaLag);
+    }
+
+    /**
+     * @return The names of the {@link ReadOnly} methods of {@link Database}.
+     * @throws IllegalStateException If a read-only method returns nothing, or shares its name with a method that
+     *  isn't read-only (routing is by name).
+     */
+    private static Set<String> findReadOnlyMethods() {
+        Set<String> readOnly = new HashSet<>();
+        Set<String> others = new HashSet<>();
+        for (Method method : Database.class.getMethods()) {
+            if (!method.isAnnotationPresent(ReadOnly.class)) {
+                others.add(method.getName());
+            } else if (method.getReturnType() == void.class) {
+                throw new IllegalStateException("@ReadOnly method " + method.getName() + " doesn't return anything");
+            } else {
+                readOnly.add(method.getName());
+            }
+        }
+        for (String name : readOnly) {
+            if (others.contains(name)) throw new IllegalStateException("Overloads of " + name + " must all be @ReadOnly or none");
+        }
+        return Set.copyOf(readOnly);
+    }
+
+    private static HikariDataSource createDataSource(QueryStats queryStats, String name, String url, String user, String pass, int poolSize, boolean readOnly) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(pass);
+        config.setReadOnly(readOnly);
+        if (readOnly) {
+            // don't fail startup over an unreachable replica, the lag check keeps it unhealthy until it comes up
+            config.setInitializationFailTimeout(-1);
+        }
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.addDataSourceProperty("allowMultiQueries", "true");
+        config.setMaximumPoolSize(poolSize);
+        config.setMetricsTrackerFactory(queryStats.poolTracker());
+        //config.setConnectionInitSql("SET NAMES UTF-8"); //needed for emoji's in chat
+        return new HikariDataSource(config);
+    }
+
+    private void checkReplicaLag() {
+        boolean wasHealthy = replicaHealthy;
+        try {
+            Long lag = replica.withHandle(handle -> handle.select(SQL_REPLICA_LAG).mapTo(Long.class).findOne().orElse(null));
+            replicaLagMS = lag == null ? -1 : lag;
+            replicaHealthy = lag != null && lag <= maxLagMS;
+        } catch (Exception e) {
+            replicaLagMS = -1;
+            replicaHealthy = false;
+        }
+        if (wasHealthy != replicaHealthy) {
+            if (replicaHealthy) {
+                App.getLogger().info("Read replica is healthy (lag {}ms), routing read-only queries to it", replicaLagMS);
+            } else {
+                App.getLogger().warn("Read replica is unavailable or lagging (lag {}ms), routing read-only queries to the primary", replicaLagMS);
+            }
+        }
+    }
+
+    /**
+     * @return The {@link Jdbi} instance for the primary database. Use this for writes and for reads that must be up to date.
+     */
+    public Jdbi writer() {
+        return primary;
+    }
+
+    /**
+     * The returned instance may serve data that is up to <pre>database.replica.maxLag</pre> old.
+     * @param method The name of the {@link Database} method running the query, which must be {@link ReadOnly}.
+     * @return The {@link Jdbi} instance to run read-only queries against.
+     * @throws IllegalStateException If the method isn't {@link ReadOnly}.
+     */
+    public Jdbi reader(String method) {
+        if (!READ_ONLY_METHODS.contains(method)) {
+            throw new IllegalStateException(method + " isn't @ReadOnly and must use writer()");
+        }
+        if (replicaHealthy) {
+            replicaReads.increment();
+            return replica;
+        }
+        primaryReads.increment();
+        return primary;
+    }
+
+    public boolean hasReplica() {
+        return replica != null;
+    }
+
+    public boolean isReplicaHealthy() {
+        return replicaHealthy;
+    }
+
+    /**
+     * @return The last measured replica lag in milliseconds, or -1 if unknown.
+     */
+    public long getReplicaLagMS() {
+        return replicaLagMS;
+    }
+
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    public long getPrimaryReads() {
+        return primaryReads.sum();
+    }
+
+    public HikariPoolMXBean getPrimaryPool() {
+        return primaryDataSource.getHikariPoolMXBean();
+    }
+
+    /**
+     * @return The replica's pool, or null if no replica is configured.
+     */
+    public HikariPoolMXBean getReplicaPool() {
+        return replicaDataSource == null ? null : replicaDataSource.getHikariPoolMXBean();
+    }
+
+    private static String describePool(String name, HikariPoolMXBean pool) {
+        return String.format("%s pool: %d active, %d idle, %d total, %d waiting",
+            name, pool.getActiveConnections(), pool.getIdleConnections(), pool.getTotalConnections(), pool.getThreadsAwaitingConnection());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(describePool("primary", getPrimaryPool()));
+        if (hasReplica()) {
+            sb.append(System.lineSeparator()).append(describePool("replica", getReplicaPool()))
+                .append(String.format(" (%s, lag %dms)", replicaHealthy ? "healthy" : "unhealthy", replicaLagMS));
+        }
+        sb.append(System.lineSeparator()).append(String.format("read-only queries: %d on replica, %d on primary", getReplicaReads(), getPrimaryReads()));
+        return sb.toString();
+    }
+}
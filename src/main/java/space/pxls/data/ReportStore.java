@@ -0,0 +1,53 @@
+package space.pxls.data;
+
+import space.pxls.server.packets.chat.ChatMessage;
+import space.pxls.user.User;
+
+import java.util.List;
+
+/**
+ * Storage for canvas and chat reports.
+ */
+public interface ReportStore {
+    /**
+     * @param reporter The reporting {@link User}' ID.
+     * @param reported The reported {@link User}'s ID.
+     * @param pixel The pixel ID.
+     * @param x The pixel's X-coordinate.
+     * @param y The pixel's Y-coordinate.
+     * @param message The report message.
+     * @return The inserted row ID.
+     */
+    Integer insertReport(int reporter, int reported, int pixel, int x, int y, String message);
+
+    List<DBChatReport> getChatReportsFromUser(int uid);
+
+    List<DBCanvasReport> getCanvasReportsFromUser(int uid);
+
+    /**
+     * Inserts a server report.
+     * @param reported The banned {@link User}'s ID.
+     * @param message The report message.
+     */
+    Integer insertServerReport(int reported, String message);
+
+    /**
+     * @param cmid The {@link ChatMessage}'s id.
+     * @param targetID The reported {@link User}'s ID.
+     * @param initiatorID The initiating {@link User}'s ID.
+     * @param reportMessage The body of the report.
+     * @return The inserted row ID.
+     */
+    Integer insertChatReport(int cmid, int targetID, int initiatorID, String reportMessage);
+
+    /**
+     * @param cmid The {@link ChatMessage}'s id.
+     * @param target The reported {@link User}.
+     * @param initiator The initiating {@link User}.
+     * @param reportMessage The body of the report.
+     * @return The inserted row ID.
+     */
+    default Integer insertChatReport(int cmid, User target, User initiator, String reportMessage) {
+        return insertChatReport(cmid, target.getId(), initiator == null ? 0 : initiator.getId(), reportMessage);
+    }
+}
@@ -0,0 +1,38 @@
+package space.pxls.data;
+
+import java.util.Optional;
+
+/**
+ * Storage for login sessions.
+ */
+public interface SessionStore {
+    /**
+     * Gets a user by their token.
+     * @param token The user's token.
+     * @return The user.
+     */
+    Optional<DBUser> getUserByToken(String token);
+
+    /**
+     * @param who The user's ID.
+     * @param token The user's token.
+     */
+    void createSession(int who, String token);
+
+    /**
+     * Destroys the user's session.
+     * @param token The user's token.
+     */
+    void destroySession(String token);
+
+    /**
+     * Resets the user's session timeout.
+     * @param token The user's token.
+     */
+    void updateSession(String token);
+
+    /**
+     * Invalidates sessions older than 24 days.
+     */
+    void clearOldSessions();
+}
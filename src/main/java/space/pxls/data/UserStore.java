@@ -0,0 +1,216 @@
+package space.pxls.data;
+
+import space.pxls.user.Role;
+import space.pxls.user.User;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Storage for user accounts, their roles, bans and other per-user state.
+ */
+public interface UserStore {
+    /**
+     * Updates the user cooldown expiry.
+     * @param id The user's ID.
+     * @param seconds The amount of seconds until the cooldown expires.
+     */
+    void updateUserTime(int id, long seconds);
+
+    /**
+     * Gets a user by their login method.
+     * @param login The user's login method.
+     * @return The user.
+     */
+    Optional<DBUser> getUserByLogin(String login);
+
+    /**
+     * Gets a user by their username.
+     * @param name The user's username.
+     * @return The user.
+     */
+    Optional<DBUser> getUserByName(String name);
+
+    /**
+     * Gets a user by their ID.
+     * @param who The user's ID.
+     * @return The user.
+     */
+    Optional<DBUser> getUserByID(int who);
+
+    /**
+     * Creates a new user entry.
+     * @param name The username.
+     * @param login The login method.
+     * @param ip The IP address.
+     * @return The user.
+     */
+    Optional<DBUser> createUser(String name, String login, String ip);
+
+    /**
+     * @param who The user ID.
+     * @return The user's roles.
+     */
+    List<Role> getUserRoles(int who);
+
+    /**
+     * Updates the {@link User}'s roles.
+     * @param userID The user's ID.
+     * @param roles The new roles.
+     */
+    void setUserRoles(int userID, List<Role> roles);
+
+    /**
+     * Updates the {@link User}'s ban length.
+     * @param user The user.
+     * @param time The new time length from now, in seconds.
+     */
+    void updateBan(User user, Integer time);
+
+    /**
+     * Updates the {@link User}'s ban reason.
+     * @param user The user.
+     * @param reason The new ban reason.
+     */
+    void updateBanReason(User user, String reason);
+
+    /**
+     * Updates the {@link User}'s shadow-ban status.
+     * @param user The user.
+     * @param shadowBanned Whether or not the user is shadow-banned.
+     */
+    void updateUserShadowBanned(User user, boolean shadowBanned);
+
+    /**
+     * Updates the {@link User}'s user agent.
+     * @param user The user.
+     * @param agent The new user agent.
+     */
+    void updateUserAgent(User user, String agent);
+
+    /**
+     * Updates the {@link User}'s last IP.
+     * @param user The user.
+     * @param ip The new last IP.
+     */
+    void updateUserIP(User user, String ip);
+
+    /**
+     * Sets the {@link User}'s stack count.
+     * @param user The user.
+     * @param stacked The new stack count.
+     */
+    void updateUserStacked(User user, int stacked);
+
+    /**
+     * Gets whether or not the {@link User} has been requested to change their username.
+     * @param who The {@link User}'s ID.
+     * @return Whether or not the user has been requested to change their username.
+     */
+    boolean isRenameRequested(int who);
+
+    /**
+     * Sets whether or not the {@link User} has been requested to change their username.
+     * @param who The ID of the user to update.
+     * @param isRequested Whether or not the user has been requested to change their username.
+     */
+    void setRenameRequested(int who, boolean isRequested);
+
+    /**
+     * Updates the requested {@link User}'s username. <strong>Does not do any collision checks</strong>.
+     * @param who The {@link User}'s ID.
+     * @param username The new username.
+     */
+    void updateUsername(int who, String username);
+
+    /**
+     * Sets the public Discord username of the {@link User}.
+     * @param who The {@link User}'s ID.
+     * @param discordName The new discord username.
+     */
+    void setDiscordName(int who, String discordName);
+
+    /**
+     * Sets the {@link User}'s faction_restricted state, which disallows them from creating or obtaining ownership of factions.
+     * <br>This will not remove their currently owned factions, only disallow future actions.
+     *
+     * @param who The {@link User}'s ID.
+     * @param factionBlocked Whether or not the user is currently faction_restricted.
+     */
+    void setUserFactionBlocked(int who, boolean factionBlocked);
+
+    /**
+     * Gets the {@link User}'s ban reason.
+     * @param who The {@link User}'s ID.
+     * @return The {@link User}'s ban reason.
+     */
+    String getUserBanReason(int who);
+
+    /**
+     * Gets the amount of pixels a {@link User} has for the current canvas.
+     * @param who The {@link User}'s ID.
+     * @return The amount of pixels the user has.
+     */
+    int getUserPixelCount(int who);
+
+    /**
+     * Gets the amount of all-time pixels a {@link User} has.
+     * @param who The {@link User}'s ID.
+     * @return The amount of all-time pixels the user has.
+     */
+    int getUserPixelCountAllTime(int who);
+
+    /**
+     * Gets whether or not the specified {@link User} is flagged to trigger a last IP alert.
+     * @param who The {@link User}'s ID.
+     * @return Whether or not the {@link User} is flagged.
+     */
+    boolean hasLastIPAlertFlag(int who);
+
+    /**
+     * Sets whether or not the specified {@link User} is flagged to trigger a last IP alert.
+     * @param who The {@link User}'s ID.
+     * @param isFlagged Whether or not the {@link User} is flagged.
+     */
+    void setLastIPAlertFlag(int who, boolean isFlagged);
+
+    /**
+     * @param who The {@link User}'s ID.
+     * @param ip The {@link User}'s IP.
+     * @return Whether or not the specified {@link User} has other {@link User}s with the same sign-up IP or last IP.
+     */
+    boolean haveDuplicateIP(int who, String ip);
+
+    /**
+     * Gets the count of {@link User}s who have the same sign-up or last IP as the specified {@link User}.
+     * @param who The {@link User}'s ID.
+     * @param ip The {@link User}'s IP.
+     * @return The count of found {@link User} IDs.
+     */
+    int getDuplicateCount(int who, String ip);
+
+    /**
+     * Gets a list of {@link User} IDs who have the same sign-up IP or last IP as the specified {@link User}.
+     * @param who The {@link User}'s ID.
+     * @param ip The {@link User}'s IP.
+     * @return A list of the found {@link User} IDs.
+     */
+    List<Integer> getDuplicateUsers(int who, String ip);
+
+    /**
+     * Sets the chat name color for the specified {@link User}.
+     * @param who The {@link User}'s ID.
+     * @param color The palette color.
+     */
+    void setChatNameColor(int who, int color);
+
+    /**
+     * Modifies the specified user's pixel count by a certain amount.
+     * @param who The ID of the {@link User}.
+     * @param amount The amount of pixels to increase the count with. Use a negative value to decrease pixels.
+     * @param increaseCurrent Whenever to increase the pixel count for the current canvas.
+     * @param increaseAllTime Whenever to increase the total pixel count of the user.
+     * @return An instance of {@Link DBUserPixelCounts}.
+     */
+    DBUserPixelCounts modifyPixelCounts(int who, int amount, boolean increaseCurrent, boolean increaseAllTime);
+}
@@ -0,0 +1,231 @@
+package space.pxls.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of runtime metrics, exported in the Prometheus text format on <pre>/metrics</pre>.<br>
+ * Counters and histograms are lock-free and cheap enough to update on every placement or broadcast. Stats kept
+ *  elsewhere (caches, rate limiters, jobs, queries) are read at scrape time by {@link Collector}s.
+ */
+public class Metrics {
+    private static final Metrics instance = new Metrics();
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name The metric name, ending in <pre>_total</pre>.
+     * @param help The description.
+     * @return A new, registered counter.
+     */
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        register(counter);
+        return counter;
+    }
+
+    /**
+     * @param name The metric name, ending in <pre>_seconds</pre>.
+     * @param help The description.
+     * @return A new, registered histogram of durations recorded in nanoseconds, from a microsecond to about a minute.
+     */
+    public Histogram latencyHistogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help, 1000, 27, 1e9);
+        register(histogram);
+        return histogram;
+    }
+
+    /**
+     * @param name The metric name, ending in <pre>_bytes</pre>.
+     * @param help The description.
+     * @return A new, registered histogram of sizes recorded in bytes, from 64B to 8MiB.
+     */
+    public Histogram sizeHistogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help, 64, 18, 1);
+        register(histogram);
+        return histogram;
+    }
+
+    public void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    /**
+     * @return Every registered metric, in the Prometheus text exposition format.
+     */
+    public String scrape() {
+        Writer writer = new Writer();
+        for (Collector collector : collectors) {
+            try {
+                collector.collect(writer);
+            } catch (Exception e) {
+                // one broken collector shouldn't take the rest down with it
+                e.printStackTrace();
+            }
+        }
+        return writer.toString();
+    }
+
+    public interface Collector {
+        void collect(Writer writer);
+    }
+
+    public static class Counter implements Collector {
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void collect(Writer writer) {
+            writer.family(name, "counter", help);
+            writer.sample(name, get());
+        }
+    }
+
+    /**
+     * A histogram with one bucket per power of two: bucket <pre>i</pre> counts values up to
+     *  <pre>firstBound &lt;&lt; i</pre>, the last one everything above.
+     */
+    public static class Histogram implements Collector {
+        private final String name;
+        private final String help;
+        private final long firstBound;
+        private final double unitsPerExported;
+        private final AtomicLongArray buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * @param firstBound The upper bound of the first bucket, in recorded units.
+         * @param bounded The number of buckets below the +Inf one.
+         * @param unitsPerExported How many recorded units make one exported unit (1e9 for nanoseconds as seconds).
+         */
+        private Histogram(String name, String help, long firstBound, int bounded, double unitsPerExported) {
+            this.name = name;
+            this.help = help;
+            this.firstBound = firstBound;
+            this.unitsPerExported = unitsPerExported;
+            this.buckets = new AtomicLongArray(bounded + 1);
+        }
+
+        public void observe(long value) {
+            int bucket = value <= firstBound ? 0 : 64 - Long.numberOfLeadingZeros((value - 1) / firstBound);
+            buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * @param startNanos The {@link System#nanoTime()} the timed operation started at.
+         */
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public void collect(Writer writer) {
+            writer.family(name, "histogram", help);
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length() - 1; i++) {
+                cumulative += buckets.get(i);
+                writer.sample(name + "_bucket", cumulative, "le", Writer.format((firstBound << i) / unitsPerExported));
+            }
+            cumulative += buckets.get(buckets.length() - 1);
+            writer.sample(name + "_bucket", cumulative, "le", "+Inf");
+            writer.sample(name + "_sum", sum.sum() / unitsPerExported);
+            writer.sample(name + "_count", cumulative);
+        }
+    }
+
+    /**
+     * Builds the exposition text. Each metric family is written with {@link #family} once, followed by all of its
+     *  samples.
+     */
+    public static class Writer {
+        private final StringBuilder sb = new StringBuilder(16384);
+
+        public void family(String name, String type, String help) {
+            sb.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        /**
+         * @param labels Label names and values, alternating.
+         */
+        public void sample(String name, long value, String... labels) {
+            appendName(name, labels);
+            sb.append(value).append('\n');
+        }
+
+        /**
+         * @param labels Label names and values, alternating.
+         */
+        public void sample(String name, double value, String... labels) {
+            appendName(name, labels);
+            sb.append(format(value)).append('\n');
+        }
+
+        private void appendName(String name, String[] labels) {
+            sb.append(name);
+            if (labels.length > 0) {
+                sb.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    if (i > 0) sb.append(',');
+                    sb.append(labels[i]).append("=\"");
+                    String value = labels[i + 1];
+                    for (int j = 0; j < value.length(); j++) {
+                        char c = value.charAt(j);
+                        if (c == '\\' || c == '"') sb.append('\\').append(c);
+                        else if (c == '\n') sb.append("\\n");
+                        else sb.append(c);
+                    }
+                    sb.append('"');
+                }
+                sb.append('}');
+            }
+            sb.append(' ');
+        }
+
+        static String format(double value) {
+            if (Double.isNaN(value)) return "NaN";
+            if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+            return Double.toString(value);
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package space.pxls.metrics;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+import space.pxls.App;
+import space.pxls.data.AuditLogWriter;
+import space.pxls.data.JdbiDatabase;
+import space.pxls.data.QueryStats;
+import space.pxls.data.ReplicaRouter;
+import space.pxls.server.InboundFrameLimiter;
+import space.pxls.server.ProfileCache;
+import space.pxls.server.RequestDispatcher;
+import space.pxls.server.UndertowServer;
+import space.pxls.tasks.JobScheduler;
+import space.pxls.util.RateLimitFactory;
+
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Exports the stats the server already keeps for its console commands (<pre>cons</pre>, <pre>usercache</pre>,
+ *  <pre>profilecache</pre>, <pre>ratelimits</pre>, <pre>jobs</pre>, <pre>threads</pre>, <pre>dbstats</pre>,
+ *  <pre>dbpools</pre>, <pre>audit</pre>), read when scraped.
+ */
+public class RuntimeMetrics implements Metrics.Collector {
+    @Override
+    public void collect(Metrics.Writer writer) {
+        UndertowServer server = App.getServer();
+        if (server != null) {
+            collectServer(writer, server);
+        }
+        if (App.getUserManager() != null) {
+            collectCache(writer, "pxls_user_cache", "user cache", App.getUserManager().getUserCache().size(),
+                App.getUserManager().getUserCache().getHits(), App.getUserManager().getUserCache().getMisses(),
+                App.getUserManager().getUserCache().getEvictions());
+        }
+        collectRateLimits(writer, RateLimitFactory.getLimiters());
+        if (App.getJobScheduler() != null) {
+            collectJobs(writer, App.getJobScheduler().getJobs());
+        }
+        if (App.getDatabase() instanceof JdbiDatabase) {
+            JdbiDatabase database = (JdbiDatabase) App.getDatabase();
+            collectQueries(writer, database.getQueryStats());
+            collectPools(writer, database.getReplicaRouter());
+            collectAudit(writer, database.getAuditLogWriter());
+        }
+    }
+
+    private static void collectServer(Metrics.Writer writer, UndertowServer server) {
+        writer.family("pxls_websocket_connections", "gauge", "Open websocket connections");
+        writer.sample("pxls_websocket_connections", server.getPacketHandler().getNumAllCons());
+        writer.family("pxls_users_online", "gauge", "Users with at least one open connection");
+        writer.sample("pxls_users_online", server.getAuthedUsers().size());
+        writer.family("pxls_users_active", "gauge", "Online users that aren't idle");
+        writer.sample("pxls_users_active", server.getNonIdledUsersCount());
+        writer.family("pxls_stack_scheduled_users", "gauge", "Users waiting for a stacked pixel");
+        writer.sample("pxls_stack_scheduled_users", server.getStackScheduler().size());
+
+        InboundFrameLimiter frames = server.getFrameLimiter();
+        writer.family("pxls_websocket_frames_total", "counter", "Inbound websocket messages, by whether the rate limit let them through");
+        writer.sample("pxls_websocket_frames_total", frames.getAccepted(), "result", "accepted");
+        writer.sample("pxls_websocket_frames_total", frames.getDropped(), "result", "dropped");
+        writer.family("pxls_websocket_flood_closes_total", "counter", "Connections closed for flooding");
+        writer.sample("pxls_websocket_flood_closes_total", frames.getClosed());
+        writer.family("pxls_websocket_receive_errors_total", "counter", "Websocket receive errors, including oversized frames");
+        writer.sample("pxls_websocket_receive_errors_total", frames.getReceiveErrors());
+
+        ProfileCache profiles = server.getWebHandler().getProfileCache();
+        collectCache(writer, "pxls_profile_cache", "rendered profile cache", profiles.size(), profiles.getHits(), profiles.getMisses(), profiles.getEvictions());
+
+        RequestDispatcher dispatcher = server.getRequestDispatcher();
+        if (dispatcher != null) {
+            writer.family("pxls_http_requests_total", "counter", "HTTP requests, by whether they ran on the I/O thread or were dispatched");
+            writer.sample("pxls_http_requests_total", dispatcher.getInline(), "thread", "inline");
+            writer.sample("pxls_http_requests_total", dispatcher.getDispatched(), "thread", "dispatched");
+            writer.family("pxls_http_dispatch_wait_max_seconds", "gauge", "Longest wait of a dispatched request for a thread");
+            writer.sample("pxls_http_dispatch_wait_max_seconds", dispatcher.getMaxWaitNanos() / 1e9);
+        }
+        ThreadPoolExecutor blocking = dispatcher == null ? null : dispatcher.getExecutor();
+        ThreadPoolExecutor userTasks = server.getUserTaskExecutor();
+        writer.family("pxls_thread_pool_active", "gauge", "Busy threads, by pool");
+        writer.sample("pxls_thread_pool_active", userTasks.getActiveCount(), "pool", "user_tasks");
+        if (blocking != null) writer.sample("pxls_thread_pool_active", blocking.getActiveCount(), "pool", "blocking");
+        writer.family("pxls_thread_pool_queued", "gauge", "Queued tasks, by pool");
+        writer.sample("pxls_thread_pool_queued", userTasks.getQueue().size(), "pool", "user_tasks");
+        if (blocking != null) writer.sample("pxls_thread_pool_queued", blocking.getQueue().size(), "pool", "blocking");
+    }
+
+    private static void collectCache(Metrics.Writer writer, String prefix, String description, int size, long hits, long misses, long evictions) {
+        writer.family(prefix + "_size", "gauge", "Entries in the " + description);
+        writer.sample(prefix + "_size", size);
+        writer.family(prefix + "_requests_total", "counter", "Lookups in the " + description + ", by result");
+        writer.sample(prefix + "_requests_total", hits, "result", "hit");
+        writer.sample(prefix + "_requests_total", misses, "result", "miss");
+        writer.family(prefix + "_evictions_total", "counter", "Entries evicted from the " + description);
+        writer.sample(prefix + "_evictions_total", evictions);
+    }
+
+    private static void collectRateLimits(Metrics.Writer writer, List<RateLimitFactory.Limiter> limiters) {
+        writer.family("pxls_ratelimit_tracked", "gauge", "Identifiers tracked, by bucket");
+        for (RateLimitFactory.Limiter limiter : limiters) {
+            writer.sample("pxls_ratelimit_tracked", limiter.size(), "bucket", limiter.getBucketType());
+        }
+        writer.family("pxls_ratelimit_requests_total", "counter", "Rate limited actions, by bucket and result");
+        for (RateLimitFactory.Limiter limiter : limiters) {
+            writer.sample("pxls_ratelimit_requests_total", limiter.getAllowed(), "bucket", limiter.getBucketType(), "result", "allowed");
+            writer.sample("pxls_ratelimit_requests_total", limiter.getRejected(), "bucket", limiter.getBucketType(), "result", "rejected");
+        }
+    }
+
+    private static void collectJobs(Metrics.Writer writer, List<JobScheduler.Job> jobs) {
+        writer.family("pxls_job_runs_total", "counter", "Periodic job runs, by job and result");
+        for (JobScheduler.Job job : jobs) {
+            writer.sample("pxls_job_runs_total", job.getRuns() - job.getFailures(), "job", job.getName(), "result", "success");
+            writer.sample("pxls_job_runs_total", job.getFailures(), "job", job.getName(), "result", "failure");
+            writer.sample("pxls_job_runs_total", job.getSkipped(), "job", job.getName(), "result", "skipped");
+        }
+        writer.family("pxls_job_last_run_seconds", "gauge", "Duration of the last run, by job");
+        for (JobScheduler.Job job : jobs) {
+            writer.sample("pxls_job_last_run_seconds", job.getLastRunNanos() / 1e9, "job", job.getName());
+        }
+        writer.family("pxls_job_max_run_seconds", "gauge", "Longest run, by job");
+        for (JobScheduler.Job job : jobs) {
+            writer.sample("pxls_job_max_run_seconds", job.getMaxRunNanos() / 1e9, "job", job.getName());
+        }
+        writer.family("pxls_job_last_lateness_seconds", "gauge", "How late the last run started, by job");
+        for (JobScheduler.Job job : jobs) {
+            writer.sample("pxls_job_last_lateness_seconds", job.getLastLatenessMS() / 1e3, "job", job.getName());
+        }
+    }
+
+    private static void collectQueries(Metrics.Writer writer, QueryStats stats) {
+        // the dbstats reset command clears these, which Prometheus sees as a counter reset
+        List<QueryStats.Timer> queries = stats.getQueries();
+        writer.family("pxls_db_queries_total", "counter", "Database calls, by query");
+        for (QueryStats.Timer timer : queries) writer.sample("pxls_db_queries_total", timer.getCalls(), "query", timer.getName());
+        writer.family("pxls_db_query_errors_total", "counter", "Failed database calls, by query");
+        for (QueryStats.Timer timer : queries) writer.sample("pxls_db_query_errors_total", timer.getErrors(), "query", timer.getName());
+        writer.family("pxls_db_query_results_total", "counter", "Results returned (collection sizes, 1 per single value), by query");
+        for (QueryStats.Timer timer : queries) writer.sample("pxls_db_query_results_total", timer.getResults(), "query", timer.getName());
+        writer.family("pxls_db_query_seconds_total", "counter", "Time spent in database calls, by query");
+        for (QueryStats.Timer timer : queries) writer.sample("pxls_db_query_seconds_total", timer.getTotalNanos() / 1e9, "query", timer.getName());
+        writer.family("pxls_db_query_p99_seconds", "gauge", "99th percentile database call time, by query");
+        for (QueryStats.Timer timer : queries) writer.sample("pxls_db_query_p99_seconds", timer.getPercentileMicros(0.99) / 1e6, "query", timer.getName());
+    }
+
+    private static void collectPools(Metrics.Writer writer, ReplicaRouter router) {
+        writer.family("pxls_db_pool_connections", "gauge", "Pooled database connections, by pool and state");
+        collectPool(writer, "primary", router.getPrimaryPool());
+        if (router.getReplicaPool() != null) collectPool(writer, "replica", router.getReplicaPool());
+        writer.family("pxls_db_reads_total", "counter", "Read-only queries, by the pool that served them");
+        writer.sample("pxls_db_reads_total", router.getPrimaryReads(), "pool", "primary");
+        writer.sample("pxls_db_reads_total", router.getReplicaReads(), "pool", "replica");
+        if (router.getReplicaPool() != null) {
+            writer.family("pxls_db_replica_lag_seconds", "gauge", "Last measured replica lag, -1 if unknown");
+            long lag = router.getReplicaLagMS();
+            writer.sample("pxls_db_replica_lag_seconds", lag < 0 ? -1 : lag / 1e3);
+        }
+    }
+
+    private static void collectPool(Metrics.Writer writer, String name, HikariPoolMXBean pool) {
+        if (pool == null) return;
+        writer.sample("pxls_db_pool_connections", pool.getActiveConnections(), "pool", name, "state", "active");
+        writer.sample("pxls_db_pool_connections", pool.getIdleConnections(), "pool", name, "state", "idle");
+        writer.sample("pxls_db_pool_connections", pool.getThreadsAwaitingConnection(), "pool", name, "state", "waiting");
+    }
+
+    private static void collectAudit(Metrics.Writer writer, AuditLogWriter audit) {
+        writer.family("pxls_audit_queue_depth", "gauge", "Audit rows waiting to be written");
+        writer.sample("pxls_audit_queue_depth", audit.getQueueDepth());
+        writer.family("pxls_audit_rows_total", "counter", "Audit rows, by outcome");
+        writer.sample("pxls_audit_rows_total", audit.getWritten(), "outcome", "written");
+        writer.sample("pxls_audit_rows_total", audit.getOverflowed(), "outcome", "overflowed");
+        writer.sample("pxls_audit_rows_total", audit.getFailed(), "outcome", "failed");
+    }
+}
@@ -0,0 +1,119 @@
+package space.pxls.server;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ETag;
+import io.undertow.util.ETagUtils;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body prepared once and sent many times: kept with a gzipped variant (when that is smaller) and
+ *  ETags derived from its content, so sending it is a header lookup and a buffer wrap. The variants have distinct
+ *  ETags, as their bytes differ.
+ */
+public class CachedResponse {
+    private final byte[] content;
+    private final byte[] gzipped;
+    private final String contentType;
+    private final String version;
+    private final ETag etag;
+    private final ETag gzippedETag;
+
+    public CachedResponse(byte[] content, String contentType) {
+        this.content = content;
+        this.gzipped = gzip(content);
+        this.contentType = contentType;
+        this.version = hash(content);
+        this.etag = new ETag(false, version);
+        this.gzippedETag = new ETag(false, version + "-gz");
+    }
+
+    /**
+     * @param json The serialized JSON.
+     * @return A cached JSON response.
+     */
+    public static CachedResponse json(String json) {
+        return new CachedResponse(json.getBytes(StandardCharsets.UTF_8), "application/json");
+    }
+
+    /**
+     * Sends the response, or a 304 if the client's copy is current.
+     * @param exchange The exchange.
+     * @param cacheControl The Cache-Control header value.
+     */
+    public void send(HttpServerExchange exchange, String cacheControl) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst(Headers.ACCEPT_ENCODING);
+        boolean gzip = gzipped != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+        ETag sentETag = gzip ? gzippedETag : etag;
+        exchange.getResponseHeaders().put(Headers.ETAG, sentETag.toString());
+        exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, cacheControl);
+        if (gzipped != null) exchange.getResponseHeaders().add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+        if (!ETagUtils.handleIfNoneMatch(exchange, sentETag, true)) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+
+        byte[] body = content;
+        if (gzip) {
+            body = gzipped;
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "gzip");
+        }
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, contentType);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, body.length);
+        if (exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.endExchange();
+        } else {
+            exchange.getResponseSender().send(ByteBuffer.wrap(body));
+        }
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return The gzipped content, or null if gzip didn't save at least a tenth (already compressed formats).
+     */
+    public byte[] getGzipped() {
+        return gzipped;
+    }
+
+    /**
+     * @return A short hash of the content.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    private static byte[] gzip(byte[] content) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out) {{ def.setLevel(9); }}) {
+                gzip.write(content);
+            }
+            return out.size() < content.length * 0.9 ? out.toByteArray() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package space.pxls.server;
+
+import space.pxls.App;
+import space.pxls.data.DBChatMessage;
+import space.pxls.server.packets.chat.ChatAuthor;
+import space.pxls.server.packets.chat.ChatMessage;
+import space.pxls.server.packets.chat.ServerChatHistory;
+import space.pxls.user.User;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Ring buffer of the most recent rendered {@link ChatMessage}s, so answering a <pre>ChatHistory</pre> request
+ *  doesn't need any database query or author lookup.<br>
+ * The buffer is filled from the database on first use and then kept in sync by
+ *  {@link PacketHandler#handleChatMessage} and the chat purges. The serialized history is cached for each
+ *  combination of the <pre>chat.history.purged</pre> and <pre>chat.history.shadowbanned</pre> permissions
+ *  (i.e. staff and non-staff) until the next message or purge. Only shadow banned users, who see their own
+ *  messages differently, get a history rendered just for them.<br>
+ * Author names, badges and factions are captured when the message is sent.
+ */
+public class ChatHistoryBuffer {
+    private static final int HISTORY_SIZE = 100;
+
+    private final int capacity;
+    private final Deque<Entry> entries;
+    private boolean loaded = false;
+    // indexed by variant(), reset whenever the buffer changes
+    private String[] serialized = new String[4];
+
+    public ChatHistoryBuffer(int capacity) {
+        // keep some slack over the history size so purged messages don't shrink the non-staff history
+        this.capacity = Math.max(HISTORY_SIZE, capacity);
+        this.entries = new ArrayDeque<>(this.capacity);
+    }
+
+    private static int variant(boolean includePurged, boolean includeShadowBanned) {
+        return (includePurged ? 1 : 0) | (includeShadowBanned ? 2 : 0);
+    }
+
+    /**
+     * @param user The user requesting the history.
+     * @return The serialized {@link ServerChatHistory} packet for the user.
+     */
+    public synchronized String getHistoryJSON(User user) {
+        ensureLoaded();
+        boolean includePurged = user.hasPermission("chat.history.purged");
+        boolean includeShadowBanned = user.hasPermission("chat.history.shadowbanned");
+        if (user.isShadowBanned()) {
+            return App.getGson().toJson(render(user, includePurged, includeShadowBanned));
+        }
+        int variant = variant(includePurged, includeShadowBanned);
+        if (serialized[variant] == null) {
+            serialized[variant] = App.getGson().toJson(render(null, includePurged, includeShadowBanned));
+        }
+        return serialized[variant];
+    }
+
+    private ServerChatHistory render(User viewer, boolean includePurged, boolean includeShadowBanned) {
+        List<ChatMessage> messages = new ArrayList<>(HISTORY_SIZE);
+        Iterator<Entry> it = entries.descendingIterator();
+        int taken = 0;
+        while (it.hasNext() && taken < HISTORY_SIZE) {
+            Entry entry = it.next();
+            if (!includePurged && entry.message.purge != null) continue;
+            taken++;
+            ChatMessage message = entry.message;
+            if (viewer != null && entry.authorID == viewer.getId()) {
+                message = message.asShadowBanned();
+            }
+            if (!includePurged && App.getSnipMode()) {
+                message = message.asSnipRedacted();
+            }
+            if (message.getAuthorWasShadowBanned() && !includeShadowBanned) continue;
+            messages.add(message);
+        }
+        return new ServerChatHistory(messages);
+    }
+
+    /**
+     * Appends a newly sent message.
+     * @param authorID The author's user ID, or 0 for the console.
+     * @param message The rendered message, as broadcast to staff.
+     */
+    public synchronized void add(int authorID, ChatMessage message) {
+        if (!loaded) return; // it will be read back from the database on first use
+        // the message may already have been read back if the buffer was loaded after it was inserted
+        for (Entry entry : entries) {
+            if (entry.message.id == message.id) return;
+        }
+        append(new Entry(authorID, message));
+        invalidate();
+    }
+
+    /**
+     * Marks every buffered message of a user as purged.
+     * @param authorID The author's user ID.
+     * @param purge The purge details.
+     */
+    public synchronized void purgeAuthor(int authorID, ChatMessage.Purge purge) {
+        boolean changed = false;
+        for (Entry entry : entries) {
+            if (entry.authorID == authorID && entry.message.purge == null) {
+                entry.message = entry.message.asPurged(purge);
+                changed = true;
+            }
+        }
+        if (changed) invalidate();
+    }
+
+    /**
+     * Marks the specified buffered messages as purged.
+     * @param ids The chat message IDs.
+     * @param purge The purge details.
+     */
+    public synchronized void purgeIDs(Collection<Integer> ids, ChatMessage.Purge purge) {
+        boolean changed = false;
+        for (Entry entry : entries) {
+            if (ids.contains(entry.message.id) && entry.message.purge == null) {
+                entry.message = entry.message.asPurged(purge);
+                changed = true;
+            }
+        }
+        if (changed) invalidate();
+    }
+
+    /**
+     * Drops the buffer. It is read back from the database on next use.
+     */
+    public synchronized void reload() {
+        entries.clear();
+        loaded = false;
+        invalidate();
+    }
+
+    private void append(Entry entry) {
+        if (entries.size() >= capacity) entries.removeFirst();
+        entries.addLast(entry);
+    }
+
+    private void invalidate() {
+        serialized = new String[4];
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        List<DBChatMessage> recent = App.getDatabase().getLastXMessages(capacity, true);
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            DBChatMessage dbChatMessage = recent.get(i);
+            append(new Entry(dbChatMessage.author_uid, fromDatabase(dbChatMessage)));
+        }
+        loaded = true;
+    }
+
+    private static ChatMessage fromDatabase(DBChatMessage dbChatMessage) {
+        ChatAuthor author = ChatAuthor.CONSOLE;
+        if (dbChatMessage.author_uid > 0) {
+            User user = App.getUserManager().getByID(dbChatMessage.author_uid);
+            author = user != null ? user.getChatAuthor() : ChatAuthor.UNKNOWN;
+        }
+        return new ChatMessage(
+            dbChatMessage.id,
+            author,
+            dbChatMessage.sent,
+            App.getConfigSnapshot().textFilterEnabled && dbChatMessage.filtered_content.length() > 0
+                ? dbChatMessage.filtered_content
+                : dbChatMessage.content,
+            dbChatMessage.purged
+                ? new ChatMessage.Purge(dbChatMessage.purged_by_uid, dbChatMessage.purge_reason)
+                : null,
+            dbChatMessage.author_was_shadow_banned
+        );
+    }
+
+    private static class Entry {
+        private final int authorID;
+        private ChatMessage message;
+
+        private Entry(int authorID, ChatMessage message) {
+            this.authorID = authorID;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package space.pxls.server;
+
+import io.undertow.websockets.core.CloseMessage;
+import io.undertow.websockets.core.WebSockets;
+import space.pxls.App;
+import space.pxls.ConfigSnapshot;
+import space.pxls.user.User;
+import space.pxls.util.RateLimitFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Inbound websocket frame budgets.<br>
+ * Every text frame is counted against its connection's budget (<pre>server.websocket.connection</pre>) and, for
+ *  authed users, against the budget shared by all of the user's connections (<pre>server.websocket.user</pre>),
+ *  before it is decoded. Frames over budget are dropped without a reply; a connection that keeps sending them is
+ *  closed once it has had <pre>server.websocket.closeAfterDropped</pre> frames dropped. Users with the
+ *  <pre>user.ratelimits.bypass</pre> permission are not limited.
+ */
+public class InboundFrameLimiter {
+    public static final String CONNECTION_BUCKET = "ws:connection";
+    public static final String USER_BUCKET = "ws:user";
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+
+    /**
+     * @param con The connection the frame arrived on.
+     * @return Whether the frame should be handled. If not, the frame has been counted as dropped, and the connection
+     *  may have been closed.
+     */
+    public boolean allow(PxlsWebSocketConnection con) {
+        User user = con.getUser().orElse(null);
+        if (user != null && user.hasPermission("user.ratelimits.bypass")) {
+            accepted.increment();
+            return true;
+        }
+        boolean allowed = RateLimitFactory.getTimeRemaining(CONNECTION_BUCKET, con.getLimiterKey()) == 0
+            && (user == null || RateLimitFactory.getTimeRemaining(USER_BUCKET, String.valueOf(user.getId())) == 0);
+        if (allowed) {
+            accepted.increment();
+            return true;
+        }
+        dropped.increment();
+        int closeAfter = App.getConfigSnapshot().websocketCloseAfterDropped;
+        if (closeAfter > 0 && con.incrementDropped() == closeAfter) {
+            closed.increment();
+            App.getLogger().info("Closing websocket of {} after {} dropped frames", user == null ? "guest" : user.getName(), closeAfter);
+            WebSockets.sendClose(CloseMessage.MSG_VIOLATES_POLICY, "Too many messages", con.getChannel(), null);
+        }
+        return false;
+    }
+
+    /**
+     * Counts a failed receive, which includes frames over <pre>server.websocket.maxFrameSize</pre>.
+     */
+    void receiveError() {
+        receiveErrors.increment();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getClosed() {
+        return closed.sum();
+    }
+
+    public long getReceiveErrors() {
+        return receiveErrors.sum();
+    }
+
+    @Override
+    public String toString() {
+        ConfigSnapshot snapshot = App.getConfigSnapshot();
+        return String.format("websocket frames: %d accepted, %d dropped, %d connections closed, %d receive errors (max frame %d bytes, close after %d dropped)",
+            getAccepted(), getDropped(), getClosed(), getReceiveErrors(), snapshot.websocketMaxFrameSize, snapshot.websocketCloseAfterDropped);
+    }
+}
@@ -5,49 +5,58 @@ import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.async.Callback;
 import com.mashape.unirest.http.exceptions.UnirestException;
-import com.typesafe.config.Config;
 import io.undertow.websockets.core.WebSocketChannel;
 import org.jdbi.v3.core.statement.UnableToExecuteStatementException;
 import space.pxls.App;
+import space.pxls.ConfigSnapshot;
 import space.pxls.data.DBChatMessage;
 import space.pxls.data.DBPixelPlacementFull;
+import space.pxls.metrics.Metrics;
 import space.pxls.server.packets.chat.*;
 import space.pxls.server.packets.socket.*;
-import space.pxls.user.Faction;
 import space.pxls.user.User;
 import space.pxls.util.TextFilter;
 import space.pxls.util.RateLimitFactory;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.StringEscapeUtils.escapeHtml4;
 
 public class PacketHandler {
+    private static final Metrics.Counter PLACEMENTS = Metrics.getInstance().counter("pxls_placements_total", "Pixels placed by users, excluding shadowbanned ones");
+    private static final Metrics.Histogram PLACEMENT_TIME = Metrics.getInstance().latencyHistogram("pxls_placement_seconds", "Time to handle an accepted placement, including the database insert and broadcast");
+    private static final Metrics.Counter UNDOS = Metrics.getInstance().counter("pxls_undos_total", "Placements undone by their users");
+    private static final Metrics.Counter CHAT_MESSAGES = Metrics.getInstance().counter("pxls_chat_messages_total", "Chat messages sent");
+    private static final Metrics.Counter CHAT_FILTERED = Metrics.getInstance().counter("pxls_chat_messages_filtered_total", "Chat messages changed by the text filter");
+    private static final Metrics.Counter CONNECTS = Metrics.getInstance().counter("pxls_websocket_connects_total", "Websocket connections opened");
+    private static final Metrics.Counter DISCONNECTS = Metrics.getInstance().counter("pxls_websocket_disconnects_total", "Websocket connections closed");
+
     private UndertowServer server;
-    private int numAllCons = 0;
+    private final AtomicInteger numAllCons = new AtomicInteger();
+    private final ChatHistoryBuffer chatHistory = new ChatHistoryBuffer(App.getConfig().getInt("chat.historyBufferSize"));
 
     public int getCooldown() {
-        Config config = App.getConfig();
+        ConfigSnapshot config = App.getConfigSnapshot();
 
-        String cooldownType = config.getString("cooldownType").toLowerCase();
-        if (cooldownType.equalsIgnoreCase("activity")) {
+        if (config.activityCooldown) {
             double x = server.getNonIdledUsersCount();
-            double s = config.getDouble("activityCooldown.steepness");
-            double u = config.getDouble("activityCooldown.userOffset");
-            double t = config.getDouble("activityCooldown.globalOffset");
+            double s = config.activityCooldownSteepness;
+            double u = config.activityCooldownUserOffset;
+            double t = config.activityCooldownGlobalOffset;
 
             // Formula by Atomic10 and c4rt
             // https://www.desmos.com/calculator/sgphb1abzi
             double cooldown = s * Math.sqrt(x + u) + t;
 
-            double multiplier = config.getDouble("activityCooldown.multiplier");
+            double multiplier = config.activityCooldownMultiplier;
             cooldown *= multiplier;
 
             return (int) Math.abs(cooldown);
         } else {
-            return (int) config.getDuration("staticCooldown.time", TimeUnit.SECONDS);
+            return config.staticCooldownSeconds;
         }
     }
 
@@ -89,9 +98,11 @@ public class PacketHandler {
 
             user.setInitialAuthTime(System.currentTimeMillis());
             user.tickStack(false); // pop the whole pixel stack
+            server.getStackScheduler().schedule(user);
             sendAvailablePixels(channel, user, "connect");
         }
-        numAllCons++;
+        numAllCons.incrementAndGet();
+        CONNECTS.increment();
 
         updateUserData();
     }
@@ -100,7 +111,8 @@ public class PacketHandler {
         if (user != null && user.getConnections().size() == 0) {
             server.removeAuthedUser(user);
         }
-        numAllCons--;
+        numAllCons.decrementAndGet();
+        DISCONNECTS.increment();
 
         updateUserData();
     }
@@ -204,11 +216,11 @@ public class PacketHandler {
                 if (thisPixel.id != recentPixel.get().id) return;
 
                 if (user.lastPlaceWasStack()) {
-                    user.setStacked(Math.min(user.getStacked() + 1, App.getConfig().getInt("stacking.maxStacked")));
+                    user.setStacked(Math.min(user.getStacked() + 1, App.getStackMaxStacked()));
                     sendAvailablePixels(user, "undo");
                 }
                 user.setCooldown(0);
-                DBPixelPlacementFull lastPixel = App.getDatabase().getPixelByID(null, thisPixel.secondaryId);
+                DBPixelPlacementFull lastPixel = App.getDatabase().getPixelByID(thisPixel.secondaryId);
                 if (lastPixel != null) {
                     App.getDatabase().putUserUndoPixel(lastPixel, user, thisPixel.id);
                     App.putPixel(lastPixel.x, lastPixel.y, lastPixel.color, user, false, ip, false, "user undo");
@@ -226,6 +238,7 @@ public class PacketHandler {
                 sendAvailablePixels(user, "undo");
                 sendCooldownData(user);
                 sendPixelCountUpdate(user);
+                UNDOS.increment();
             } finally {
                 user.releaseUndoLock();
             }
@@ -233,6 +246,7 @@ public class PacketHandler {
     }
 
     private void handlePlace(WebSocketChannel channel, User user, ClientPlace cp, String ip) {
+        long start = System.nanoTime();
         if (!cp.getType().equals("pixel")) {
             handlePlaceMaybe(channel, user, cp, ip);
         }
@@ -244,11 +258,12 @@ public class PacketHandler {
             boolean gotLock = user.tryGetPlacingLock();
             if (gotLock) {
                 try {
-                    boolean doCaptcha = (user.isOverridingCaptcha() || App.isCaptchaEnabled()) && App.isCaptchaConfigured();
+                    ConfigSnapshot config = App.getConfigSnapshot();
+                    boolean doCaptcha = (user.isOverridingCaptcha() || config.captchaEnabled) && config.captchaConfigured;
                     if (doCaptcha) {
-                        int pixels = App.getConfig().getInt("captcha.maxPixels");
+                        int pixels = config.captchaMaxPixels;
                         if (!user.isOverridingCaptcha() && pixels != 0) {
-                            boolean allTime = App.getConfig().getBoolean("captcha.allTime");
+                            boolean allTime = config.captchaAllTime;
                             doCaptcha = (allTime ? user.getAllTimePixelCount() : user.getPixelCount()) < pixels;
                         }
                     }
@@ -287,8 +302,8 @@ public class PacketHandler {
                         int c_old = c;
                         if (user.hasIgnorePlacemap() || isInsidePlacemap) {
                             int seconds = getCooldown();
-                            if (c_old != 0xFF && c_old != -1 && App.getDatabase().shouldPixelTimeIncrease(user.getId(), cp.getX(), cp.getY()) && App.getConfig().getBoolean("backgroundPixel.enabled")) {
-                                seconds = (int)Math.round(seconds * App.getConfig().getDouble("backgroundPixel.multiplier"));
+                            if (c_old != 0xFF && c_old != -1 && config.backgroundPixelEnabled && App.getDatabase().shouldPixelTimeIncrease(user.getId(), cp.getX(), cp.getY())) {
+                                seconds = (int)Math.round(seconds * config.backgroundPixelMultiplier);
                             }
                             if (user.isShadowBanned()) {
                                 // ok let's just pretend to set a pixel...
@@ -299,7 +314,7 @@ public class PacketHandler {
                                 }
                                 ackPlace(user, cp.getX(), cp.getY());
                                 if (user.canUndo(false)) {
-                                    server.send(channel, new ServerCanUndo(App.getConfig().getDuration("undo.window", TimeUnit.SECONDS)));
+                                    server.send(channel, new ServerCanUndo(TimeUnit.MILLISECONDS.toSeconds(config.undoWindowMillis)));
                                 }
                             } else {
                                 boolean modAction = cp.getColor() == 0xFF || user.hasIgnoreCooldown() || (user.hasIgnorePlacemap() && !isInsidePlacemap);
@@ -308,6 +323,7 @@ public class PacketHandler {
                                 broadcastPixelUpdate(cp.getX(), cp.getY(), cp.getColor());
                                 ackPlace(user, cp.getX(), cp.getY());
                                 sendPixelCountUpdate(user);
+                                PLACEMENTS.increment();
                             }
                             if (!user.hasIgnoreCooldown()) {
                                 if (user.isIdled()) {
@@ -327,11 +343,12 @@ public class PacketHandler {
                                 }
 
                                 if (user.canUndo(false)) {
-                                    server.send(channel, new ServerCanUndo(App.getConfig().getDuration("undo.window", TimeUnit.SECONDS)));
+                                    server.send(channel, new ServerCanUndo(TimeUnit.MILLISECONDS.toSeconds(config.undoWindowMillis)));
                                 }
                             }
 
                             sendCooldownData(user);
+                            PLACEMENT_TIME.observeSince(start);
                         }
                     }
                 } finally {
@@ -385,56 +402,12 @@ public class PacketHandler {
     }
 
     public void handleChatHistory(WebSocketChannel channel, User user, ClientChatHistory clientChatHistory) {
-        boolean includePurged = user.hasPermission("chat.history.purged");
-        var messages = App.getDatabase().getLastXMessages(100, includePurged).stream()
-                .map(dbChatMessage -> {
-                    List<Badge> badges = new ArrayList<>();
-                    String authorName = "CONSOLE";
-                    int nameColor = 0;
-                    Faction faction = null;
-                    List<String> nameClass = null;
-                    if (dbChatMessage.author_uid > 0) {
-                        authorName = "$Unknown";
-                        User author = App.getUserManager().getByID(dbChatMessage.author_uid);
-                        if (author != null) {
-                            authorName = author.getName();
-                            badges = author.getChatBadges();
-                            nameColor = author.getChatNameColor();
-                            nameClass = author.getChatNameClasses();
-                            faction = author.fetchDisplayedFaction();
-                        }
-                    }
-                    var message = new ChatMessage(
-                        dbChatMessage.id,
-                        authorName,
-                        dbChatMessage.sent,
-                        App.getConfig().getBoolean("textFilter.enabled") && dbChatMessage.filtered_content.length() > 0
-                            ? dbChatMessage.filtered_content
-                            : dbChatMessage.content,
-                        dbChatMessage.purged
-                            ? new ChatMessage.Purge(dbChatMessage.purged_by_uid, dbChatMessage.purge_reason)
-                            : null,
-                        badges,
-                        nameClass,
-                        nameColor,
-                        dbChatMessage.author_was_shadow_banned,
-                        faction
-                    );
-                    if (user.isShadowBanned() && dbChatMessage.author_uid == user.getId()) {
-                        message = message.asShadowBanned();
-                    }
-                    if (!includePurged && App.getSnipMode()) {
-                        message = message.asSnipRedacted();
-                    }
-                    return message;
-                })
-                .filter(message -> !message.getAuthorWasShadowBanned() || user.hasPermission("chat.history.shadowbanned"))
-                .collect(Collectors.toList());
-        server.send(channel, new ServerChatHistory(messages));
+        server.sendRaw(channel, chatHistory.getHistoryJSON(user));
     }
 
     public void handleChatMessage(WebSocketChannel channel, User user, ClientChatMessage clientChatMessage) {
-        int charLimit = Math.min(App.getConfig().getInt("chat.characterLimit"), 2048);
+        ConfigSnapshot config = App.getConfigSnapshot();
+        int charLimit = Math.min(config.chatCharacterLimit, 2048);
         if (charLimit <= 0) {
             charLimit = 2048;
         }
@@ -445,7 +418,10 @@ public class PacketHandler {
         if (message.length() > charLimit) message = message.substring(0, charLimit);
         if (user == null) { //console
             Integer cmid = App.getDatabase().createChatMessage(0, nowMS / 1000L, message, "", false);
-            server.broadcast(new ServerChatMessage(new ChatMessage(cmid, "CONSOLE", nowMS / 1000L, message, null, null, null, 0, false, null)));
+            var chatMessage = new ChatMessage(cmid, ChatAuthor.CONSOLE, nowMS / 1000L, message, null, false);
+            chatHistory.add(0, chatMessage);
+            CHAT_MESSAGES.increment();
+            server.broadcast(new ServerChatMessage(chatMessage));
         } else {
             if (!user.canChat()) return;
             if (message.trim().length() == 0) return;
@@ -457,17 +433,19 @@ public class PacketHandler {
             }
             try {
                 String toSend = message;
-                if (App.getConfig().getBoolean("chat.trimInput"))
+                if (config.chatTrimInput)
                     toSend = toSend.trim();
-                Faction usersFaction = user.fetchDisplayedFaction();
                 String toFilter = "";
-                if (App.getConfig().getBoolean("textFilter.enabled")) {
+                if (config.textFilterEnabled) {
                     TextFilter.FilterResult result = TextFilter.getInstance().filter(toSend);
                     toSend = result.filterHit ? result.filtered : result.original;
+                    if (result.filterHit) CHAT_FILTERED.increment();
                     toFilter = toSend;
                 }
                 Integer cmid = App.getDatabase().createChatMessage(user.getId(), nowMS / 1000L, message, toFilter, user.isShadowBanned());
-                var chatMessage = new ChatMessage(cmid, user.getName(), nowMS / 1000L, toSend, null, user.getChatBadges(), user.getChatNameClasses(), user.getChatNameColor(), user.isShadowBanned(), usersFaction);
+                var chatMessage = new ChatMessage(cmid, user.getChatAuthor(), nowMS / 1000L, toSend, null, user.isShadowBanned());
+                chatHistory.add(user.getId(), chatMessage);
+                CHAT_MESSAGES.increment();
 
                 var barePacket = new ServerChatMessage(chatMessage);
                 var userPacket = App.getSnipMode() ? barePacket.asSnipRedacted() : barePacket;
@@ -478,7 +456,7 @@ public class PacketHandler {
                     // To other users, nothing was sent.
                     userPacket = null;
                     // To staff, if enabled in the config, they will be the only ones to also get the message.
-                    staffPacket = App.getConfig().getBoolean("chat.showShadowBannedMessagesToStaff") ? staffPacket : null;
+                    staffPacket = config.chatShowShadowBannedMessagesToStaff ? staffPacket : null;
                 }
                 if (userPacket != null || staffPacket != null) {
                     server.broadcastSeparateForStaff(userPacket, staffPacket);
@@ -490,6 +468,13 @@ public class PacketHandler {
         }
     }
 
+    /**
+     * @return The buffer of recent chat messages served as chat history.
+     */
+    public ChatHistoryBuffer getChatHistory() {
+        return chatHistory;
+    }
+
     public void sendChatban(User user, ServerChatBan chatban) {
         server.send(user, chatban);
     }
@@ -568,6 +553,6 @@ public class PacketHandler {
     }
 
     public int getNumAllCons() {
-        return numAllCons;
+        return numAllCons.get();
     }
 }
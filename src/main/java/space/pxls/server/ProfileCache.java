@@ -0,0 +1,180 @@
+package space.pxls.server;
+
+import space.pxls.user.FactionManager;
+import space.pxls.user.User;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rendered public profile pages, by user ID.<br>
+ * A page is kept as the static parts of the rendered template around its per-request slots (the requesting
+ *  user's navigation and the live pixel counts), so viewing a cached profile costs no queries and no template
+ *  evaluation. A page is stale once the user's {@link User#getProfileVersion() profile version} or the faction
+ *  version changes, once a temporary ban or chatban it shows runs out, or after <pre>profileCache.ttl</pre>.
+ */
+public class ProfileCache {
+    private final int maxSize;
+    private final long ttlMillis;
+    // access-ordered, so iteration starts at the least recently viewed profile
+    private final LinkedHashMap<Integer, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ProfileCache(int maxSize, long ttlMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param user The user whose profile is viewed.
+     * @return The cached page, or null if there is none or it is stale.
+     */
+    public synchronized Page get(User user) {
+        Page page = pages.get(user.getId());
+        if (page != null && !page.isFresh(user)) {
+            pages.remove(user.getId());
+            page = null;
+        }
+        if (page == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return page;
+    }
+
+    /**
+     * @param user The user whose profile was rendered.
+     * @param html The rendered page, with each slot rendered as its marker.
+     * @param markers The slot markers, by slot.
+     * @param stamp The stamp taken with {@link #stamp(User)} before rendering.
+     * @return The cached page.
+     */
+    public synchronized Page put(User user, String html, String[] markers, Stamp stamp) {
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttlMillis;
+        // the page shows ban and chatban state, which changes by itself when a temporary one ends
+        Long banExpiry = user.getBanExpiryTime();
+        if (banExpiry != null && banExpiry > now) expiresAt = Math.min(expiresAt, banExpiry);
+        if (!user.isPermaChatbanned() && user.getChatbanExpiryTime() > now) expiresAt = Math.min(expiresAt, user.getChatbanExpiryTime());
+        Page page = new Page(user, html, markers, stamp, expiresAt);
+        pages.put(user.getId(), page);
+        Iterator<Page> it = pages.values().iterator();
+        while (pages.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+        return page;
+    }
+
+    /**
+     * @param user The user about to be rendered.
+     * @return The versions the page will be rendered from.
+     */
+    public Stamp stamp(User user) {
+        return new Stamp(user.getProfileVersion(), FactionManager.getInstance().getVersion());
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+    }
+
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("profile cache: %d/%d pages, %d hits, %d misses, %d evictions", size(), maxSize, getHits(), getMisses(), getEvictions());
+    }
+
+    public static class Stamp {
+        private final int profileVersion;
+        private final long factionVersion;
+
+        private Stamp(int profileVersion, long factionVersion) {
+            this.profileVersion = profileVersion;
+            this.factionVersion = factionVersion;
+        }
+    }
+
+    public static class Page {
+        private final User user;
+        // the static parts of the page, with slots[i] between segments[i] and segments[i + 1]
+        private final String[] segments;
+        private final int[] slots;
+        private final Stamp stamp;
+        private final long expiresAt;
+
+        private Page(User user, String html, String[] markers, Stamp stamp, long expiresAt) {
+            List<String> segments = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            int pos = 0;
+            while (true) {
+                int next = -1;
+                int slot = -1;
+                for (int i = 0; i < markers.length; i++) {
+                    int index = html.indexOf(markers[i], pos);
+                    if (index >= 0 && (next < 0 || index < next)) {
+                        next = index;
+                        slot = i;
+                    }
+                }
+                if (next < 0) break;
+                segments.add(html.substring(pos, next));
+                slots.add(slot);
+                pos = next + markers[slot].length();
+            }
+            segments.add(html.substring(pos));
+
+            this.user = user;
+            this.segments = segments.toArray(new String[0]);
+            this.slots = slots.stream().mapToInt(Integer::intValue).toArray();
+            this.stamp = stamp;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isFresh(User user) {
+            // a reloaded user manager hands out new user objects, which start counting versions again
+            return this.user == user
+                && stamp.profileVersion == user.getProfileVersion()
+                && stamp.factionVersion == FactionManager.getInstance().getVersion()
+                && System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * @param values The per-request contents of the slots, by slot.
+         * @return The page with its slots filled in.
+         */
+        public String render(String... values) {
+            int length = 0;
+            for (String segment : segments) length += segment.length();
+            for (int slot : slots) length += values[slot].length();
+            StringBuilder sb = new StringBuilder(length);
+            sb.append(segments[0]);
+            for (int i = 0; i < slots.length; i++) {
+                sb.append(values[slots[i]]).append(segments[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package space.pxls.server;
 
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.undertow.websockets.core.WebSocketChannel;
 
 import space.pxls.user.User;
 
 public class PxlsWebSocketConnection {
+	private static final AtomicLong nextId = new AtomicLong();
+
 	private WebSocketChannel channel;
 	private User user;
+	private final String limiterKey = Long.toString(nextId.incrementAndGet());
+	private final AtomicInteger droppedFrames = new AtomicInteger();
 
 	PxlsWebSocketConnection(WebSocketChannel channel, User user) {
 		this.channel = channel;
@@ -22,4 +28,18 @@ public class PxlsWebSocketConnection {
 	public Optional<User> getUser() {
 		return Optional.ofNullable(user);
 	}
+
+	/**
+	 * @return The identifier of this connection's inbound frame budget.
+	 */
+	String getLimiterKey() {
+		return limiterKey;
+	}
+
+	/**
+	 * @return The number of frames dropped on this connection, including this one.
+	 */
+	int incrementDropped() {
+		return droppedFrames.incrementAndGet();
+	}
 }
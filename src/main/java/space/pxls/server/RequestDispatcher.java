@@ -0,0 +1,127 @@
+package space.pxls.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves requests off the I/O thread that read them before they reach handlers that may block (user lookups,
+ *  database queries), according to <pre>server.threads.dispatch</pre>:<br>
+ * <pre>io</pre> handles requests on the I/O thread, so one slow query stalls every connection on that thread;<br>
+ * <pre>worker</pre> dispatches them to Undertow's worker pool (<pre>server.threads.worker</pre>);<br>
+ * <pre>executor</pre> dispatches them to a dedicated pool of <pre>server.threads.blocking</pre> threads.<br>
+ * The time dispatched requests wait for a thread is recorded, as the measure of pool saturation.
+ */
+public class RequestDispatcher implements HttpHandler {
+    public enum Mode { IO, WORKER, EXECUTOR }
+
+    private final HttpHandler next;
+    private final Mode mode;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder inline = new LongAdder();
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param next The handler to run the requests.
+     * @param mode Where to run them.
+     * @param blockingThreads The size of the dedicated pool, used in {@link Mode#EXECUTOR} mode.
+     */
+    public RequestDispatcher(HttpHandler next, Mode mode, int blockingThreads) {
+        this.next = next;
+        this.mode = mode;
+        if (mode == Mode.EXECUTOR) {
+            int threads = Math.max(1, blockingThreads);
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "RequestDispatcher-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.allowCoreThreadTimeOut(true);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        if (mode == Mode.IO || !exchange.isInIoThread()) {
+            inline.increment();
+            next.handleRequest(exchange);
+            return;
+        }
+        dispatched.increment();
+        long queued = System.nanoTime();
+        HttpHandler timed = ex -> {
+            long wait = System.nanoTime() - queued;
+            waitNanos.add(wait);
+            maxWaitNanos.accumulate(wait);
+            next.handleRequest(ex);
+        };
+        if (executor != null) {
+            exchange.dispatch(executor, timed);
+        } else {
+            exchange.dispatch(timed);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getInline() {
+        return inline.sum();
+    }
+
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    /**
+     * @return The mean time dispatched requests waited for a thread, in nanoseconds.
+     */
+    public long getMeanWaitNanos() {
+        long count = dispatched.sum();
+        return count == 0 ? 0 : waitNanos.sum() / count;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return The dedicated pool, or null if requests don't run on one.
+     */
+    public ThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    public void shutdown() {
+        if (executor != null) executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("requests (%s): %d inline, %d dispatched, wait mean %.2fms max %.2fms",
+            mode.name().toLowerCase(), getInline(), getDispatched(), getMeanWaitNanos() / 1e6, getMaxWaitNanos() / 1e6));
+        if (executor != null) sb.append(System.lineSeparator()).append(describe("blocking pool", executor));
+        return sb.toString();
+    }
+
+    /**
+     * @return A one line summary of the pool's size, load and queue.
+     */
+    static String describe(String name, ThreadPoolExecutor pool) {
+        return String.format("%s: %d/%d threads, %d active, %d queued, %d completed", name, pool.getPoolSize(), pool.getMaximumPoolSize(),
+            pool.getActiveCount(), pool.getQueue().size(), pool.getCompletedTaskCount());
+    }
+}
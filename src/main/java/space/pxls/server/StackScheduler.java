@@ -0,0 +1,68 @@
+package space.pxls.server;
+
+import space.pxls.App;
+import space.pxls.user.User;
+import space.pxls.util.TimingWheel;
+
+/**
+ * Grants stacked pixels at the moment each authed user earns their next one.<br>
+ * Every authed user with room on their stack has a deadline on a {@link TimingWheel}, computed from the
+ *  cooldown cached at the last {@link #tick()}. When a deadline fires the stack is re-evaluated with the current
+ *  cooldown and the user is rescheduled, so a longer cooldown just pushes the deadline back. A shorter cooldown
+ *  can bring deadlines forward, so those reschedule every authed user.
+ */
+public class StackScheduler {
+    private final UndertowServer server;
+    private final TimingWheel<Integer> wheel = new TimingWheel<>(1000, 512, System.currentTimeMillis());
+    private volatile int cooldown = -1;
+
+    StackScheduler(UndertowServer server) {
+        this.server = server;
+    }
+
+    private int getCooldown() {
+        int cooldown = this.cooldown;
+        return cooldown >= 0 ? cooldown : server.getPacketHandler().getCooldown();
+    }
+
+    /**
+     * (Re)schedules the user's next stack gain. Users who aren't authed, or whose stack is full, are unscheduled.
+     * @param user The user.
+     */
+    public void schedule(User user) {
+        long next = server.getAuthedUsers().containsKey(user.getId()) ? user.getNextStackTime(getCooldown()) : -1;
+        if (next < 0) {
+            wheel.cancel(user.getId());
+        } else {
+            wheel.schedule(user.getId(), next);
+        }
+    }
+
+    public void cancel(User user) {
+        wheel.cancel(user.getId());
+    }
+
+    /**
+     * Refreshes the cached cooldown and grants every stack that is due.
+     */
+    public synchronized void tick() {
+        int previous = cooldown;
+        cooldown = server.getPacketHandler().getCooldown();
+        if (previous >= 0 && cooldown < previous) {
+            server.getAuthedUsers().values().forEach(this::schedule);
+        }
+        for (Integer id : wheel.advance(System.currentTimeMillis())) {
+            User user = server.getAuthedUsers().get(id);
+            if (user == null) continue;
+            user.tickStack(true, cooldown);
+            schedule(user);
+        }
+    }
+
+    /**
+     * @return The number of users waiting for a stack.
+     */
+    public int size() {
+        return wheel.size();
+    }
+}
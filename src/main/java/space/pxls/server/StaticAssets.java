@@ -0,0 +1,204 @@
+package space.pxls.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.MimeMappings;
+import io.undertow.util.StatusCodes;
+import space.pxls.App;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * In-memory copy of everything under <pre>public/</pre> on the classpath, plus the rendered index page.<br>
+ * Assets are read once on {@link #reload()} into {@link CachedResponse}s, so serving them never touches the
+ *  filesystem. The index page links local assets
+ *  with a <pre>?v=</pre> version taken from that hash; requests carrying the current version are served as
+ *  immutable, everything else is revalidated through the ETag.
+ */
+public class StaticAssets {
+    private static final String ROOT = "public/";
+    private static final String INDEX = "index.html";
+    private static final String[] INDEX_REPLACEMENTS = {"title", "head", "info", "faq"};
+    private static final Pattern LOCAL_LINK = Pattern.compile("(src|href)=\"(?:\\./)?([^\"/:?#][^\":?#]*)\"");
+    private static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String CACHE_REVALIDATE = "public, max-age=10";
+    private static final String CACHE_INDEX = "no-cache";
+
+    private volatile Map<String, Asset> assets = Collections.emptyMap();
+
+    /**
+     * Reads every asset and renders the index page again, then swaps them in at once.
+     */
+    public void reload() {
+        Map<String, Asset> loaded = new HashMap<>();
+        try {
+            for (Map.Entry<String, byte[]> entry : readClasspathAssets().entrySet()) {
+                loaded.put(entry.getKey(), new Asset(entry.getKey(), entry.getValue(), CACHE_REVALIDATE));
+            }
+        } catch (IOException | URISyntaxException e) {
+            App.getLogger().error("Failed to load static assets", e);
+            if (!assets.isEmpty()) return;
+        }
+        loaded.put(INDEX, new Asset(INDEX, renderIndex(loaded).getBytes(StandardCharsets.UTF_8), CACHE_INDEX));
+
+        long bytes = 0;
+        long gzipBytes = 0;
+        for (Asset asset : loaded.values()) {
+            bytes += asset.response.getContent().length;
+            gzipBytes += asset.response.getGzipped() == null ? 0 : asset.response.getGzipped().length;
+        }
+        assets = Collections.unmodifiableMap(loaded);
+        App.getLogger().info("Loaded {} static assets ({} KiB, {} KiB gzipped variants)", loaded.size(), bytes / 1024, gzipBytes / 1024);
+    }
+
+    private static Map<String, byte[]> readClasspathAssets() throws IOException, URISyntaxException {
+        Map<String, byte[]> contents = new HashMap<>();
+        URL root = App.class.getClassLoader().getResource(ROOT);
+        if (root == null) return contents;
+        if (root.getProtocol().equals("jar")) {
+            JarURLConnection connection = (JarURLConnection) root.openConnection();
+            connection.setUseCaches(false);
+            try (JarFile jar = connection.getJarFile()) {
+                for (JarEntry entry : Collections.list(jar.entries())) {
+                    if (entry.isDirectory() || !entry.getName().startsWith(ROOT)) continue;
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        contents.put(entry.getName().substring(ROOT.length()), in.readAllBytes());
+                    }
+                }
+            }
+        } else {
+            Path rootPath = Paths.get(root.toURI());
+            try (Stream<Path> files = Files.walk(rootPath)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    String key = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                    contents.put(key, Files.readAllBytes(file));
+                }
+            }
+        }
+        return contents;
+    }
+
+    private static String renderIndex(Map<String, Asset> loaded) {
+        Asset template = loaded.get(INDEX);
+        String s = template == null ? "" : new String(template.response.getContent(), StandardCharsets.UTF_8);
+        for (String p : INDEX_REPLACEMENTS) {
+            String r = App.getConfig().getString("html." + p);
+            if (r.startsWith("resource:")) {
+                String resource = r.substring(9);
+                Asset asset = loaded.get(resource.replaceFirst("^/?" + ROOT, ""));
+                r = asset != null ? new String(asset.response.getContent(), StandardCharsets.UTF_8) : readResource(resource);
+            } else if (r.startsWith("file:")) {
+                try {
+                    r = Files.readString(App.getStorageDir().resolve(r.substring(5)));
+                } catch (IOException e) {
+                    App.getLogger().error("Failed to read html." + p, e);
+                    r = "";
+                }
+            }
+            s = s.replace("{{" + p + "}}", r);
+        }
+
+        // version local assets, so they can be cached for good
+        Matcher m = LOCAL_LINK.matcher(s);
+        StringBuilder sb = new StringBuilder(s.length() + 512);
+        while (m.find()) {
+            Asset asset = loaded.get(m.group(2));
+            m.appendReplacement(sb, Matcher.quoteReplacement(asset == null ? m.group() : m.group(1) + "=\"" + m.group(2) + "?v=" + asset.response.getVersion() + "\""));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static String readResource(String resource) {
+        try (InputStream in = App.class.getResourceAsStream(resource)) {
+            return in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @param prefix The asset path prefix the handler serves from, e.g. <pre>admin/</pre>.
+     * @return A handler serving the assets under the prefix by the exchange's relative path.
+     */
+    public HttpHandler handler(String prefix) {
+        return exchange -> {
+            String path = exchange.getRelativePath();
+            if (path.startsWith("/")) path = path.substring(1);
+            String key = prefix + path;
+            boolean directory = path.isEmpty() || path.endsWith("/") || (!assets.containsKey(key) && assets.containsKey(key + "/" + INDEX));
+            if (directory) {
+                if (!exchange.getRequestURI().endsWith("/")) {
+                    // relative links in the directory's index only resolve with the trailing slash
+                    exchange.setStatusCode(StatusCodes.FOUND);
+                    exchange.getResponseHeaders().put(Headers.LOCATION, exchange.getRequestURI() + "/");
+                    exchange.endExchange();
+                    return;
+                }
+                key = key.isEmpty() || key.endsWith("/") ? key + INDEX : key + "/" + INDEX;
+            }
+            serve(exchange, key);
+        };
+    }
+
+    /**
+     * Serves the rendered index page.
+     * @param exchange The exchange.
+     */
+    public void serveIndex(HttpServerExchange exchange) {
+        serve(exchange, INDEX);
+    }
+
+    private void serve(HttpServerExchange exchange, String key) {
+        boolean head = exchange.getRequestMethod().equals(Methods.HEAD);
+        if (!head && !exchange.getRequestMethod().equals(Methods.GET)) {
+            exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+            exchange.endExchange();
+            return;
+        }
+        Asset asset = assets.get(key);
+        if (asset == null) {
+            exchange.setStatusCode(StatusCodes.NOT_FOUND);
+            exchange.endExchange();
+            return;
+        }
+
+        Deque<String> version = exchange.getQueryParameters().get("v");
+        boolean versioned = version != null && asset.response.getVersion().equals(version.peekFirst());
+        asset.response.send(exchange, versioned ? CACHE_IMMUTABLE : asset.cacheControl);
+    }
+
+    private static class Asset {
+        private final CachedResponse response;
+        private final String cacheControl;
+
+        private Asset(String key, byte[] content, String cacheControl) {
+            String extension = key.substring(key.lastIndexOf('.') + 1);
+            String mimeType = MimeMappings.DEFAULT.getMimeType(extension);
+            if (mimeType == null) mimeType = "application/octet-stream";
+            if (mimeType.startsWith("text/") || mimeType.equals("application/javascript")) mimeType += "; charset=UTF-8";
+            this.response = new CachedResponse(content, mimeType);
+            this.cacheControl = cacheControl;
+        }
+    }
+}
@@ -3,10 +3,16 @@ package space.pxls.server;
 import com.google.gson.JsonObject;
 import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.predicate.Predicates;
+import io.undertow.server.HttpHandler;
 import io.undertow.server.RoutingHandler;
 import io.undertow.server.handlers.AllowedMethodsHandler;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
 import io.undertow.server.handlers.form.EagerFormParsingHandler;
-import io.undertow.server.handlers.resource.ClassPathResourceManager;
 import io.undertow.server.handlers.resource.FileResourceManager;
 import io.undertow.util.Headers;
 import io.undertow.util.Methods;
@@ -15,10 +21,13 @@ import io.undertow.websockets.core.BufferedTextMessage;
 import io.undertow.websockets.core.WebSocketChannel;
 import io.undertow.websockets.core.WebSockets;
 import io.undertow.websockets.spi.WebSocketHttpExchange;
+import org.xnio.management.XnioWorkerMXBean;
 import space.pxls.App;
+import space.pxls.metrics.Metrics;
 import space.pxls.server.packets.chat.*;
 import space.pxls.server.packets.socket.*;
 import space.pxls.tasks.UserAuthedTask;
+import space.pxls.user.IdleTracker;
 import space.pxls.user.User;
 import space.pxls.util.*;
 
@@ -26,29 +35,43 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 public class UndertowServer {
+    private static final Metrics.Counter DECODE_ERRORS = Metrics.getInstance().counter("pxls_websocket_decode_errors_total", "Websocket messages that couldn't be decoded into a packet");
+    private static final Metrics.Counter BROADCASTS = Metrics.getInstance().counter("pxls_broadcasts_total", "Packets broadcast to many connections");
+    private static final Metrics.Histogram BROADCAST_SIZE = Metrics.getInstance().sizeHistogram("pxls_broadcast_bytes", "Size of broadcast packets, in characters of JSON");
+    private static final Metrics.Histogram BROADCAST_TIME = Metrics.getInstance().latencyHistogram("pxls_broadcast_seconds", "Time to serialize a broadcast and queue it on every recipient connection");
+
     private int port;
     private PacketHandler socketHandler;
     private WebHandler webHandler;
+    private StackScheduler stackScheduler;
+    private IdleTracker idleTracker = new IdleTracker();
+    private InboundFrameLimiter frameLimiter = new InboundFrameLimiter();
+    private StaticAssets staticAssets = new StaticAssets();
     private ConcurrentHashMap<Integer, User> authedUsers = new ConcurrentHashMap<Integer, User>();
 
     private Set<PxlsWebSocketConnection> connections;
     private Undertow server;
 
-    private ExecutorService userTaskExecutor = Executors.newFixedThreadPool(4);
+    private ThreadPoolExecutor userTaskExecutor;
+    private RequestDispatcher requestDispatcher;
 
     public UndertowServer(int port) {
         this.port = port;
 
         webHandler = new WebHandler();
         socketHandler = new PacketHandler(this);
+        stackScheduler = new StackScheduler(this);
         connections = ConcurrentHashMap.newKeySet();
+        staticAssets.reload();
+        int userTaskThreads = Math.max(1, App.getConfig().getInt("server.threads.userTasks"));
+        userTaskExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(userTaskThreads);
     }
 
     public void start() {
@@ -67,13 +90,14 @@ public class UndertowServer {
                 .addPermGatedPrefixPath("/signup", "user.auth", new RateLimitingHandler(webHandler::signUp, "http:signUp", (int) App.getConfig().getDuration("server.limits.signup.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.signup.count")))
                 .addPermGatedPrefixPath("/logout", "user.auth", webHandler::logout)
                 .addPermGatedPrefixPath("/lookup", "board.lookup", new RateLimitingHandler(webHandler::lookup, "http:lookup", (int) App.getConfig().getDuration("server.limits.lookup.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.lookup.count")))
+                .addPermGatedPrefixPath("/lookup/batch", "board.lookup", new RateLimitingHandler(webHandler::lookupBatch, "http:lookupBatch", (int) App.getConfig().getDuration("server.limits.lookupBatch.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.lookupBatch.count")))
                 .addPermGatedPrefixPath("/report", "board.report", webHandler::report)
                 .addPermGatedPrefixPath("/reportChat", "chat.report", webHandler::chatReport)
                 .addPermGatedPrefixPath("/whoami", "user.auth", webHandler::whoami)
                 .addPermGatedPrefixPath("/users", "user.online", webHandler::users)
                 .addPermGatedPrefixPath("/chat/setColor", "user.chatColorChange", new RateLimitingHandler(webHandler::chatColorChange, "http:chatColorChange", (int) App.getConfig().getDuration("server.limits.chatColorChange.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.chatColorChange.count")))
                 .addPermGatedPrefixPath("/setDiscordName", "user.discordNameChange", new RateLimitingHandler(webHandler::discordNameChange, "http:discordName", (int) App.getConfig().getDuration("server.limits.discordNameChange.time", TimeUnit.SECONDS), App.getConfig().getInt("server.limits.discordNameChange.count")))
-                .addPermGatedPrefixPath("/admin", "user.admin", Handlers.resource(new ClassPathResourceManager(App.class.getClassLoader(), "public/admin/")).setCacheTime(10))
+                .addPermGatedPrefixPath("/admin", "user.admin", staticAssets.handler("admin/"))
                 .addPermGatedPrefixPath("/admin/ban", "user.ban", webHandler::ban)
                 .addPermGatedPrefixPath("/admin/unban", "user.unban", webHandler::unban)
                 .addPermGatedPrefixPath("/admin/permaban", "user.permaban", webHandler::permaban)
@@ -82,6 +106,8 @@ public class UndertowServer {
                 .addPermGatedPrefixPath("/admin/check", "board.check", webHandler::check)
                 .addPermGatedPrefixPath("/admin/delete", "chat.delete", webHandler::deleteChatMessage)
                 .addPermGatedPrefixPath("/admin/chatPurge", "chat.purge", webHandler::chatPurge)
+                .addPermGatedPrefixPath("/admin/dbstats", "server.dbstats", webHandler::dbStats)
+                .addPermGatedPrefixPath("/metrics", "server.metrics", webHandler::metrics)
                 .addPermGatedPrefixPath("/execNameChange", "user.namechange", webHandler::execNameChange)
                 .addPermGatedPrefixPath("/admin/flagNameChange", "user.namechange.flag", webHandler::flagNameChange)
                 .addPermGatedPrefixPath("/admin/forceNameChange", "user.namechange.force", webHandler::forceNameChange)
@@ -95,7 +121,7 @@ public class UndertowServer {
                 .addExactPath("/", webHandler::index)
                 .addExactPath("/index.html", webHandler::index)
                 .addExactPath("/factions", new AllowedMethodsHandler(webHandler::getRequestingUserFactions, Methods.GET))
-                .addPrefixPath("/", Handlers.resource(new ClassPathResourceManager(App.class.getClassLoader(), "public/")).setCacheTime(10))
+                .addPrefixPath("/", staticAssets.handler(""))
                 .addPrefixPath("/emoji", Handlers.resource(new FileResourceManager(new File(App.getStorageDir().resolve("emoji").toString()))).setCacheTime(10));
         RoutingHandler routingHandler = Handlers.routing()
             .get("/profile", webHandler::profileView)
@@ -105,15 +131,38 @@ public class UndertowServer {
             .put("/factions/{fid}", new JsonReader(webHandler::manageFactions))
             .delete("/factions/{fid}", new JsonReader(webHandler::manageFactions))
             .setFallbackHandler(pathHandler);
-        //EncodingHandler encoder = new EncodingHandler(mainHandler, new ContentEncodingRepository().addEncodingHandler("gzip", new GzipEncodingProvider(), 50, Predicates.parse("max-content-size(1024)")));
-        server = Undertow.builder()
+        HttpHandler mainHandler = new IPReader(new AuthReader(new EagerFormParsingHandler().setNext(routingHandler)));
+        if (App.getConfig().getBoolean("server.compression.enabled")) {
+            mainHandler = new EncodingHandler(mainHandler, new ContentEncodingRepository()
+                .addEncodingHandler("gzip", new GzipEncodingProvider(), 50, compressionPredicate())
+                .addEncodingHandler("deflate", new DeflateEncodingProvider(), 10, compressionPredicate()));
+        }
+        requestDispatcher = new RequestDispatcher(
+            mainHandler,
+            RequestDispatcher.Mode.valueOf(App.getConfig().getString("server.threads.dispatch").toUpperCase()),
+            App.getConfig().getInt("server.threads.blocking"));
+        Undertow.Builder builder = Undertow.builder()
                 .addHttpListener(port, "0.0.0.0")
-                .setIoThreads(32)
-                .setWorkerThreads(128)
-                .setHandler(new IPReader(new AuthReader(new EagerFormParsingHandler().setNext(routingHandler)))).build();
+                // plain-text HTTP/2 (h2c), by prior knowledge or upgrade, for a proxy in front of us that speaks it
+                .setServerOption(UndertowOptions.ENABLE_HTTP2, App.getConfig().getBoolean("server.http2"))
+                .setHandler(requestDispatcher);
+        // 0 uses Undertow's defaults, derived from the core count
+        int ioThreads = App.getConfig().getInt("server.threads.io");
+        int workerThreads = App.getConfig().getInt("server.threads.worker");
+        if (ioThreads > 0) builder.setIoThreads(ioThreads);
+        if (workerThreads > 0) builder.setWorkerThreads(workerThreads);
+        server = builder.build();
         server.start();
     }
 
+    /**
+     * Stops accepting connections and shuts down the request dispatcher's pool, letting queued requests finish.
+     */
+    public void stop() {
+        if (server != null) server.stop();
+        if (requestDispatcher != null) requestDispatcher.shutdown();
+    }
+
     private void webSocketHandler(WebSocketHttpExchange exchange, WebSocketChannel channel) {
         User user = exchange.getAttachment(AuthReader.USER);
         String ip = exchange.getAttachment(IPReader.IP);
@@ -125,6 +174,7 @@ public class UndertowServer {
 
         if (user != null) {
             user.getConnections().add(channel);
+            App.getUserManager().getUserCache().connected(user);
 
             // aaaaaaand update the useragent
             List<String> agentAr = exchange.getRequestHeaders().get(Headers.USER_AGENT.toString());
@@ -142,32 +192,29 @@ public class UndertowServer {
 
         channel.getReceiveSetter().set(new AbstractReceiveListener() {
             @Override
-            protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) throws IOException {
-                super.onFullTextMessage(channel, message);
-
-                String data = message.getData();
+            protected long getMaxTextBufferSize() {
+                return App.getConfigSnapshot().websocketMaxFrameSize;
+            }
 
-                JsonObject jsonObj = App.getGson().fromJson(data, JsonObject.class);
-                String type = jsonObj.get("type").getAsString();
+            @Override
+            protected void onError(WebSocketChannel channel, Throwable error) {
+                frameLimiter.receiveError();
+                super.onError(channel, error);
+            }
 
-                Object obj = null;
-                if (type.equals("pixel")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
-                if (type.equals("undo")) obj = App.getGson().fromJson(jsonObj, ClientUndo.class);
-                if (type.equals("captcha")) obj = App.getGson().fromJson(jsonObj, ClientCaptcha.class);
-                if (type.equals("admin_placement_overrides")) obj = App.getGson().fromJson(jsonObj, ClientAdminPlacementOverrides.class);
-                if (type.equals("admin_message")) obj = App.getGson().fromJson(jsonObj, ClientAdminMessage.class);
-                if (type.equals("shadowbanme")) obj = App.getGson().fromJson(jsonObj, ClientShadowBanMe.class);
-                if (type.equals("banme")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
-                if (type.equalsIgnoreCase("ChatHistory")) obj = App.getGson().fromJson(jsonObj, ClientChatHistory.class);
-                if (type.equalsIgnoreCase("ChatbanState")) obj = App.getGson().fromJson(jsonObj, ClientChatbanState.class);
-                if (type.equalsIgnoreCase("ChatMessage")) obj = App.getGson().fromJson(jsonObj, ClientChatMessage.class);
-                if (type.equalsIgnoreCase("ChatLookup")) obj = App.getGson().fromJson(jsonObj, ClientChatLookup.class);
+            @Override
+            protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) throws IOException {
+                super.onFullTextMessage(channel, message);
 
-                // old thing, will auto-shadowban
-                if (type.equals("place")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
+                if (!frameLimiter.allow(con)) return;
 
-                // lol
-                if (type.equals("placepixel")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
+                Object obj;
+                try {
+                    obj = decodePacket(message.getData());
+                } catch (RuntimeException e) {
+                    DECODE_ERRORS.increment();
+                    throw e;
+                }
 
                 if (obj != null) {
                     socketHandler.accept(channel, user, obj, ip);
@@ -179,6 +226,7 @@ public class UndertowServer {
 
             if (user != null) {
                 user.getConnections().remove(channel);
+                App.getUserManager().getUserCache().disconnected(user);
             }
 
             socketHandler.disconnect(channel, user);
@@ -186,23 +234,108 @@ public class UndertowServer {
         channel.resumeReceives();
     }
 
+    /**
+     * @param data The text of a websocket message.
+     * @return The client packet it holds, or null if its type isn't handled.
+     */
+    private static Object decodePacket(String data) {
+        Object obj = null;
+        JsonObject jsonObj = App.getGson().fromJson(data, JsonObject.class);
+        String type = jsonObj.get("type").getAsString();
+
+        if (type.equals("pixel")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
+        if (type.equals("undo")) obj = App.getGson().fromJson(jsonObj, ClientUndo.class);
+        if (type.equals("captcha")) obj = App.getGson().fromJson(jsonObj, ClientCaptcha.class);
+        if (type.equals("admin_placement_overrides")) obj = App.getGson().fromJson(jsonObj, ClientAdminPlacementOverrides.class);
+        if (type.equals("admin_message")) obj = App.getGson().fromJson(jsonObj, ClientAdminMessage.class);
+        if (type.equals("shadowbanme")) obj = App.getGson().fromJson(jsonObj, ClientShadowBanMe.class);
+        if (type.equals("banme")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
+        if (type.equalsIgnoreCase("ChatHistory")) obj = App.getGson().fromJson(jsonObj, ClientChatHistory.class);
+        if (type.equalsIgnoreCase("ChatbanState")) obj = App.getGson().fromJson(jsonObj, ClientChatbanState.class);
+        if (type.equalsIgnoreCase("ChatMessage")) obj = App.getGson().fromJson(jsonObj, ClientChatMessage.class);
+        if (type.equalsIgnoreCase("ChatLookup")) obj = App.getGson().fromJson(jsonObj, ClientChatLookup.class);
+
+        // old thing, will auto-shadowban
+        if (type.equals("place")) obj = App.getGson().fromJson(jsonObj, ClientPlace.class);
+
+        // lol
+        if (type.equals("placepixel")) obj = App.getGson().fromJson(jsonObj, ClientBanMe.class);
+
+        return obj;
+    }
+
+    /**
+     * Responses already encoded (the pre-compressed static assets) are left alone by the encoding handler itself.
+     * @return Whether a response should be compressed: large enough, of a compressible type, and not on an excluded path.
+     */
+    private static io.undertow.predicate.Predicate compressionPredicate() {
+        long minSize = App.getConfig().getBytes("server.compression.minSize");
+        List<String> types = App.getConfig().getStringList("server.compression.types");
+        String[] excluded = App.getConfig().getStringList("server.compression.exclude").toArray(new String[0]);
+        io.undertow.predicate.Predicate largeEnough = exchange -> {
+            // streamed responses have no length yet and are assumed to be large
+            String length = exchange.getResponseHeaders().getFirst(Headers.CONTENT_LENGTH);
+            return length == null || Long.parseLong(length) > minSize;
+        };
+        io.undertow.predicate.Predicate compressibleType = exchange -> {
+            String contentType = exchange.getResponseHeaders().getFirst(Headers.CONTENT_TYPE);
+            if (contentType == null) return false;
+            for (String type : types) {
+                if (contentType.startsWith(type)) return true;
+            }
+            return false;
+        };
+        return Predicates.and(largeEnough, compressibleType, Predicates.not(Predicates.prefixes(excluded)));
+    }
+
+    /**
+     * @return The size and load of the I/O threads, the worker pool, the request dispatcher and the user task pool.
+     */
+    public String getThreadStats() {
+        XnioWorkerMXBean worker = server.getWorker().getMXBean();
+        return String.format("io threads: %d%nworker pool: %d/%d threads (core %d), %d busy, %d queued%n%s%n%s",
+            worker.getIoThreadCount(), worker.getWorkerPoolSize(), worker.getMaxWorkerPoolSize(), worker.getCoreWorkerPoolSize(),
+            worker.getBusyWorkerThreadCount(), worker.getWorkerQueueSize(),
+            requestDispatcher, RequestDispatcher.describe("user task pool", userTaskExecutor));
+    }
+
+    public StaticAssets getStaticAssets() {
+        return staticAssets;
+    }
+
+    public RequestDispatcher getRequestDispatcher() {
+        return requestDispatcher;
+    }
+
+    public ThreadPoolExecutor getUserTaskExecutor() {
+        return userTaskExecutor;
+    }
+
+    public InboundFrameLimiter getFrameLimiter() {
+        return frameLimiter;
+    }
+
     public Set<PxlsWebSocketConnection> getConnections() {
         return connections;
     }
 
     public void broadcast(Object obj) {
+        long start = System.nanoTime();
         String json = App.getGson().toJson(obj);
         if (connections != null) {
             for (PxlsWebSocketConnection channel : connections) {
                 sendRaw(channel, json);
             }
         }
+        recordBroadcast(start, json.length());
     }
 
     public void broadcastRaw(String raw) {
+        long start = System.nanoTime();
         if (connections != null) {
             connections.forEach(channel -> sendRaw(channel, raw));
         }
+        recordBroadcast(start, raw.length());
     }
 
     public void broadcastNoShadow(Object obj) {
@@ -216,6 +349,7 @@ public class UndertowServer {
     }
 
     public void broadcastToUserPredicate(Object obj, Predicate<User> predicate) {
+        long start = System.nanoTime();
         String json = App.getGson().toJson(obj);
         getAuthedUsers()
                 .values()
@@ -224,13 +358,16 @@ public class UndertowServer {
                 .forEach(user -> user.getConnections()
                         .forEach(con -> WebSockets.sendText(json, con, null))
                 );
+        recordBroadcast(start, json.length());
     }
 
     public void broadcastPredicate(Object obj, Predicate<PxlsWebSocketConnection> predicate) {
+        long start = System.nanoTime();
         String json = App.getGson().toJson(obj);
         connections.parallelStream()
                 .filter(predicate)
                 .forEach(con -> WebSockets.sendText(json, con.getChannel(), null));
+        recordBroadcast(start, json.length());
     }
 
     public void broadcastSeparateForStaff(Object nonStaffObj, Object staffObj) {
@@ -243,6 +380,7 @@ public class UndertowServer {
     }
 
     public void broadcastMapped(Function<PxlsWebSocketConnection, String> mapper) {
+        long start = System.nanoTime();
         connections.parallelStream()
                 .forEach(con -> {
                     String json = mapper.apply(con);
@@ -250,6 +388,14 @@ public class UndertowServer {
                         WebSockets.sendText(json, con.getChannel(), null);
                     }
                 });
+        // the packets differ per connection, so there is no single size to record
+        recordBroadcast(start, -1);
+    }
+
+    private static void recordBroadcast(long start, int length) {
+        BROADCASTS.increment();
+        if (length >= 0) BROADCAST_SIZE.observe(length);
+        BROADCAST_TIME.observeSince(start);
     }
 
     public void send(WebSocketChannel channel, Object obj) {
@@ -268,7 +414,7 @@ public class UndertowServer {
         WebSockets.sendText(str, channel.getChannel(), null);
     }
 
-    private void sendRaw(WebSocketChannel channel, String str) {
+    public void sendRaw(WebSocketChannel channel, String str) {
         WebSockets.sendText(str, channel, null);
     }
 
@@ -278,12 +424,14 @@ public class UndertowServer {
 
     public void addAuthedUser(User user) {
         if (!authedUsers.containsKey(user.getId()) && !user.isBanned() && !user.isShadowBanned()) {
-            authedUsers.put(user.getId(), user);
+            if (authedUsers.putIfAbsent(user.getId(), user) == null) idleTracker.add(user);
         }
     }
 
     public void removeAuthedUser(User user) {
-        authedUsers.remove(user.getId());
+        User removed = authedUsers.remove(user.getId());
+        if (removed != null) idleTracker.remove(removed);
+        stackScheduler.cancel(user);
     }
 
     public ConcurrentHashMap<Integer, User> getAuthedUsers() {
@@ -291,17 +439,21 @@ public class UndertowServer {
     }
 
     public int getNonIdledUsersCount() {
-        int nonIdles = 0;
-        for (User value : App.getServer().getAuthedUsers().values()) {
-            if (!value.isIdled()) ++nonIdles;
-        }
-        return nonIdles;
+        return idleTracker.getNonIdledCount();
+    }
+
+    public IdleTracker getIdleTracker() {
+        return idleTracker;
     }
 
     public Undertow getServer() {
         return server;
     }
 
+    public StackScheduler getStackScheduler() {
+        return stackScheduler;
+    }
+
     public WebHandler getWebHandler() {
         return webHandler;
     }
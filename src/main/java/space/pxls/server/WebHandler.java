@@ -16,6 +16,7 @@ import io.undertow.util.*;
 import space.pxls.App;
 import space.pxls.auth.*;
 import space.pxls.data.*;
+import space.pxls.metrics.Metrics;
 import space.pxls.server.packets.http.Error;
 import space.pxls.server.packets.http.*;
 import space.pxls.server.packets.socket.*;
@@ -29,7 +30,6 @@ import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import at.favre.lib.crypto.bcrypt.*;
@@ -40,6 +40,14 @@ public class WebHandler {
     private Map<String, AuthService> services = new ConcurrentHashMap<>();
     public static final String TEMPLATE_PROFILE = "public/pebble_templates/profile.html";
     public static final String TEMPLATE_40X = "public/pebble_templates/40x.html";
+    public static final String TEMPLATE_PROFILE_NAV = "public/pebble_templates/profile_nav.html";
+    private static final int PROFILE_SLOTS = 3;
+    private static final int PROFILE_SLOT_NAV = 0;
+    private static final int PROFILE_SLOT_ALLTIME_PIXELS = 1;
+    private static final int PROFILE_SLOT_CANVAS_PIXELS = 2;
+    private static final CachedResponse WHOAMI_UNAUTHED = CachedResponse.json(App.getGson().toJson(new WhoAmI("unauthed", -1)));
+    private volatile CachedResponse infoResponse;
+    private final ProfileCache profileCache = new ProfileCache(App.getConfig().getInt("profileCache.maxSize"), App.getConfig().getDuration("profileCache.ttl", TimeUnit.MILLISECONDS));
 
     public WebHandler() {
         addServiceIfAvailable("reddit", new RedditAuthService("reddit"));
@@ -66,57 +74,8 @@ public class WebHandler {
         }
     }
 
-    private String fileToString(String s) {
-        return fileToString(new File(s));
-    }
-
-    private String resourceToString(String r) {
-        try {
-            InputStream in = getClass().getResourceAsStream(r);
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
-            String s = "";
-            String line;
-            while ((line = br.readLine()) != null) {
-                s += line + "\n";
-            }
-            return s;
-        } catch (IOException e) {
-            return "";
-        }
-    }
-
     public void index(HttpServerExchange exchange) {
-        File index_cache = new File(App.getStorageDir().resolve("index_cache.html").toString());
-        if (index_cache.exists()) {
-            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/html");
-            exchange.getResponseSender().send(fileToString(index_cache));
-            return;
-        }
-        String s = resourceToString("/public/index.html");
-        String[] replacements = {"title", "head", "info", "faq"};
-        for (String p : replacements) {
-            String r = App.getConfig().getString("html." + p);
-            if (r == null) {
-                r = "";
-            }
-            if (r.startsWith("resource:")) {
-                r = resourceToString(r.substring(9));
-            } else if (r.startsWith("file:")) {
-                r = fileToString(App.getStorageDir().resolve(r.substring(5)).toString());
-            }
-            s = s.replace("{{" + p + "}}", r);
-        }
-        try {
-            FileWriter fw = new FileWriter(index_cache);
-            fw.write(s);
-            fw.flush();
-            fw.close();
-            index(exchange); // we created the file, now output it!
-        } catch (IOException e) {
-            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/html");
-            exchange.getResponseSender().send("error");
-            return;
-        }
+        App.getServer().getStaticAssets().serveIndex(exchange);
     }
 
     public void view40x(HttpServerExchange exchange, int x, User user) {
@@ -150,46 +109,29 @@ public class WebHandler {
 
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/html");
 
-            HashMap<String,Object> m = new HashMap<>();
-            m.put("requesting_user", user);
-
             if (profileUser == null) {
                 view40x(exchange, 404, user);
             } else {
                 String toRet = "<p style=\"text-align: center;\">Socc probably broke something... let someone know please.</p>";
                 try {
-                    List<DBChatReport> chatReports = new ArrayList<>();
-                    List<DBCanvasReport> canvasReports = new ArrayList<>();
-                    List<Faction> factions = App.getDatabase().getFactionsForUID(profileUser.getId()).stream().map(Faction::new).collect(Collectors.toList());
-
-                    m.put("snip_mode", App.getSnipMode());
-                    m.put("requested_self", requested_self);
-                    m.put("profile_of", profileUser);
-                    m.put("factions", factions);
-                    m.put("palette", App.getPalette().getColors().stream().map(color -> color.getValue()).collect(Collectors.toList()));
-                    m.put("route_root", requested_self ? "/profile" : String.format("/profile/%s", requested));
-
+                    String navUser = renderTemplate(TEMPLATE_PROFILE_NAV, Map.of("requesting_user", user));
+                    String alltimePixels = String.format("%,d", profileUser.getAllTimePixelCount());
+                    String canvasPixels = String.format("%,d", profileUser.getPixelCount());
                     if (requested_self) {
-                        try {
-                            chatReports = App.getDatabase().getChatReportsFromUser(profileUser.getId());
-                            canvasReports = App.getDatabase().getCanvasReportsFromUser(profileUser.getId());
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                        toRet = renderOwnProfile(user, navUser, alltimePixels, canvasPixels);
+                    } else {
+                        // other users' profiles look the same to everyone but for the navigation, so they are cached
+                        ProfileCache.Page page = profileCache.get(profileUser);
+                        if (page == null) {
+                            String[] markers = new String[PROFILE_SLOTS];
+                            String nonce = UUID.randomUUID().toString().replace("-", "");
+                            for (int i = 0; i < markers.length; i++) markers[i] = "pxls-slot-" + i + "-" + nonce;
+                            ProfileCache.Stamp stamp = profileCache.stamp(profileUser);
+                            HashMap<String,Object> m = profileModel(profileUser, false, markers[PROFILE_SLOT_NAV], markers[PROFILE_SLOT_ALLTIME_PIXELS], markers[PROFILE_SLOT_CANVAS_PIXELS]);
+                            page = profileCache.put(profileUser, renderTemplate(TEMPLATE_PROFILE, m), markers, stamp);
                         }
-                        m.put("requesting_user_canvas_pixels", user.getPixelCount());
-                        m.put("requesting_user_alltime_pixels", user.getAllTimePixelCount());
-                        m.put("new_fac_min_pixels", App.getConfig().getInt("factions.minPixelsToCreate"));
-                        m.put("max_faction_tag_length", App.getConfig().getInt("factions.maxTagLength"));
-                        m.put("max_faction_name_length", App.getConfig().getInt("factions.maxNameLength"));
-                        m.put("chat_reports", chatReports);
-                        m.put("chat_reports_open_count", chatReports.stream().filter(dbChatReport -> !dbChatReport.closed).count());
-                        m.put("canvas_reports", canvasReports);
-                        m.put("canvas_reports_open_count", canvasReports.stream().filter(dbCanvasReport -> !dbCanvasReport.closed).count());
+                        toRet = page.render(navUser, alltimePixels, canvasPixels);
                     }
-
-                    Writer writer = new StringWriter();
-                    engine.getTemplate(TEMPLATE_PROFILE).evaluate(writer, m);
-                    toRet = writer.toString();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -201,6 +143,55 @@ public class WebHandler {
         }
     }
 
+    private String renderOwnProfile(User user, String navUser, String alltimePixels, String canvasPixels) throws IOException {
+        List<DBChatReport> chatReports = new ArrayList<>();
+        List<DBCanvasReport> canvasReports = new ArrayList<>();
+        List<Faction> factions = App.getDatabase().getFactionsForUID(user.getId()).stream().map(Faction::new).collect(Collectors.toList());
+        try {
+            chatReports = App.getDatabase().getChatReportsFromUser(user.getId());
+            canvasReports = App.getDatabase().getCanvasReportsFromUser(user.getId());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        HashMap<String,Object> m = profileModel(user, true, navUser, alltimePixels, canvasPixels);
+        m.put("requesting_user", user);
+        m.put("factions", factions);
+        m.put("requesting_user_canvas_pixels", user.getPixelCount());
+        m.put("requesting_user_alltime_pixels", user.getAllTimePixelCount());
+        m.put("new_fac_min_pixels", App.getConfig().getInt("factions.minPixelsToCreate"));
+        m.put("max_faction_tag_length", App.getConfig().getInt("factions.maxTagLength"));
+        m.put("max_faction_name_length", App.getConfig().getInt("factions.maxNameLength"));
+        m.put("chat_reports", chatReports);
+        m.put("chat_reports_open_count", chatReports.stream().filter(dbChatReport -> !dbChatReport.closed).count());
+        m.put("canvas_reports", canvasReports);
+        m.put("canvas_reports_open_count", canvasReports.stream().filter(dbCanvasReport -> !dbCanvasReport.closed).count());
+        return renderTemplate(TEMPLATE_PROFILE, m);
+    }
+
+    private HashMap<String,Object> profileModel(User profileUser, boolean requested_self, String navUser, String alltimePixels, String canvasPixels) {
+        HashMap<String,Object> m = new HashMap<>();
+        m.put("snip_mode", App.getSnipMode());
+        m.put("requested_self", requested_self);
+        m.put("profile_of", profileUser);
+        m.put("palette", App.getPalette().getColors().stream().map(color -> color.getValue()).collect(Collectors.toList()));
+        m.put("route_root", requested_self ? "/profile" : String.format("/profile/%s", profileUser.getName()));
+        m.put("nav_user", navUser);
+        m.put("profile_alltime_pixels", alltimePixels);
+        m.put("profile_canvas_pixels", canvasPixels);
+        return m;
+    }
+
+    private String renderTemplate(String template, Map<String,Object> m) throws IOException {
+        Writer writer = new StringWriter();
+        engine.getTemplate(template).evaluate(writer, m);
+        return writer.toString();
+    }
+
+    public ProfileCache getProfileCache() {
+        return profileCache;
+    }
+
     public void getRequestingUserFactions(HttpServerExchange exchange) throws Exception {
         User user = exchange.getAttachment(AuthReader.USER);
         if (user == null) {
@@ -1457,6 +1448,20 @@ public class WebHandler {
         exchange.endExchange();
     }
 
+    public void dbStats(HttpServerExchange exchange) {
+        QueryStats stats = App.getDatabase() instanceof JdbiDatabase ? ((JdbiDatabase) App.getDatabase()).getQueryStats() : null;
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.setStatusCode(200);
+        exchange.getResponseSender().send(App.getGson().toJson(new DatabaseStats(stats)));
+        exchange.endExchange();
+    }
+
+    public void metrics(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        exchange.setStatusCode(200);
+        exchange.getResponseSender().send(Metrics.getInstance().scrape());
+    }
+
     private void sendBadRequest(HttpServerExchange exchange) {
         sendBadRequest(exchange, "");
     }
@@ -1817,12 +1822,19 @@ public class WebHandler {
     }
 
     public void info(HttpServerExchange exchange) {
-        User user = exchange.getAttachment(AuthReader.USER);
+        CachedResponse response = infoResponse;
+        if (response == null) {
+            response = buildInfoResponse();
+            infoResponse = response;
+        }
 
         exchange.getResponseHeaders()
-                .add(HttpString.tryFromString("Content-Type"), "application/json")
                 .add(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
-        exchange.getResponseSender().send(App.getGson().toJson(new CanvasInfo(
+        response.send(exchange, "no-cache");
+    }
+
+    private CachedResponse buildInfoResponse() {
+        return CachedResponse.json(App.getGson().toJson(new CanvasInfo(
             App.getCanvasCode(),
             App.getWidth(),
             App.getHeight(),
@@ -1841,6 +1853,13 @@ public class WebHandler {
         )));
     }
 
+    /**
+     * Serializes the responses built from configuration again. Called after the config and palette are reloaded.
+     */
+    public void reloadCachedResponses() {
+        infoResponse = buildInfoResponse();
+    }
+
     public void data(HttpServerExchange exchange) {
         exchange.getResponseHeaders()
                 .put(Headers.CONTENT_TYPE, "application/binary")
@@ -1936,6 +1955,106 @@ public class WebHandler {
         exchange.getResponseSender().send(App.getGson().toJson(lookup));
     }
 
+    /**
+     * Looks up many pixels in one request: either the rectangle given by <pre>x</pre>, <pre>y</pre>, <pre>width</pre>
+     *  and <pre>height</pre>, or the <pre>pixels</pre> list of <pre>x,y</pre> pairs separated by <pre>;</pre>.
+     * Responds with the lookups of the pixels that have one, and is logged as a single lookup.
+     * @param exchange The exchange.
+     */
+    public void lookupBatch(HttpServerExchange exchange) {
+        User user = exchange.getAttachment(AuthReader.USER);
+        Map<String, Deque<String>> params = exchange.getQueryParameters();
+        int maxPixels = App.getConfig().getInt("server.limits.lookupBatch.maxPixels");
+
+        int[] positions;
+        try {
+            positions = params.containsKey("pixels")
+                ? lookupPositionsFromList(firstParam(params, "pixels"), maxPixels)
+                : lookupPositionsFromRect(params, maxPixels);
+        } catch (IllegalArgumentException e) {
+            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+            exchange.endExchange();
+            return;
+        }
+
+        // only pixels placed on during this canvas have a placement to look up
+        int[] xs = new int[positions.length];
+        int[] ys = new int[positions.length];
+        int count = 0;
+        for (int position : positions) {
+            int x = position % App.getWidth();
+            int y = position / App.getWidth();
+            if (App.getVirginmap(x, y) != 0) continue;
+            xs[count] = x;
+            ys[count] = y;
+            count++;
+        }
+        xs = Arrays.copyOf(xs, count);
+        ys = Arrays.copyOf(ys, count);
+
+        exchange.getResponseHeaders()
+                .put(Headers.CONTENT_TYPE, "application/json")
+                .put(HttpString.tryFromString("Access-Control-Allow-Origin"), "*");
+        App.getDatabase().insertLookup(user == null ? null : user.getId(), exchange.getAttachment(IPReader.IP));
+
+        List<Lookup> lookups = new ArrayList<>(count);
+        if (user != null && user.hasPermission("board.check")) {
+            for (DBPixelPlacementFull pixel : App.getDatabase().getFullPixelsAt(xs, ys)) {
+                lookups.add(ExtendedLookup.fromDB(pixel));
+            }
+        } else {
+            boolean snip = App.getSnipMode();
+            for (DBPixelPlacement pixel : App.getDatabase().getPixelsAt(xs, ys)) {
+                Lookup lookup = Lookup.fromDB(pixel);
+                lookups.add(snip ? lookup.asSnipRedacted() : lookup);
+            }
+        }
+        exchange.getResponseSender().send(App.getGson().toJson(lookups));
+    }
+
+    private static String firstParam(Map<String, Deque<String>> params, String name) {
+        Deque<String> values = params.get(name);
+        if (values == null || values.isEmpty()) throw new IllegalArgumentException("missing " + name);
+        return values.element();
+    }
+
+    private static int[] lookupPositionsFromRect(Map<String, Deque<String>> params, int maxPixels) {
+        int x = Integer.parseInt(firstParam(params, "x"));
+        int y = Integer.parseInt(firstParam(params, "y"));
+        int width = Integer.parseInt(firstParam(params, "width"));
+        int height = Integer.parseInt(firstParam(params, "height"));
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > App.getWidth() || y + height > App.getHeight()
+                || (long) width * height > maxPixels) {
+            throw new IllegalArgumentException("bad rectangle");
+        }
+        int[] positions = new int[width * height];
+        int i = 0;
+        for (int py = y; py < y + height; py++) {
+            for (int px = x; px < x + width; px++) {
+                positions[i++] = px + py * App.getWidth();
+            }
+        }
+        return positions;
+    }
+
+    private static int[] lookupPositionsFromList(String list, int maxPixels) {
+        String[] pairs = list.split(";");
+        if (pairs.length > maxPixels) throw new IllegalArgumentException("too many pixels");
+        Set<Integer> seen = new HashSet<>();
+        int[] positions = new int[pairs.length];
+        int count = 0;
+        for (String pair : pairs) {
+            int comma = pair.indexOf(',');
+            if (comma < 0) throw new IllegalArgumentException("bad pixel " + pair);
+            int x = Integer.parseInt(pair.substring(0, comma).trim());
+            int y = Integer.parseInt(pair.substring(comma + 1).trim());
+            if (x < 0 || x >= App.getWidth() || y < 0 || y >= App.getHeight()) throw new IllegalArgumentException("bad pixel " + pair);
+            int position = x + y * App.getWidth();
+            if (seen.add(position)) positions[count++] = position;
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
     public void report(HttpServerExchange exchange) {
         User user = exchange.getAttachment(AuthReader.USER);
 
@@ -1982,7 +2101,7 @@ public class WebHandler {
             exchange.endExchange();
             return;
         }
-        DBPixelPlacementFull pxl = App.getDatabase().getPixelByID(null, id);
+        DBPixelPlacementFull pxl = App.getDatabase().getPixelByID(id);
         if (pxl.x != x || pxl.y != y) {
             exchange.setStatusCode(StatusCodes.BAD_REQUEST);
             exchange.endExchange();
@@ -2006,18 +2125,16 @@ public class WebHandler {
                 .put(Headers.CONTENT_TYPE, "application/json")
                 .put(HttpString.tryFromString("Access-Control-Allow-Credentials"), "true");
 
-        String origin = exchange.getRequestHeaders().getFirst(HttpString.tryFromString("Origin"));
-        if (origin != null && App.getWhoamiAllowedOrigins().stream().anyMatch(Predicate.isEqual(origin))) {
+        String origin = exchange.getRequestHeaders().getFirst(Headers.ORIGIN);
+        exchange.getResponseHeaders().add(Headers.VARY, Headers.ORIGIN_STRING);
+        if (origin != null && App.getWhoamiAllowedOrigins().contains(origin)) {
             exchange.getResponseHeaders()
                     .put(HttpString.tryFromString("Access-Control-Allow-Origin"), origin);
         }
 
         User user = exchange.getAttachment(AuthReader.USER);
-        if (user != null) {
-            exchange.getResponseSender().send(App.getGson().toJson(new WhoAmI(user.getName(), user.getId())));
-        } else {
-            exchange.getResponseSender().send(App.getGson().toJson(new WhoAmI("unauthed", -1)));
-        }
+        CachedResponse response = user != null ? user.getWhoamiResponse() : WHOAMI_UNAUTHED;
+        response.send(exchange, "private, no-cache");
     }
 
     private User parseUserFromForm(HttpServerExchange exchange) {
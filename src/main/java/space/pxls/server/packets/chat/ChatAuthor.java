@@ -0,0 +1,89 @@
+package space.pxls.server.packets.chat;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import space.pxls.App;
+import space.pxls.user.Faction;
+
+import java.util.List;
+
+/**
+ * The author fields of a {@link ChatMessage}: name, badges, name color and classes, and faction.<br>
+ * Instances are immutable and shared by every message of the same author until something shown here changes
+ *  (see {@link space.pxls.user.User#getChatAuthor()}), so the badges, name classes and faction are serialized
+ *  once and the resulting JSON trees are shared by each message.
+ */
+public class ChatAuthor {
+    public static final ChatAuthor CONSOLE = new ChatAuthor("CONSOLE", null, null, 0, (Faction) null);
+    public static final ChatAuthor UNKNOWN = new ChatAuthor("$Unknown", List.of(), null, 0, (Faction) null);
+
+    private final String name;
+    private final List<Badge> badges;
+    private final List<String> nameClasses;
+    private final int nameColor;
+    private final ChatMessage.StrippedFaction faction;
+
+    private final JsonElement badgesJSON;
+    private final JsonElement nameClassesJSON;
+    private final JsonElement factionJSON;
+    private volatile ChatAuthor snipRedacted;
+
+    public ChatAuthor(String name, List<Badge> badges, List<String> nameClasses, int nameColor, Faction faction) {
+        this(name, badges, nameClasses, nameColor, faction != null ? new ChatMessage.StrippedFaction(faction) : null);
+    }
+
+    private ChatAuthor(String name, List<Badge> badges, List<String> nameClasses, int nameColor, ChatMessage.StrippedFaction faction) {
+        this.name = name;
+        this.badges = badges == null ? null : List.copyOf(badges);
+        this.nameClasses = nameClasses == null ? null : List.copyOf(nameClasses);
+        this.nameColor = nameColor;
+        this.faction = faction;
+        this.badgesJSON = badges == null ? null : App.getGson().toJsonTree(this.badges);
+        this.nameClassesJSON = nameClasses == null ? null : App.getGson().toJsonTree(this.nameClasses);
+        this.factionJSON = faction == null ? null : App.getGson().toJsonTree(faction);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Badge> getBadges() {
+        return badges;
+    }
+
+    public List<String> getNameClasses() {
+        return nameClasses;
+    }
+
+    public int getNameColor() {
+        return nameColor;
+    }
+
+    public ChatMessage.StrippedFaction getFaction() {
+        return faction;
+    }
+
+    /**
+     * @return This author with the name and faction redacted.
+     */
+    public ChatAuthor asSnipRedacted() {
+        ChatAuthor redacted = snipRedacted;
+        if (redacted == null) {
+            redacted = new ChatAuthor("-snip-", badges, nameClasses, nameColor, (ChatMessage.StrippedFaction) null);
+            snipRedacted = redacted;
+        }
+        return redacted;
+    }
+
+    /**
+     * Adds the author fields to a serialized message.
+     * @param message The message object.
+     */
+    void addTo(JsonObject message) {
+        message.addProperty("author", name);
+        message.add("badges", badgesJSON);
+        message.add("authorNameClass", nameClassesJSON);
+        message.addProperty("authorNameColor", nameColor);
+        message.add("strippedFaction", factionJSON);
+    }
+}
@@ -1,35 +1,34 @@
 package space.pxls.server.packets.chat;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.annotations.JsonAdapter;
 import space.pxls.user.Faction;
 import space.pxls.user.User;
 import space.pxls.App;
 
+import java.lang.reflect.Type;
 import java.util.List;
 
+@JsonAdapter(ChatMessage.Serializer.class)
 public class ChatMessage {
     public int id;
-    public String author;
+    public ChatAuthor author;
     public Long date;
     public String message_raw;
     public Purge purge;
-    public List<Badge> badges;
-    public List<String> authorNameClass;
-    public Number authorNameColor;
     public Boolean authorWasShadowBanned;
-    public StrippedFaction strippedFaction;
 
-    public ChatMessage(int id, String author, Long date, String message_raw, Purge purge, List<Badge> badges, List<String> authorNameClass, Number authorNameColor, boolean authorWasShadowBanned, Faction faction) {
+    public ChatMessage(int id, ChatAuthor author, Long date, String message_raw, Purge purge, boolean authorWasShadowBanned) {
         this.id = id;
         this.author = author;
         this.date = date;
         this.message_raw = message_raw;
         this.purge = purge;
-        this.badges = badges;
-        this.authorNameClass = authorNameClass;
-        this.authorNameColor = authorNameColor;
         // set authorIsShadowBanned to null when false so that it is skipped by Gson
         this.authorWasShadowBanned = authorWasShadowBanned ? true : null;
-        this.strippedFaction = faction != null ? new StrippedFaction(faction) : null;
     }
 
     public int getId() {
@@ -37,6 +36,10 @@ public class ChatMessage {
     }
 
     public String getAuthor() {
+        return author.getName();
+    }
+
+    public ChatAuthor getChatAuthor() {
         return author;
     }
 
@@ -49,15 +52,15 @@ public class ChatMessage {
     }
 
     public List<Badge> getBadges() {
-        return badges;
+        return author.getBadges();
     }
 
     public List<String> getAuthorNameClass() {
-        return authorNameClass;
+        return author.getNameClasses();
     }
 
     public Number getAuthorNameColor() {
-        return authorNameColor;
+        return author.getNameColor();
     }
 
     public boolean getAuthorWasShadowBanned() {
@@ -65,17 +68,21 @@ public class ChatMessage {
     }
 
     public StrippedFaction getStrippedFaction() {
-        return strippedFaction;
+        return author.getFaction();
     }
 
     public ChatMessage asSnipRedacted() {
         // Redact username.
-        return new ChatMessage(id, "-snip-", date, message_raw, purge, badges, authorNameClass, authorNameColor, authorWasShadowBanned, null);
+        return new ChatMessage(id, author.asSnipRedacted(), date, message_raw, purge, getAuthorWasShadowBanned());
+    }
+
+    public ChatMessage asPurged(Purge purge) {
+        return new ChatMessage(id, author, date, message_raw, purge, getAuthorWasShadowBanned());
     }
 
     public ChatMessage asShadowBanned() {
         // Hide the fact that the user is shadow banned.
-        return new ChatMessage(id, author, date, message_raw, purge, badges, authorNameClass, authorNameColor, false, null);
+        return new ChatMessage(id, author, date, message_raw, purge, false);
     }
 
     public static class StrippedFaction {
@@ -110,4 +117,27 @@ public class ChatMessage {
             return reason;
         }
     }
+
+    /**
+     * Builds messages field by field around the author's pre-serialized fields. Messages are only ever sent, so there is
+     *  no matching deserializer.
+     */
+    static class Serializer implements JsonSerializer<ChatMessage> {
+        @Override
+        public JsonElement serialize(ChatMessage message, Type type, JsonSerializationContext context) {
+            JsonObject json = new JsonObject();
+            json.addProperty("id", message.id);
+            json.addProperty("date", message.date);
+            json.addProperty("message_raw", message.message_raw);
+            if (message.purge != null) {
+                JsonObject purge = new JsonObject();
+                purge.addProperty("initiator", message.purge.initiator);
+                purge.addProperty("reason", message.purge.reason);
+                json.add("purge", purge);
+            }
+            message.author.addTo(json);
+            json.addProperty("authorWasShadowBanned", message.authorWasShadowBanned);
+            return json;
+        }
+    }
 }
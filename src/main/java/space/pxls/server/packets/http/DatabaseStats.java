@@ -0,0 +1,47 @@
+package space.pxls.server.packets.http;
+
+import space.pxls.data.QueryStats;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class DatabaseStats {
+    public List<Timer> queries;
+    public List<Timer> poolWaits;
+
+    public DatabaseStats(QueryStats stats) {
+        this.queries = stats == null ? Collections.emptyList() : stats.getQueries().stream().map(Timer::new).collect(Collectors.toList());
+        this.poolWaits = stats == null ? Collections.emptyList() : stats.getPoolWaits().stream().map(Timer::new).collect(Collectors.toList());
+    }
+
+    public List<Timer> getQueries() {
+        return queries;
+    }
+
+    public List<Timer> getPoolWaits() {
+        return poolWaits;
+    }
+
+    public static class Timer {
+        public String name;
+        public long calls;
+        public long errors;
+        public long results;
+        public double p50MS;
+        public double p99MS;
+        public double maxMS;
+        public double totalMS;
+
+        public Timer(QueryStats.Timer timer) {
+            this.name = timer.getName();
+            this.calls = timer.getCalls();
+            this.errors = timer.getErrors();
+            this.results = timer.getResults();
+            this.p50MS = timer.getPercentileMicros(0.5) / 1000d;
+            this.p99MS = timer.getPercentileMicros(0.99) / 1000d;
+            this.maxMS = timer.getMaxNanos() / 1e6;
+            this.totalMS = timer.getTotalNanos() / 1e6;
+        }
+    }
+}
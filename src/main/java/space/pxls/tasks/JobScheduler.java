@@ -0,0 +1,221 @@
+package space.pxls.tasks;
+
+import space.pxls.App;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs named periodic jobs.<br>
+ * A single timer thread only decides when jobs are due; the jobs themselves run on a worker pool, so a slow job
+ *  never delays the others. A job still running when it is next due skips that run rather than overlapping
+ *  itself. Each run is delayed by a random jitter of up to <pre>jobs.jitter</pre> of the period, so jobs with
+ *  the same period don't all fire at once. Run times, lateness (how long after its due time a run started),
+ *  skips and failures are kept per job.
+ */
+public class JobScheduler {
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final double jitter;
+
+    public JobScheduler(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "JobScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "JobScheduler-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules a job, replacing any job with the same name. The job's statistics are kept across replacements.
+     * @param name The job's name.
+     * @param periodMS The time between runs, in milliseconds.
+     * @param initialDelayMS The time until the first run, in milliseconds.
+     * @param task The job.
+     */
+    public void schedule(String name, long periodMS, long initialDelayMS, Runnable task) {
+        Job job = jobs.computeIfAbsent(name, Job::new);
+        synchronized (job) {
+            if (job.future != null) job.future.cancel(false);
+            job.task = task;
+            job.periodMS = Math.max(1, periodMS);
+            job.nextDue = System.currentTimeMillis() + Math.max(0, initialDelayMS);
+            job.scheduleNext();
+        }
+    }
+
+    /**
+     * Runs a job now, outside its schedule.
+     * @param name The job's name.
+     * @return Whether the job was started; false if there is no such job or it is already running.
+     */
+    public boolean runNow(String name) {
+        Job job = jobs.get(name);
+        return job != null && job.dispatch(System.currentTimeMillis());
+    }
+
+    /**
+     * @return The jobs, sorted by name.
+     */
+    public List<Job> getJobs() {
+        List<Job> list = new ArrayList<>(jobs.values());
+        list.sort(Comparator.comparing(Job::getName));
+        return list;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%-12s %10s %8s %8s %8s %10s %10s %10s %10s %s", "job", "period s", "runs", "skipped", "failed", "last ms", "max ms", "late ms", "max late", "state"));
+        for (Job job : getJobs()) sb.append(System.lineSeparator()).append(job);
+        return sb.toString();
+    }
+
+    public class Job {
+        private final String name;
+        private Runnable task;
+        private long periodMS;
+        private long nextDue;
+        private ScheduledFuture<?> future;
+
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final LongAdder runs = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile long lastRunNanos;
+        private final LongAccumulator maxRunNanos = new LongAccumulator(Math::max, 0);
+        private volatile long lastLatenessMS;
+        private final LongAccumulator maxLatenessMS = new LongAccumulator(Math::max, 0);
+
+        private Job(String name) {
+            this.name = name;
+        }
+
+        // must hold the job's lock
+        private void scheduleNext() {
+            long jitterMS = (long) (periodMS * jitter * ThreadLocalRandom.current().nextDouble());
+            long due = nextDue;
+            long planned = due + jitterMS;
+            future = timer.schedule(() -> onDue(due, planned), Math.max(0, planned - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void onDue(long due, long planned) {
+            if (due != nextDue) return; // rescheduled meanwhile
+            try {
+                dispatch(planned);
+            } finally {
+                // fixed rate, but never try to catch up on runs missed while the process was stalled
+                nextDue = Math.max(due + periodMS, System.currentTimeMillis());
+                scheduleNext();
+            }
+        }
+
+        /**
+         * @param planned When the run was meant to start, for the lateness statistics.
+         * @return Whether the run was started.
+         */
+        private boolean dispatch(long planned) {
+            if (!running.compareAndSet(false, true)) {
+                skipped.increment();
+                App.getLogger().warn("Job {} is still running, skipping a run", name);
+                return false;
+            }
+            Runnable task = this.task;
+            workers.execute(() -> run(task, planned));
+            return true;
+        }
+
+        private void run(Runnable task, long planned) {
+            long lateness = Math.max(0, System.currentTimeMillis() - planned);
+            lastLatenessMS = lateness;
+            maxLatenessMS.accumulate(lateness);
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failures.increment();
+                App.getLogger().error("Job " + name + " failed", t);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                lastRunNanos = elapsed;
+                maxRunNanos.accumulate(elapsed);
+                runs.increment();
+                running.set(false);
+                if (elapsed > TimeUnit.MILLISECONDS.toNanos(periodMS)) {
+                    App.getLogger().warn("Job {} took {}ms, longer than its {}ms period", name, TimeUnit.NANOSECONDS.toMillis(elapsed), periodMS);
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPeriodMS() {
+            return periodMS;
+        }
+
+        public boolean isRunning() {
+            return running.get();
+        }
+
+        public long getRuns() {
+            return runs.sum();
+        }
+
+        public long getSkipped() {
+            return skipped.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getLastRunNanos() {
+            return lastRunNanos;
+        }
+
+        public long getMaxRunNanos() {
+            return maxRunNanos.get();
+        }
+
+        public long getLastLatenessMS() {
+            return lastLatenessMS;
+        }
+
+        public long getMaxLatenessMS() {
+            return maxLatenessMS.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %10.1f %8d %8d %8d %10.1f %10.1f %10d %10d %s", name, periodMS / 1000d, getRuns(), getSkipped(), getFailures(),
+                getLastRunNanos() / 1e6, getMaxRunNanos() / 1e6, getLastLatenessMS(), getMaxLatenessMS(), isRunning() ? "running" : "idle");
+        }
+    }
+}
@@ -9,10 +9,12 @@ import space.pxls.server.packets.chat.ServerFactionUpdate;
 import space.pxls.server.packets.http.UserFaction;
 
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FactionManager {
     private static FactionManager _instance;
     private final CacheAccess<Integer, Faction> cachedFactions;
+    private final AtomicLong version = new AtomicLong();
 
     private FactionManager() {
         cachedFactions = JCS.getInstance("factions");
@@ -91,6 +93,7 @@ public class FactionManager {
      */
     public FactionManager invalidate(int fid) {
         cachedFactions.remove(fid);
+        version.incrementAndGet();
         return this;
     }
 
@@ -101,6 +104,7 @@ public class FactionManager {
      */
     public FactionManager invalidateAll() {
         cachedFactions.clear();
+        version.incrementAndGet();
         return this;
     }
 
@@ -117,6 +121,7 @@ public class FactionManager {
      */
     public void update(Faction faction, boolean handleExtras) {
         cachedFactions.put(faction.getId(), faction);
+        version.incrementAndGet();
         if (handleExtras) {
             if (faction.isDirty().get()) {
                 App.getDatabase().updateFaction(faction);
@@ -165,6 +170,13 @@ public class FactionManager {
         invalidate(fid);
     }
 
+    /**
+     * @return A counter bumped whenever a faction is updated or invalidated, for caches of faction details.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
     public CacheAccess<Integer, Faction> getCachedFactions() {
         return cachedFactions;
     }
@@ -0,0 +1,102 @@
+package space.pxls.user;
+
+import space.pxls.App;
+import space.pxls.util.TimingWheel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which authed users are idle, and how many aren't.<br>
+ * Each non-idle authed user has an idle deadline on a {@link TimingWheel}, <pre>userIdleTimeout</pre> after
+ *  their last placement (or authentication), pushed back whenever they place. The non-idle count is kept up to
+ *  date on every transition, so reading it is O(1).
+ */
+public class IdleTracker {
+    private final TimingWheel<Integer> wheel = new TimingWheel<>(1000, 512, System.currentTimeMillis());
+    private final Map<Integer, User> tracked = new HashMap<>();
+    private final AtomicInteger nonIdled = new AtomicInteger();
+
+    private static long getActivityTime(User user) {
+        return user.getLastPixelTime() == 0L ? user.getInitialAuthTime() : user.getLastPixelTime();
+    }
+
+    /**
+     * Starts tracking a newly authed user.
+     * @param user The user.
+     */
+    public synchronized void add(User user) {
+        if (tracked.putIfAbsent(user.getId(), user) != null) return;
+        if (!user.isIdled()) {
+            nonIdled.incrementAndGet();
+            wheel.schedule(user.getId(), getActivityTime(user) + App.getUserIdleTimeout());
+        }
+    }
+
+    /**
+     * Stops tracking a user that is no longer authed.
+     * @param user The user.
+     */
+    public synchronized void remove(User user) {
+        if (tracked.remove(user.getId()) == null) return;
+        if (!user.isIdled()) nonIdled.decrementAndGet();
+        wheel.cancel(user.getId());
+    }
+
+    /**
+     * Updates a user's idle deadline after activity.
+     * @param user The user.
+     */
+    public synchronized void touch(User user) {
+        if (tracked.get(user.getId()) != user || user.isIdled()) return;
+        wheel.schedule(user.getId(), getActivityTime(user) + App.getUserIdleTimeout());
+    }
+
+    /**
+     * Sets a user's idle flag, keeping the non-idle count and the user's deadline in sync.
+     * @param user The user.
+     * @param idled Whether the user is idle.
+     */
+    synchronized void setIdled(User user, boolean idled) {
+        if (user.isIdled() == idled) return;
+        user.setIdledState(idled);
+        if (tracked.get(user.getId()) != user) return;
+        if (idled) {
+            nonIdled.decrementAndGet();
+            wheel.cancel(user.getId());
+        } else {
+            nonIdled.incrementAndGet();
+            wheel.schedule(user.getId(), getActivityTime(user) + App.getUserIdleTimeout());
+        }
+    }
+
+    /**
+     * Idles every user whose deadline has passed.
+     * @return Whether any user became idle.
+     */
+    public synchronized boolean tick() {
+        long now = System.currentTimeMillis();
+        boolean anyIdled = false;
+        for (Integer id : wheel.advance(now)) {
+            User user = tracked.get(id);
+            if (user == null || user.isIdled()) continue;
+            // the timeout may have been raised by a config reload since the deadline was set
+            long deadline = getActivityTime(user) + App.getUserIdleTimeout();
+            if (deadline > now) {
+                wheel.schedule(id, deadline);
+                continue;
+            }
+            setIdled(user, true);
+            anyIdled = true;
+        }
+        return anyIdled;
+    }
+
+    /**
+     * @return The number of authed users that aren't idle.
+     */
+    public int getNonIdledCount() {
+        return nonIdled.get();
+    }
+}
@@ -8,8 +8,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -21,8 +26,11 @@ public class Role {
     private List<Role> inherits = new ArrayList<>();
     private final List<Badge> badges;
     private final List<String> permissions;
+    // this role's permissions including inherited ones, indexed by permission ID
+    private BitSet permissionSet = new BitSet();
 
     private static final HashMap<String, Role> canonicalRoles = new HashMap<>();
+    private static volatile Compiled compiled = new Compiled(Map.of(), Map.of(), List.of(), List.of(), new BitSet(), 0);
 
     public Role(String id, String name, Boolean guest, Boolean defaultRole, List<Badge> badges, List<String> permissions) {
         this.id = id;
@@ -70,7 +78,88 @@ public class Role {
     }
 
     public boolean hasPermission(String node) {
-        return getPermissions().contains(node);
+        Compiled current = compiled;
+        // a role replaced by a reload has a bitset indexed by the old permission IDs
+        Role role = current.roles.get(id);
+        Integer permission = current.permissionIDs.get(node);
+        return role != null && permission != null && role.permissionSet.get(permission);
+    }
+
+    /**
+     * @param node The permission node.
+     * @return The interned ID of the permission node, or -1 if no role grants it.
+     */
+    public static int permissionID(String node) {
+        Integer permission = compiled.permissionIDs.get(node);
+        return permission == null ? -1 : permission;
+    }
+
+    /**
+     * Interns every permission node to an integer ID and precomputes each role's permissions, including
+     *  inherited ones, as a bitset. Must be called after all roles are made canonical and their inheritance is set.
+     */
+    public static void compilePermissions() {
+        Map<String, Integer> permissionIDs = new HashMap<>();
+        for (Role role : canonicalRoles.values()) {
+            for (String node : role.permissions) permissionIDs.putIfAbsent(node, permissionIDs.size());
+        }
+        Map<Role, BitSet> closures = new HashMap<>();
+        for (Role role : canonicalRoles.values()) {
+            role.permissionSet = closure(role, permissionIDs, closures, new HashSet<>());
+        }
+
+        List<Role> guestRoles = new ArrayList<>();
+        List<Role> defaultRoles = new ArrayList<>();
+        BitSet guestDefaultPermissions = new BitSet();
+        for (Role role : canonicalRoles.values()) {
+            if (role.isGuest()) guestRoles.add(role);
+            if (role.isDefault()) defaultRoles.add(role);
+            if (role.isGuest() || role.isDefault()) guestDefaultPermissions.or(role.permissionSet);
+        }
+        compiled = new Compiled(Map.copyOf(permissionIDs), Map.copyOf(canonicalRoles), List.copyOf(guestRoles), List.copyOf(defaultRoles), guestDefaultPermissions, compiled.generation + 1);
+    }
+
+    private static BitSet closure(Role role, Map<String, Integer> permissionIDs, Map<Role, BitSet> closures, Set<Role> visiting) {
+        BitSet closure = closures.get(role);
+        if (closure != null) return closure;
+        closure = new BitSet(permissionIDs.size());
+        // an inheritance cycle contributes nothing further
+        if (!visiting.add(role)) return closure;
+        for (String node : role.permissions) closure.set(permissionIDs.get(node));
+        for (Role inherited : role.inherits) {
+            if (inherited != null) closure.or(closure(inherited, permissionIDs, closures, visiting));
+        }
+        visiting.remove(role);
+        closures.put(role, closure);
+        return closure;
+    }
+
+    /**
+     * Computes the effective permissions of a set of roles, always including the guest and default roles.
+     * Roles are resolved by ID to the current ones, so instances a user still holds from before a roles reload
+     *  can't mix old and new permission IDs. Roles that no longer exist grant nothing.
+     * @param roles The assigned roles.
+     * @return The effective permissions.
+     */
+    public static Permissions effectivePermissions(Collection<Role> roles) {
+        Compiled now = compiled;
+        BitSet permissions = (BitSet) now.guestDefaultPermissions.clone();
+        for (Role role : roles) {
+            Role current = role == null ? null : now.roles.get(role.id);
+            if (current != null) permissions.or(current.permissionSet);
+        }
+        return new Permissions(permissions, now.generation);
+    }
+
+    /**
+     * @param node The permission node.
+     * @return Whether any guest role grants the permission.
+     */
+    public static boolean guestHasPermission(String node) {
+        for (Role role : compiled.guestRoles) {
+            if (role.hasPermission(node)) return true;
+        }
+        return false;
     }
 
     public static void makeCanonical(Role role) {
@@ -114,11 +203,52 @@ public class Role {
     }
 
     public static List<Role> getGuestRoles() {
-        return canonicalRoles.values().stream().filter(Role::isGuest).collect(Collectors.toList());
+        return compiled.guestRoles;
     }
 
     public static List<Role> getDefaultRoles() {
-        return canonicalRoles.values().stream().filter(Role::isDefault).collect(Collectors.toList());
+        return compiled.defaultRoles;
+    }
+
+    /**
+     * A precomputed, immutable set of effective permissions. It goes stale when the roles are reloaded.
+     */
+    public static class Permissions {
+        private final BitSet bits;
+        private final int generation;
+
+        private Permissions(BitSet bits, int generation) {
+            this.bits = bits;
+            this.generation = generation;
+        }
+
+        public boolean has(String node) {
+            int permission = permissionID(node);
+            return permission >= 0 && bits.get(permission);
+        }
+
+        public boolean isStale() {
+            return generation != compiled.generation;
+        }
+    }
+
+    private static class Compiled {
+        private final Map<String, Integer> permissionIDs;
+        // the roles the permission IDs were compiled for, by role ID
+        private final Map<String, Role> roles;
+        private final List<Role> guestRoles;
+        private final List<Role> defaultRoles;
+        private final BitSet guestDefaultPermissions;
+        private final int generation;
+
+        private Compiled(Map<String, Integer> permissionIDs, Map<String, Role> roles, List<Role> guestRoles, List<Role> defaultRoles, BitSet guestDefaultPermissions, int generation) {
+            this.permissionIDs = permissionIDs;
+            this.roles = roles;
+            this.guestRoles = guestRoles;
+            this.defaultRoles = defaultRoles;
+            this.guestDefaultPermissions = guestDefaultPermissions;
+            this.generation = generation;
+        }
     }
 
     public static class Mapper implements RowMapper<Role> {
@@ -4,10 +4,13 @@ import io.undertow.websockets.core.WebSocketChannel;
 import space.pxls.App;
 import space.pxls.data.DBUser;
 import space.pxls.data.DBUserPixelCounts;
+import space.pxls.server.CachedResponse;
 import space.pxls.server.packets.chat.Badge;
+import space.pxls.server.packets.chat.ChatAuthor;
 import space.pxls.server.packets.chat.ServerChatUserUpdateBuilder;
 import space.pxls.server.packets.socket.ClientUndo;
 import space.pxls.server.packets.chat.ServerChatBan;
+import space.pxls.server.packets.http.WhoAmI;
 import space.pxls.server.packets.socket.ServerRename;
 import space.pxls.util.RateLimitFactory;
 
@@ -15,6 +18,7 @@ import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -26,6 +30,8 @@ public class User {
     private String login;
     private String useragent;
     private List<Role> roles;
+    // cached effective permissions, rebuilt on next check after the roles change
+    private volatile Role.Permissions permissions;
     private int pixelCount;
     private int pixelCountAllTime;
     private PlacementOverrides placementOverrides;
@@ -37,7 +43,7 @@ public class User {
     private AtomicBoolean undoLock = new AtomicBoolean(false);
     private boolean isPermaChatbanned = false;
     private boolean isRenameRequested = false;
-    private boolean isIdled = false;
+    private volatile boolean isIdled = false;
     private String discordName;
     private String chatbanReason;
     private long cooldownExpiry;
@@ -53,6 +59,33 @@ public class User {
     private long chatbanExpiryTime;
 
     private Set<WebSocketChannel> connections = new HashSet<>();
+    // cached chat author details, see getChatAuthor()
+    private volatile ChatAuthor chatAuthor;
+    private volatile long chatAuthorFactionVersion;
+    private volatile boolean chatAuthorSnipMode;
+    // serialized /whoami response, rebuilt when the name changes
+    private volatile CachedResponse whoamiResponse;
+    private volatile String whoamiResponseName;
+    // bumped whenever something shown on the public profile page changes, see ProfileCache
+    private final AtomicInteger profileVersion = new AtomicInteger();
+
+    // all-time pixel count badges, highest threshold first
+    private static final int[] PIXEL_BADGE_THRESHOLDS = {
+        1000000, 900000, 800000, 700000, 600000, 500000, 400000, 300000, 200000, 100000,
+        95000, 90000, 85000, 80000, 75000, 70000, 65000, 60000, 55000, 50000,
+        45000, 40000, 35000, 30000, 25000, 20000, 15000, 10000,
+        9000, 8000, 7000, 6000, 5000, 4000, 3000, 2000, 1000, Integer.MIN_VALUE
+    };
+    private static final Badge[] PIXEL_BADGES = {
+        pixelBadge("1M+"), pixelBadge("900k+"), pixelBadge("800k+"), pixelBadge("700k+"), pixelBadge("600k+"),
+        pixelBadge("500k+"), pixelBadge("400k+"), pixelBadge("300k+"), pixelBadge("200k+"), pixelBadge("100k+"),
+        pixelBadge("95k+"), pixelBadge("90k+"), pixelBadge("85k+"), pixelBadge("80k+"), pixelBadge("75k+"),
+        pixelBadge("70k+"), pixelBadge("65k+"), pixelBadge("60k+"), pixelBadge("55k+"), pixelBadge("50k+"),
+        pixelBadge("45k+"), pixelBadge("40k+"), pixelBadge("35k+"), pixelBadge("30k+"), pixelBadge("25k+"),
+        pixelBadge("20k+"), pixelBadge("15k+"), new Badge("10k+", "10k Pixels Placed", "text", null),
+        pixelBadge("9k+"), pixelBadge("8k+"), pixelBadge("7k+"), pixelBadge("6k+"), pixelBadge("5k+"),
+        pixelBadge("4k+"), pixelBadge("3k+"), pixelBadge("2k+"), pixelBadge("1k+"), pixelBadge("<1k")
+    };
 
     public User(int id, int stacked, String name, String login, Timestamp signup, long cooldownExpiry, List<Role> roles, int pixelCount, int pixelCountAllTime, Long banExpiryTime, boolean shadowBanned, boolean isPermaChatbanned, long chatbanExpiryTime, String chatbanReason, int chatNameColor, Integer displayedFaction, String discordName, Boolean factionBlocked) {
         this.id = id;
@@ -88,6 +121,9 @@ public class User {
             this.signup_time = user.signup_time;
             this.cooldownExpiry = user.cooldownExpiry;
             this.roles = roles;
+            this.permissions = null;
+            this.chatAuthor = null;
+            invalidateProfile();
             this.banExpiryTime = user.banExpiry;
             this.isPermaChatbanned = user.isPermaChatbanned;
             this.chatbanExpiryTime = user.chatbanExpiry;
@@ -100,6 +136,20 @@ public class User {
         }
     }
 
+    /**
+     * @return This user's <pre>/whoami</pre> response.
+     */
+    public CachedResponse getWhoamiResponse() {
+        String name = this.name;
+        CachedResponse response = whoamiResponse;
+        if (response == null || !name.equals(whoamiResponseName)) {
+            response = CachedResponse.json(App.getGson().toJson(new WhoAmI(name, id)));
+            whoamiResponse = response;
+            whoamiResponseName = name;
+        }
+        return response;
+    }
+
     public int getId() {
         return id;
     }
@@ -117,7 +167,7 @@ public class User {
     }
 
     public boolean undoWindowPassed() {
-        return lastPixelTime + App.getConfig().getDuration("undo.window", TimeUnit.MILLISECONDS) < System.currentTimeMillis();
+        return lastPixelTime + App.getConfigSnapshot().undoWindowMillis < System.currentTimeMillis();
     }
 
     public boolean canUndo() {
@@ -132,6 +182,8 @@ public class User {
     public void setLastPixelTime(boolean flagNotIdle) {
         lastPixelTime = System.currentTimeMillis();
         if (flagNotIdle) setIdled(false);
+        App.getServer().getIdleTracker().touch(this);
+        App.getServer().getStackScheduler().schedule(this);
     }
     public void setLastPixelTime() {
         setLastPixelTime(false);
@@ -167,7 +219,7 @@ public class User {
             return false;
         }
 
-        int captchaThreshold = App.getConfig().getInt("captcha.threshold");
+        int captchaThreshold = App.getConfigSnapshot().captchaThreshold;
         if (Math.random() < (1f / captchaThreshold)) {
             flaggedForCaptcha = true;
         }
@@ -224,9 +276,12 @@ public class User {
     }
 
     public boolean hasPermission(String node) {
-        return Stream.of(Role.getGuestRoles(), Role.getDefaultRoles(), roles)
-                .flatMap(Collection::stream)
-                .anyMatch(role -> role.hasPermission(node));
+        Role.Permissions permissions = this.permissions;
+        if (permissions == null || permissions.isStale()) {
+            permissions = Role.effectivePermissions(roles);
+            this.permissions = permissions;
+        }
+        return permissions.has(node);
     }
 
     public String getLogin() {
@@ -245,6 +300,9 @@ public class User {
 
     public void setRoles(List<Role> rolesToSet, boolean skipSendUserData) {
         this.roles = rolesToSet;
+        this.permissions = null;
+        invalidateChatAuthor();
+        invalidateProfile();
         App.getDatabase().setUserRoles(this.getId(), roles);
         if (!skipSendUserData) sendUserData();
     }
@@ -330,88 +388,57 @@ public class User {
         getRoles().forEach(role -> toReturn.addAll(role.getBadges()));
 
         if (!App.getSnipMode()) {
-            if (this.pixelCountAllTime >= 1000000) {
-                toReturn.add(new Badge("1M+", "1M+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 900000) {
-                toReturn.add(new Badge("900k+", "900k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 800000) {
-                toReturn.add(new Badge("800k+", "800k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 700000) {
-                toReturn.add(new Badge("700k+", "700k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 600000) {
-                toReturn.add(new Badge("600k+", "600k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 500000) {
-                toReturn.add(new Badge("500k+", "500k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 400000) {
-                toReturn.add(new Badge("400k+", "400k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 300000) {
-                toReturn.add(new Badge("300k+", "300k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 200000) {
-                toReturn.add(new Badge("200k+", "200k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 100000) {
-                toReturn.add(new Badge("100k+", "100k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 95000) {
-                toReturn.add(new Badge("95k+", "95k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 90000) {
-                toReturn.add(new Badge("90k+", "90k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 85000) {
-                toReturn.add(new Badge("85k+", "85k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 80000) {
-                toReturn.add(new Badge("80k+", "80k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 75000) {
-                toReturn.add(new Badge("75k+", "75k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 70000) {
-                toReturn.add(new Badge("70k+", "70k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 65000) {
-                toReturn.add(new Badge("65k+", "65k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 60000) {
-                toReturn.add(new Badge("60k+", "60k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 55000) {
-                toReturn.add(new Badge("55k+", "55k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 50000) {
-                toReturn.add(new Badge("50k+", "50k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 45000) {
-                toReturn.add(new Badge("45k+", "45k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 40000) {
-                toReturn.add(new Badge("40k+", "40k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 35000) {
-                toReturn.add(new Badge("35k+", "35k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 30000) {
-                toReturn.add(new Badge("30k+", "30k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 25000) {
-                toReturn.add(new Badge("25k+", "25k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 20000) {
-                toReturn.add(new Badge("20k+", "20k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 15000) {
-                toReturn.add(new Badge("15k+", "15k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 10000) {
-                toReturn.add(new Badge("10k+", "10k Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 9000) {
-                toReturn.add(new Badge("9k+", "9k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 8000) {
-                toReturn.add(new Badge("8k+", "8k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 7000) {
-                toReturn.add(new Badge("7k+", "7k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 6000) {
-                toReturn.add(new Badge("6k+", "6k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 5000) {
-                toReturn.add(new Badge("5k+", "5k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 4000) {
-                toReturn.add(new Badge("4k+", "4k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 3000) {
-                toReturn.add(new Badge("3k+", "3k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 2000) {
-                toReturn.add(new Badge("2k+", "2k+ Pixels Placed", "text", null));
-            } else if (this.pixelCountAllTime >= 1000) {
-                toReturn.add(new Badge("1k+", "1k+ Pixels Placed", "text", null));
-            } else {
-                toReturn.add(new Badge("<1k", "<1k Pixels Placed", "text", null));
-            }
+            toReturn.add(PIXEL_BADGES[pixelBadgeIndex(this.pixelCountAllTime)]);
         }
 
         return toReturn;
     }
 
+    private static Badge pixelBadge(String name) {
+        return new Badge(name, name + " Pixels Placed", "text", null);
+    }
+
+    /**
+     * @param pixelCountAllTime The all-time pixel count.
+     * @return The index into {@link #PIXEL_BADGES} of the badge for the pixel count.
+     */
+    private static int pixelBadgeIndex(int pixelCountAllTime) {
+        int i = 0;
+        while (pixelCountAllTime < PIXEL_BADGE_THRESHOLDS[i]) i++;
+        return i;
+    }
+
+    /**
+     * @return The user's chat author details, rebuilt only after something they depend on has changed.
+     */
+    public ChatAuthor getChatAuthor() {
+        ChatAuthor chatAuthor = this.chatAuthor;
+        long factionVersion = FactionManager.getInstance().getVersion();
+        boolean snipMode = App.getSnipMode();
+        if (chatAuthor == null || chatAuthorFactionVersion != factionVersion || chatAuthorSnipMode != snipMode) {
+            chatAuthorFactionVersion = factionVersion;
+            chatAuthorSnipMode = snipMode;
+            chatAuthor = new ChatAuthor(name, getChatBadges(), getChatNameClasses(), chatNameColor, fetchDisplayedFaction());
+            this.chatAuthor = chatAuthor;
+        }
+        return chatAuthor;
+    }
+
+    private void invalidateChatAuthor() {
+        this.chatAuthor = null;
+    }
+
+    /**
+     * @return A number that changes whenever something shown on the user's public profile changes.
+     */
+    public int getProfileVersion() {
+        return profileVersion.get();
+    }
+
+    private void invalidateProfile() {
+        profileVersion.incrementAndGet();
+    }
+
     public boolean isBanned() {
         return banExpiryTime != null && (banExpiryTime == 0 || banExpiryTime > System.currentTimeMillis());
     }
@@ -444,12 +471,13 @@ public class User {
         } else {
             this.banExpiryTime = (timeFromNowSeconds*1000) + System.currentTimeMillis();
         }
+        invalidateProfile();
         App.getDatabase().updateBan(this, timeFromNowSeconds);
         if (!skipSendUserData) sendUserData();
     }
 
     public boolean canChat() {
-        if (App.getConfig().getBoolean("chat.canvasBanRespected") && isBanned()) {
+        if (App.getConfigSnapshot().chatCanvasBanRespected && isBanned()) {
             return false;
         }
         return !isChatbanned();
@@ -485,6 +513,7 @@ public class User {
             }
         }
 
+        invalidateProfile();
         App.getDatabase().updateChatBanPerma(getId(), isPermaChatbanned);
         App.getDatabase().updateChatBanExpiry(getId(), chatbanExpiryTime);
 
@@ -564,6 +593,7 @@ public class User {
     public void setStacked(int stacked) {
         this.stacked = stacked;
         App.getDatabase().updateUserStacked(this, stacked);
+        App.getServer().getStackScheduler().schedule(this);
     }
 
     public long getInitialAuthTime() {
@@ -572,6 +602,7 @@ public class User {
 
     public void setInitialAuthTime(long initialAuthTime) {
         this.initialAuthTime = initialAuthTime;
+        App.getServer().getIdleTracker().touch(this);
     }
 
     public boolean lastPlaceWasStack() {
@@ -586,45 +617,69 @@ public class User {
         tickStack(true);
     }
 
-    private int addToN(int n) {
-        int s = 0;
-        for (int i = 1; i <= n; i++) {
-            s += i;
-        }
-        return s;
+    public void tickStack(boolean sendRes) {
+        tickStack(sendRes, App.getServer().getPacketHandler().getCooldown());
     }
 
-    public void tickStack(boolean sendRes) {
-        int multiplier = App.getStackMultiplier();
-        int maxStacked = App.getStackMaxStacked();
+    /**
+     * @param curCD The current cooldown in seconds.
+     * @return The time the stack timer counts from, or 0 if it hasn't started.
+     */
+    private long getStackReferenceTime(int curCD) {
+        return getLastPixelTime() == 0 ? (this.cooldownExpiry == 0 ? getInitialAuthTime() : (this.cooldownExpiry - (curCD*1000))) : getLastPixelTime();
+    }
 
-        int curCD = App.getServer().getPacketHandler().getCooldown();
+    /**
+     * @param curCD The current cooldown in seconds.
+     * @param stacked The current stack size.
+     * @return The seconds after the reference time at which the next stacked pixel is earned.
+     */
+    private static long getStackTarget(int curCD, int stacked) {
+        // 2 + n + (1 + 2 + ... + n) cooldowns
+        return (long) (curCD * App.getStackMultiplier()) * (2 + stacked + stacked * (stacked + 1) / 2);
+    }
 
-        long lastPixelTime = getLastPixelTime() == 0 ? (this.cooldownExpiry == 0 ? getInitialAuthTime() : (this.cooldownExpiry - (curCD*1000))) : getLastPixelTime();
+    /**
+     * @param curCD The current cooldown in seconds.
+     * @return When the next stacked pixel is earned, or -1 if the stack is full or its timer hasn't started.
+     */
+    public long getNextStackTime(int curCD) {
+        if (getStacked() >= App.getStackMaxStacked()) return -1;
+        long lastPixelTime = getStackReferenceTime(curCD);
+        if (lastPixelTime == 0) return -1;
+        return lastPixelTime + getStackTarget(curCD, getStacked()) * 1000;
+    }
+
+    /**
+     * Grants every stacked pixel earned since the last pixel placement.
+     * @param sendRes Whether to notify the user of each gain.
+     * @param curCD The current cooldown in seconds.
+     */
+    public void tickStack(boolean sendRes, int curCD) {
+        int maxStacked = App.getStackMaxStacked();
+
+        long lastPixelTime = getStackReferenceTime(curCD);
         if (lastPixelTime == 0) {
             return;
         }
         long delta = (System.currentTimeMillis()-lastPixelTime) / 1000;
-        //App.getLogger().debug("=======");
-        while(true) {
-            int target = (curCD * multiplier) * (2 + getStacked() + addToN(getStacked()));
-            //App.getLogger().debug(delta);
-            //App.getLogger().debug(" : ");
-            //App.getLogger().debug(target);
-            if (delta >= target && getStacked() < maxStacked) {
-                setStacked(getStacked() + 1);
-                if (sendRes) {
-                    App.getServer().getPacketHandler().sendAvailablePixels(this, "stackGain");
-                }
-                continue;
+        int stacked = getStacked();
+        int gained = 0;
+        while (stacked + gained < maxStacked && delta >= getStackTarget(curCD, stacked + gained)) {
+            gained++;
+        }
+        if (gained == 0) return;
+        setStacked(stacked + gained);
+        if (sendRes) {
+            for (int i = 0; i < gained; i++) {
+                App.getServer().getPacketHandler().sendAvailablePixels(this, "stackGain");
             }
-            return;
         }
     }
 
     private void modifyPixelCounts(int amount) {
-        boolean increaseCurrent = App.getConfig().getBoolean("pixelCounts.countTowardsCurrent");
-        boolean increaseAllTime = App.getConfig().getBoolean("pixelCounts.countTowardsAlltime");
+        boolean increaseCurrent = App.getConfigSnapshot().pixelCountsTowardsCurrent;
+        boolean increaseAllTime = App.getConfigSnapshot().pixelCountsTowardsAlltime;
 
         if (!increaseCurrent && !increaseAllTime) {
             // Don't waste resources updating nothing.
@@ -632,8 +687,10 @@ public class User {
         }
 
         DBUserPixelCounts newCounts = App.getDatabase().modifyPixelCounts(this.id, amount, increaseCurrent, increaseAllTime);
+        boolean badgeChanged = pixelBadgeIndex(newCounts.pixelCountAllTime) != pixelBadgeIndex(this.pixelCountAllTime);
         this.pixelCount = newCounts.pixelCount;
         this.pixelCountAllTime = newCounts.pixelCountAllTime;
+        if (badgeChanged) invalidateChatAuthor();
     }
 
     public void increasePixelCounts() {
@@ -678,9 +735,11 @@ public class User {
         if (!ignoreRequestedStatus && !isRenameRequested) return false;
         if (App.getDatabase().getUserByName(newName).isPresent()) return false;
         try {
+            String oldName = name;
             App.getDatabase().updateUsername(id, newName);
-            App.getDatabase().insertAdminLog(id, String.format("User %s (%d) has just changed their name to %s", name, id, newName));
-            App.getUserManager().reload();
+            App.getDatabase().insertAdminLog(id, String.format("User %s (%d) has just changed their name to %s", oldName, id, newName));
+            reloadFromDatabase();
+            App.getUserManager().renamed(this, oldName);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -694,6 +753,7 @@ public class User {
 
     public void setDiscordName(String discordName) {
         this.discordName = discordName;
+        invalidateProfile();
         App.getDatabase().setDiscordName(id, discordName);
     }
 
@@ -756,6 +816,7 @@ public class User {
 
     public void setChatNameColor(int colorIndex, boolean callDB, boolean broadcast) {
         this.chatNameColor = colorIndex;
+        invalidateChatAuthor();
         if (callDB) {
             App.getDatabase().setChatNameColor(id, colorIndex);
         }
@@ -828,6 +889,10 @@ public class User {
     }
 
     public void setIdled(boolean idled) {
+        App.getServer().getIdleTracker().setIdled(this, idled);
+    }
+
+    void setIdledState(boolean idled) {
         isIdled = idled;
     }
 
@@ -850,6 +915,8 @@ public class User {
     }
     public void setDisplayedFaction(Integer displayedFaction, boolean hitDB, boolean broadcast) {
         this.displayedFaction = displayedFaction;
+        invalidateChatAuthor();
+        invalidateProfile();
         if (hitDB) {
             App.getDatabase().setDisplayedFactionForUID(id, displayedFaction);
         }
@@ -0,0 +1,212 @@
+package space.pxls.user;
+
+import space.pxls.App;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of {@link User}s with secondary indexes by name, login and session token.<br>
+ * There is at most one cached {@link User} per ID, so every lookup path returns the same instance.
+ *  Users with live websocket connections are kept outside of the LRU order and are never evicted;
+ *  when only those are left the cache is allowed to grow past its maximum size.
+ */
+public class UserCache {
+    private final int maxSize;
+    // access-ordered, so iteration starts at the least recently used user
+    private final LinkedHashMap<Integer, User> byID = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, User> connected = new HashMap<>();
+    private final Map<String, Integer> byName = new HashMap<>();
+    private final Map<String, Integer> byLogin = new HashMap<>();
+    private final Map<String, Integer> byToken = new HashMap<>();
+    private final Map<Integer, Set<String>> tokensByID = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public UserCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    private User count(User user) {
+        if (user == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return user;
+    }
+
+    private User get(int id) {
+        User user = byID.get(id);
+        return user != null ? user : connected.get(id);
+    }
+
+    private User byIndex(Map<String, Integer> index, String key) {
+        Integer id = key == null ? null : index.get(key);
+        return count(id == null ? null : get(id));
+    }
+
+    public synchronized User getByID(int id) {
+        return count(get(id));
+    }
+
+    public synchronized User getByName(String name) {
+        return byIndex(byName, name);
+    }
+
+    public synchronized User getByLogin(String login) {
+        return byIndex(byLogin, login);
+    }
+
+    public synchronized User getByToken(String token) {
+        return byIndex(byToken, token);
+    }
+
+    /**
+     * Caches a user, unless a user with the same ID is already cached.
+     * @param user The user to cache.
+     * @return The cached user, which is the existing one if there was one.
+     */
+    public synchronized User put(User user) {
+        User existing = get(user.getId());
+        if (existing != null) return existing;
+        byID.put(user.getId(), user);
+        byName.put(user.getName(), user.getId());
+        byLogin.put(user.getLogin(), user.getId());
+        evict(user);
+        return user;
+    }
+
+    /**
+     * Associates a session token with a user, caching the user if needed.
+     * @param token The session token.
+     * @param user The user.
+     * @return The cached user.
+     */
+    public synchronized User putToken(String token, User user) {
+        User cached = put(user);
+        byToken.put(token, cached.getId());
+        tokensByID.computeIfAbsent(cached.getId(), k -> new HashSet<>()).add(token);
+        return cached;
+    }
+
+    public synchronized void removeToken(String token) {
+        Integer id = byToken.remove(token);
+        if (id == null) return;
+        Set<String> tokens = tokensByID.get(id);
+        if (tokens != null) {
+            tokens.remove(token);
+            if (tokens.isEmpty()) tokensByID.remove(id);
+        }
+    }
+
+    /**
+     * Updates the name index after a user has been renamed.
+     * @param user The renamed user.
+     * @param oldName The user's previous name.
+     */
+    public synchronized void rename(User user, String oldName) {
+        if (get(user.getId()) != user) return;
+        byName.remove(oldName, user.getId());
+        byName.put(user.getName(), user.getId());
+    }
+
+    /**
+     * Exempts a user from eviction after a websocket connection has been added to it.
+     * @param user The user.
+     */
+    public synchronized void connected(User user) {
+        User cached = get(user.getId());
+        if (cached == null) {
+            // evicted between its lookup and the connection, cache it again so it stays the only instance
+            connected.put(user.getId(), user);
+            byName.put(user.getName(), user.getId());
+            byLogin.put(user.getLogin(), user.getId());
+        } else if (cached != user) {
+            App.getLogger().warn("User {} connected with an instance other than the cached one, its state is split", user.getId());
+        } else if (byID.remove(user.getId(), user)) {
+            connected.put(user.getId(), user);
+        }
+    }
+
+    /**
+     * Returns a user to the LRU order once its last websocket connection has been removed.
+     * @param user The user.
+     */
+    public synchronized void disconnected(User user) {
+        if (!user.getConnections().isEmpty() || !connected.remove(user.getId(), user)) return;
+        byID.put(user.getId(), user);
+        evict(user);
+    }
+
+    private void evict(User added) {
+        // connected users aren't in byID, so every user but the one just added can be evicted
+        Iterator<User> it = byID.values().iterator();
+        while (size() > maxSize && it.hasNext()) {
+            User user = it.next();
+            // the user that was just added is about to be used by the caller
+            if (user == added) continue;
+            it.remove();
+            byName.remove(user.getName(), user.getId());
+            byLogin.remove(user.getLogin(), user.getId());
+            Set<String> tokens = tokensByID.remove(user.getId());
+            if (tokens != null) tokens.forEach(byToken::remove);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return A snapshot of the cached users.
+     */
+    public synchronized List<User> values() {
+        List<User> values = new ArrayList<>(byID.values());
+        values.addAll(connected.values());
+        return values;
+    }
+
+    /**
+     * @return A snapshot of the cached session tokens and their users.
+     */
+    public synchronized Map<String, User> tokens() {
+        Map<String, User> tokens = new HashMap<>();
+        byToken.forEach((token, id) -> tokens.put(token, get(id)));
+        return tokens;
+    }
+
+    public synchronized int size() {
+        return byID.size() + connected.size();
+    }
+
+    public synchronized int tokenCount() {
+        return byToken.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return String.format("%d/%d users, %d tokens, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+            size(), maxSize, tokenCount(), hits, getMisses(), total == 0 ? 0d : hits * 100d / total, getEvictions());
+    }
+}
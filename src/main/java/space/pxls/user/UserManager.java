@@ -10,10 +10,9 @@ import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class UserManager {
-    private Map<String, User> usersByToken = new ConcurrentHashMap<>();
     private Map<String, String> userSignupTokens = new ConcurrentHashMap<>();
 
-    private Map<Integer, User> userCache = new ConcurrentHashMap<>();
+    private final UserCache userCache = new UserCache(App.getConfig().getInt("userCacheSize"));
 
     public UserManager() {
 
@@ -29,17 +28,17 @@ public class UserManager {
     }
 
     private void addUserToken(String token, User user) {
-        usersByToken.put(token, user);
+        userCache.putToken(token, user);
         App.getDatabase().createSession(user.getId(), token);
     }
 
     private void removeUserToken(String token) {
-        usersByToken.remove(token);
+        userCache.removeToken(token);
         App.getDatabase().destroySession(token);
     }
 
     public User getByToken(String token) {
-        User u = usersByToken.get(token);
+        User u = userCache.getByToken(token);
         App.getDatabase().updateSession(token);
         if (u != null) {
             return u;
@@ -48,23 +47,25 @@ public class UserManager {
         if (u == null) {
             return null;
         }
-        usersByToken.put(token, u); // insert it in the hashmap for quicker access
-        return u;
+        return userCache.putToken(token, u); // index the token for quicker access
     }
 
     public User getByLogin(String login) {
-        return getByDB(App.getDatabase().getUserByLogin(login));
+        User u = userCache.getByLogin(login);
+        return u != null ? u : getByDB(App.getDatabase().getUserByLogin(login));
     }
 
     public User getByID(int uid) {
-        return getByDB(App.getDatabase().getUserByID(uid));
+        User u = userCache.getByID(uid);
+        return u != null ? u : getByDB(App.getDatabase().getUserByID(uid));
     }
 
     private User getByDB(Optional<DBUser> optionalUser) {
         if (!optionalUser.isPresent()) return null;
         DBUser user = optionalUser.get();
         List<Role> roles = App.getDatabase().getUserRoles(user.id);
-        return userCache.computeIfAbsent(user.id, (k) -> new User(user.id, user.stacked, user.username, user.login, user.signup_time, user.cooldownExpiry, roles, user.pixelCount, user.pixelCountAllTime, user.banExpiry, user.shadowBanned, user.isPermaChatbanned, user.chatbanExpiry, user.chatbanReason, user.chatNameColor, user.displayedFaction, user.discordName, user.factionBlocked));
+        // if another thread cached this user in the meantime, put() returns that instance instead
+        return userCache.put(new User(user.id, user.stacked, user.username, user.login, user.signup_time, user.cooldownExpiry, roles, user.pixelCount, user.pixelCountAllTime, user.banExpiry, user.shadowBanned, user.isPermaChatbanned, user.chatbanExpiry, user.chatbanReason, user.chatNameColor, user.displayedFaction, user.discordName, user.factionBlocked));
     }
 
     public String logIn(User user, String ip) {
@@ -98,14 +99,31 @@ public class UserManager {
     }
 
     public User getByName(String name) {
-        return getByDB(App.getDatabase().getUserByName(name));
+        User u = userCache.getByName(name);
+        return u != null ? u : getByDB(App.getDatabase().getUserByName(name));
+    }
+
+    /**
+     * Updates the cache after a user has been renamed.
+     * @param user The renamed user, already holding the new name.
+     * @param oldName The user's previous name.
+     */
+    public void renamed(User user, String oldName) {
+        userCache.rename(user, oldName);
     }
 
     public void logOut(String value) {
         removeUserToken(value);
     }
 
+    /**
+     * @return A snapshot of the cached session tokens and their users.
+     */
     public Map<String, User> getAllUsersByToken() {
-        return usersByToken;
+        return userCache.tokens();
+    }
+
+    public UserCache getUserCache() {
+        return userCache;
     }
 }
@@ -0,0 +1,138 @@
+package space.pxls.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive multi-needle matcher.<br>
+ * An Aho-Corasick automaton over a fixed set of needles: one pass over the text finds every occurrence of every
+ *  needle, however many needles there are. Characters are folded one at a time with
+ *  {@link Character#toLowerCase(char)}, so a match always covers the same characters in the original text.
+ */
+public class AhoCorasick {
+    private static final int ROOT = 0;
+
+    // per state: its outgoing characters (sorted) and the states they lead to
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    private final int[] fail;
+    // per state: the length of the longest needle ending in it, directly or through its fail chain, or 0
+    private final int[] matchLength;
+
+    /**
+     * @param needles The needles. Empty needles are ignored.
+     */
+    public AhoCorasick(Collection<String> needles) {
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        lengths.add(0);
+        for (String needle : needles) {
+            if (needle.isEmpty()) continue;
+            int state = ROOT;
+            for (int i = 0; i < needle.length(); i++) {
+                char c = Character.toLowerCase(needle.charAt(i));
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    lengths.add(0);
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            lengths.set(state, needle.length());
+        }
+
+        int states = trie.size();
+        edgeChars = new char[states][];
+        edgeTargets = new int[states][];
+        fail = new int[states];
+        matchLength = new int[states];
+        for (int state = 0; state < states; state++) {
+            TreeMap<Character, Integer> edges = trie.get(state);
+            edgeChars[state] = new char[edges.size()];
+            edgeTargets[state] = new int[edges.size()];
+            int i = 0;
+            for (var edge : edges.entrySet()) {
+                edgeChars[state][i] = edge.getKey();
+                edgeTargets[state][i] = edge.getValue();
+                i++;
+            }
+            matchLength[state] = lengths.get(state);
+        }
+
+        // breadth first, so every state's fail target is complete before its children need it
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : edgeTargets[ROOT]) {
+            fail[child] = ROOT;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < edgeChars[state].length; i++) {
+                int child = edgeTargets[state][i];
+                fail[child] = step(fail[state], edgeChars[state][i]);
+                matchLength[child] = Math.max(matchLength[child], matchLength[fail[child]]);
+                queue.add(child);
+            }
+        }
+    }
+
+    private int edge(int state, char c) {
+        int i = Arrays.binarySearch(edgeChars[state], c);
+        return i < 0 ? -1 : edgeTargets[state][i];
+    }
+
+    private int step(int state, char c) {
+        while (true) {
+            int next = edge(state, c);
+            if (next >= 0) return next;
+            if (state == ROOT) return ROOT;
+            state = fail[state];
+        }
+    }
+
+    /**
+     * @return Whether there are no needles.
+     */
+    public boolean isEmpty() {
+        return edgeChars[ROOT].length == 0;
+    }
+
+    /**
+     * @param text The text to search.
+     * @return Whether any needle occurs in the text.
+     */
+    public boolean containsAny(CharSequence text) {
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, Character.toLowerCase(text.charAt(i)));
+            if (matchLength[state] > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param text The text to search.
+     * @return Which characters of the text are part of a needle occurrence, or null if none are.
+     */
+    public boolean[] findCovered(CharSequence text) {
+        boolean[] covered = null;
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, Character.toLowerCase(text.charAt(i)));
+            int length = matchLength[state];
+            if (length == 0) continue;
+            if (covered == null) covered = new boolean[text.length()];
+            // shorter needles ending here lie within the longest one
+            Arrays.fill(covered, i - length + 1, i + 1, true);
+        }
+        return covered;
+    }
+}
@@ -22,7 +22,7 @@ public class AuthReader implements HttpHandler {
 
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-        if (!App.getConfig().getBoolean("oauth.useIp")) {
+        if (!App.getConfigSnapshot().useIp) {
             Cookie header = exchange.getRequestCookies().get("pxls-token");
             if (header != null) {
                 User user = App.getUserManager().getByToken(header.getValue());
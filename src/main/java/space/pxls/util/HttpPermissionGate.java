@@ -7,11 +7,6 @@ import space.pxls.App;
 import space.pxls.user.Role;
 import space.pxls.user.User;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
 public class HttpPermissionGate implements HttpHandler {
     String permission;
     HttpHandler next;
@@ -24,15 +19,8 @@ public class HttpPermissionGate implements HttpHandler {
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
         User user = exchange.getAttachment(AuthReader.USER);
-        List<Role> roles = Role.getGuestRoles();
-        if (user != null) {
-            roles = Stream.of(user.getRoles(), Role.getGuestRoles(), Role.getDefaultRoles())
-                    .flatMap(Collection::stream)
-                    .collect(Collectors.toList());
-        }
-        // Sanity check--if the user has no roles, assume guest again.
-        if (roles.isEmpty()) roles = Role.getGuestRoles();
-        if (roles.stream().anyMatch(role -> role.hasPermission(permission))) {
+        boolean allowed = user == null ? Role.guestHasPermission(permission) : user.hasPermission(permission);
+        if (allowed) {
             next.handleRequest(exchange);
             return;
         }
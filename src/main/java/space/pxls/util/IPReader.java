@@ -5,11 +5,13 @@ import io.undertow.server.HttpServerExchange;
 import io.undertow.util.AttachmentKey;
 import io.undertow.util.HeaderValues;
 import space.pxls.App;
+import space.pxls.ConfigSnapshot;
 
-import java.util.List;
+import java.net.InetAddress;
 
 public class IPReader implements HttpHandler {
     public static AttachmentKey<String> IP = AttachmentKey.create(String.class);
+    public static AttachmentKey<InetAddress> ADDRESS = AttachmentKey.create(InetAddress.class);
 
     private HttpHandler next;
 
@@ -20,19 +22,25 @@ public class IPReader implements HttpHandler {
 
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-        String addr = exchange.getSourceAddress().getAddress().getHostAddress();
-
-        List<String> locals = App.getConfig().getStringList("server.proxy.localhosts");
-        for (String headerName : App.getConfig().getStringList("server.proxy.headers")) {
-            if (locals.contains(addr)) {
-                HeaderValues header = exchange.getRequestHeaders().get(headerName);
-                if (header != null && !header.isEmpty()) {
-                    addr = header.element();
-                }
+        InetAddress addr = exchange.getSourceAddress().getAddress();
+
+        ConfigSnapshot config = App.getConfigSnapshot();
+        TrustedProxies proxies = config.trustedProxies;
+        for (String headerName : config.proxyHeaders) {
+            if (!proxies.contains(addr)) break;
+            HeaderValues header = exchange.getRequestHeaders().get(headerName);
+            if (header == null) continue;
+            // repeated headers form one chain, the last one written by the nearest proxy
+            for (int i = header.size() - 1; i >= 0; i--) {
+                InetAddress forwarded = proxies.resolveForwarded(header.get(i));
+                if (forwarded == null) break;
+                addr = forwarded;
+                if (!proxies.contains(addr)) break;
             }
         }
 
-        exchange.putAttachment(IP, addr);
+        exchange.putAttachment(ADDRESS, addr);
+        exchange.putAttachment(IP, addr.getHostAddress());
         next.handleRequest(exchange);
     }
 }
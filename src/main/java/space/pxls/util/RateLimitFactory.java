@@ -1,11 +1,27 @@
 package space.pxls.util;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Per-identifier rate limits, one limiter per bucket type.<br>
+ * Each limiter is a GCRA (generic cell rate algorithm) token bucket: a bucket configured for <pre>maxRequests</pre>
+ *  per <pre>resetSeconds</pre> allows a burst of <pre>maxRequests</pre>, then refills one request every
+ *  <pre>resetSeconds / maxRequests</pre>. The whole state of an identifier is its theoretical arrival time in a
+ *  single {@link AtomicLong}, updated with compare-and-set. Identifiers whose bucket is full again carry no state
+ *  and are dropped by {@link #evictIdle()}.
+ */
 public class RateLimitFactory {
-    private Map<String, Map<String, RequestBucket>> bucketMap = new ConcurrentHashMap<>();
-    private Map<String, BucketConfig> bucketConfigs = new ConcurrentHashMap<>();
+    // rough per-identifier footprint: map node, AtomicLong and a short identifier string
+    private static final int BYTES_PER_KEY = 120;
+
+    private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
 
     private static RateLimitFactory _instance;
     public static RateLimitFactory getInstance() {
@@ -17,7 +33,7 @@ public class RateLimitFactory {
         RateLimitFactory.registerBucketHolder(bucketType.getSimpleName(), bucketConfig);
     }
     public static void registerBucketHolder(String bucketType, BucketConfig bucketConfig) {
-        getInstance().bucketConfigs.put(bucketType, bucketConfig);
+        getInstance().limiters.computeIfAbsent(bucketType, Limiter::new).setConfig(bucketConfig);
     }
 
     public static int getTimeRemaining(Class bucketType, String identifier) {
@@ -29,21 +45,44 @@ public class RateLimitFactory {
     public static int getTimeRemaining(String bucketType, String identifier) {
         return RateLimitFactory.getTimeRemaining(bucketType, identifier, true);
     }
+
+    /**
+     * @param bucketType The bucket type.
+     * @param identifier The rate limited identifier, e.g. an IP or user ID.
+     * @param increaseBucket Whether to count this as a request. If false, the bucket is only inspected.
+     * @return 0 if the request is allowed, otherwise the number of seconds until it would be.
+     */
     public static int getTimeRemaining(String bucketType, String identifier, boolean increaseBucket) {
-        RateLimitFactory instance = getInstance();
-        BucketConfig bucketConfig = instance.bucketConfigs.computeIfAbsent(bucketType, k -> {
-            return new BucketConfig(60, 10);
-        });
-        RequestBucket bucket = getInstance().bucketMap.computeIfAbsent(bucketType, k -> new ConcurrentHashMap<>()).compute(identifier, (key, old) -> {
-            if (old == null) return new RequestBucket(System.currentTimeMillis(), 0);
-            if (old.startTime + bucketConfig.resetSeconds * 1000 < System.currentTimeMillis())
-                return new RequestBucket(System.currentTimeMillis(), 0);
-            return old;
+        Limiter limiter = getInstance().limiters.computeIfAbsent(bucketType, k -> {
+            Limiter defaultLimiter = new Limiter(k);
+            defaultLimiter.setConfig(new BucketConfig(60, 10));
+            return defaultLimiter;
         });
+        long remainingNanos = limiter.acquire(identifier, increaseBucket);
+        return remainingNanos <= 0 ? 0 : (int) Math.ceil(remainingNanos / 1e9);
+    }
+
+    /**
+     * Drops the state of every identifier whose bucket has refilled completely.
+     */
+    public static void evictIdle() {
+        getInstance().limiters.values().forEach(Limiter::evictIdle);
+    }
+
+    /**
+     * @return The limiters, sorted by bucket type.
+     */
+    public static List<Limiter> getLimiters() {
+        List<Limiter> list = new ArrayList<>(getInstance().limiters.values());
+        list.sort(Comparator.comparing(Limiter::getBucketType));
+        return list;
+    }
 
-        int toRet = bucket.count >= bucketConfig.maxRequests ? (int) Math.ceil(((bucket.startTime + bucketConfig.resetSeconds * 1000) - System.currentTimeMillis()) / 1000f) : 0;
-        if (increaseBucket) bucket.count++;
-        return toRet;
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%-24s %12s %8s %10s %12s %12s %10s", "bucket", "limit", "keys", "~KiB", "allowed", "rejected", "evicted"));
+        for (Limiter limiter : getLimiters()) sb.append(System.lineSeparator()).append(limiter);
+        return sb.toString();
     }
 
     public static class BucketConfig {
@@ -61,18 +100,99 @@ public class RateLimitFactory {
         }
     }
 
-    public static class RequestBucket {
-        public long startTime;
-        public int count;
+    public static class Limiter {
+        private final String bucketType;
+        private final Map<String, AtomicLong> arrivals = new ConcurrentHashMap<>();
+        private volatile BucketConfig config;
+        // time between two requests at the sustained rate, and how far ahead of it a burst may get
+        private volatile long emissionNanos;
+        private volatile long toleranceNanos;
+
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder evicted = new LongAdder();
+
+        private Limiter(String bucketType) {
+            this.bucketType = bucketType;
+        }
+
+        private void setConfig(BucketConfig config) {
+            int maxRequests = Math.max(1, config.maxRequests);
+            long emission = TimeUnit.SECONDS.toNanos(Math.max(0, config.resetSeconds)) / maxRequests;
+            this.emissionNanos = emission;
+            this.toleranceNanos = emission * (maxRequests - 1);
+            this.config = config;
+        }
+
+        /**
+         * @return 0 or less if the request is allowed, otherwise the nanoseconds until it would be.
+         */
+        private long acquire(String identifier, boolean increaseBucket) {
+            long emission = emissionNanos;
+            long tolerance = toleranceNanos;
+            while (true) {
+                long now = System.nanoTime();
+                AtomicLong arrival = arrivals.get(identifier);
+                if (arrival == null) {
+                    if (!increaseBucket) return 0;
+                    arrival = arrivals.computeIfAbsent(identifier, k -> new AtomicLong(now));
+                }
+                long tat = arrival.get();
+                long base = Math.max(tat, now);
+                long remaining = base - tolerance - now;
+                if (remaining > 0) {
+                    if (increaseBucket) rejected.increment();
+                    return remaining;
+                }
+                if (!increaseBucket) return 0;
+                if (!arrival.compareAndSet(tat, base + emission)) continue;
+                // evictIdle may have dropped this entry in between, count the request again on the live one
+                if (arrivals.get(identifier) != arrival) continue;
+                allowed.increment();
+                return 0;
+            }
+        }
+
+        private void evictIdle() {
+            long now = System.nanoTime();
+            for (Map.Entry<String, AtomicLong> entry : arrivals.entrySet()) {
+                if (entry.getValue().get() - now <= 0 && arrivals.remove(entry.getKey(), entry.getValue())) {
+                    evicted.increment();
+                }
+            }
+        }
+
+        public String getBucketType() {
+            return bucketType;
+        }
+
+        public BucketConfig getConfig() {
+            return config;
+        }
+
+        public int size() {
+            return arrivals.size();
+        }
+
+        public long getApproximateBytes() {
+            return (long) size() * BYTES_PER_KEY;
+        }
+
+        public long getAllowed() {
+            return allowed.sum();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
 
-        public RequestBucket(long startTime, int count) {
-            this.startTime = startTime;
-            this.count = count;
+        public long getEvicted() {
+            return evicted.sum();
         }
 
         @Override
         public String toString() {
-            return String.format("%s / %s", startTime, count);
+            return String.format("%-24s %12s %8d %10.1f %12d %12d %10d", bucketType, config, size(), getApproximateBytes() / 1024d, getAllowed(), getRejected(), getEvicted());
         }
     }
 }
@@ -3,9 +3,8 @@ package space.pxls.util;
 import org.apache.logging.log4j.Level;
 
 import space.pxls.App;
-import java.util.TimerTask;
 
-public class SessionTimer extends TimerTask {
+public class SessionTimer implements Runnable {
 	public void run () {
 		App.getLogger().log(Level.INFO, "Clearing old sessions....");
 		App.getDatabase().clearOldSessions();
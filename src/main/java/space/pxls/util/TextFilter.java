@@ -2,19 +2,27 @@ package space.pxls.util;
 
 import space.pxls.App;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.StringJoiner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Chat and name filter.<br>
+ * The static needles are compiled into one {@link AhoCorasick} automaton and the regexes into a single
+ *  alternation, so filtering is one pass over the text for each, however many needles are configured. Both are
+ *  rebuilt together on {@link #reload()} and swapped in at once.
+ */
 public class TextFilter {
+    private static final String STATIC_MASK = "\\*";
+    private static final String REGEX_MASK = "\\*\\*\\*";
+
     private static TextFilter _instance;
     public static TextFilter getInstance() {
         if (_instance == null) _instance = new TextFilter();
         return _instance;
     }
-    private List<String> staticNeedle = new ArrayList<>();
-    private List<Pattern> regexNeedle = new ArrayList<>();
+    private volatile Compiled compiled = new Compiled(new AhoCorasick(List.of()), null);
 
     private TextFilter() {
         reload();
@@ -22,17 +30,22 @@ public class TextFilter {
 
     public void reload() {
         try {
-            staticNeedle = App.getConfig().getStringList("textFilter.static");
+            AhoCorasick staticNeedles = new AhoCorasick(App.getConfig().getStringList("textFilter.static"));
 
-            regexNeedle.clear();
+            // each regex is checked on its own first, so a broken one is reported and left out rather than breaking the rest
+            StringJoiner alternation = new StringJoiner("|");
             for (String s : App.getConfig().getStringList("textFilter.regex")) {
                 try {
-                    regexNeedle.add(Pattern.compile(s, Pattern.CASE_INSENSITIVE));
+                    Pattern.compile(s, Pattern.CASE_INSENSITIVE);
+                    alternation.add("(?:" + s + ")");
                 } catch (Exception e) {
                     e.printStackTrace();
                     System.err.println("Failed to parse textFilter regex: " + s);
                 }
             }
+            Pattern regexNeedles = alternation.length() == 0 ? null : Pattern.compile(alternation.toString(), Pattern.CASE_INSENSITIVE);
+
+            compiled = new Compiled(staticNeedles, regexNeedles);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Failed to reload TextFilter needles");
@@ -48,50 +61,58 @@ public class TextFilter {
         }
         haystack = haystack.trim();
         if (haystack.length() == 0) return false;
-        if (staticNeedle.size() == 0 && regexNeedle.size() == 0) return false;
-
-        for (String s : staticNeedle) {
-            if (s.toLowerCase().contains(haystack.toLowerCase())) return true;
-        }
-        for (Pattern p : regexNeedle) {
-            if (p.matcher(haystack).find()) return true;
-        }
-        return false;
+        Compiled compiled = this.compiled;
+        if (compiled.staticNeedles.containsAny(haystack)) return true;
+        return compiled.regexNeedles != null && compiled.regexNeedles.matcher(haystack).find();
     }
 
     public FilterResult filter(String haystack) { return filter(haystack, false);}
     public FilterResult filter(String haystack, boolean reloadHaystack) {
         if (reloadHaystack) reload();
+        Compiled compiled = this.compiled;
         String toReturn = haystack;
         boolean anyHits = false;
-        for (String needle : staticNeedle) {
-            if (toReturn.toLowerCase().contains(needle.toLowerCase())) {
-                //We want to have a case-insensitive search, but we still want to preserve the case of the original string. So, we have to loop with indexOf on lower case, then replace on the original until we're out of occurrances.
-                anyHits = true;
-                int index = toReturn.toLowerCase().lastIndexOf(needle.toLowerCase());
-                while (index > -1) {
-                    toReturn = toReturn.substring(0, index) + repeat("\\*", needle.length()) + toReturn.substring(index+needle.length());
-                    index = toReturn.toLowerCase().lastIndexOf(needle.toLowerCase(), index+1);
+
+        // static needles keep their length, one escaped asterisk per character
+        boolean[] covered = compiled.staticNeedles.findCovered(haystack);
+        if (covered != null) {
+            anyHits = true;
+            StringBuilder sb = new StringBuilder(haystack.length() + 16);
+            for (int i = 0; i < covered.length; i++) {
+                if (covered[i]) {
+                    sb.append(STATIC_MASK);
+                } else {
+                    sb.append(haystack.charAt(i));
                 }
             }
+            toReturn = sb.toString();
         }
-        for (Pattern p : regexNeedle) {
-            Matcher m = p.matcher(toReturn);
+
+        if (compiled.regexNeedles != null) {
+            Matcher m = compiled.regexNeedles.matcher(toReturn);
             if (m.find()) {
                 anyHits = true;
-                toReturn = m.replaceAll("\\\\*\\\\*\\\\*");
+                StringBuilder sb = new StringBuilder(toReturn.length() + 16);
+                int last = 0;
+                do {
+                    sb.append(toReturn, last, m.start()).append(REGEX_MASK);
+                    last = m.end();
+                } while (m.find());
+                toReturn = sb.append(toReturn, last, toReturn.length()).toString();
             }
         }
 
         return new FilterResult(anyHits, haystack, toReturn);
     }
 
-    private String repeat(String repeat, int times) {
-        StringBuilder out = new StringBuilder();
-        for (int i = 0; i < times; i++) {
-            out.append(repeat);
+    private static class Compiled {
+        private final AhoCorasick staticNeedles;
+        private final Pattern regexNeedles;
+
+        private Compiled(AhoCorasick staticNeedles, Pattern regexNeedles) {
+            this.staticNeedles = staticNeedles;
+            this.regexNeedles = regexNeedles;
         }
-        return out.toString();
     }
 
     public class FilterResult {
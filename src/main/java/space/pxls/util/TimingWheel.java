@@ -0,0 +1,92 @@
+package space.pxls.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel of keyed deadlines.<br>
+ * Each key has at most one deadline; scheduling it again replaces the previous one. Deadlines are hashed into
+ *  slots of <pre>tickMillis</pre> each, so scheduling and cancelling are O(1) and {@link #advance(long)} only
+ *  visits the slots that elapsed since the previous call. Keys fire up to one tick late. Deadlines further
+ *  away than one revolution stay in their slot until a later revolution reaches them.
+ * @param <K> The key type.
+ */
+public class TimingWheel<K> {
+    private final long tickMillis;
+    private final int mask;
+    private final List<Map<K, Long>> slots;
+    private final Map<K, Integer> slotOf = new HashMap<>();
+    private long currentTick;
+
+    /**
+     * @param tickMillis The slot width in milliseconds.
+     * @param size The number of slots, rounded up to a power of two.
+     * @param nowMillis The current time.
+     */
+    public TimingWheel(long tickMillis, int size, long nowMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        int slotCount = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.mask = slotCount - 1;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) slots.add(new HashMap<>());
+        this.currentTick = nowMillis / this.tickMillis;
+    }
+
+    /**
+     * Schedules a key, replacing its previous deadline if it had one.
+     * @param key The key.
+     * @param deadlineMillis When the key is due. Deadlines in the past are due on the next {@link #advance(long)}.
+     */
+    public synchronized void schedule(K key, long deadlineMillis) {
+        cancel(key);
+        // round up so a slot's keys are all due once its tick is reached, and never hash into the current
+        // slot since it has already been visited
+        long tick = Math.max(currentTick + 1, Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis));
+        int slot = (int) (tick & mask);
+        slots.get(slot).put(key, deadlineMillis);
+        slotOf.put(key, slot);
+    }
+
+    /**
+     * @param key The key.
+     * @return Whether the key had a deadline.
+     */
+    public synchronized boolean cancel(K key) {
+        Integer slot = slotOf.remove(key);
+        if (slot == null) return false;
+        slots.get(slot).remove(key);
+        return true;
+    }
+
+    /**
+     * Advances the wheel, removing and returning every key that is due.
+     * @param nowMillis The current time.
+     * @return The due keys.
+     */
+    public synchronized List<K> advance(long nowMillis) {
+        List<K> due = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+        // after a long pause, one full revolution covers every slot
+        long fromTick = Math.max(currentTick + 1, targetTick - mask);
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            Iterator<Map.Entry<K, Long>> it = slots.get((int) (tick & mask)).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<K, Long> entry = it.next();
+                if (entry.getValue() <= nowMillis) {
+                    it.remove();
+                    slotOf.remove(entry.getKey());
+                    due.add(entry.getKey());
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        return due;
+    }
+
+    public synchronized int size() {
+        return slotOf.size();
+    }
+}
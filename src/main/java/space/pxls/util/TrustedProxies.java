@@ -0,0 +1,156 @@
+package space.pxls.util;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable set of trusted proxy addresses and ranges (<pre>server.proxy.localhosts</pre>), IPv4 and IPv6, each
+ *  either a single address or CIDR notation such as <pre>10.0.0.0/8</pre> or <pre>fd00::/8</pre>.<br>
+ * Checking an IPv4 address doesn't allocate.
+ */
+public class TrustedProxies {
+    // IPv4 ranges as network and mask, IPv6 ranges as the address bytes and prefix length
+    private final int[] v4Networks;
+    private final int[] v4Masks;
+    private final byte[][] v6Networks;
+    private final int[] v6Prefixes;
+
+    /**
+     * @param entries The addresses and ranges. Entries that can't be parsed are reported and left out.
+     */
+    public TrustedProxies(List<String> entries) {
+        List<int[]> v4 = new ArrayList<>();
+        List<byte[]> v6 = new ArrayList<>();
+        List<Integer> v6Prefixes = new ArrayList<>();
+        for (String entry : entries) {
+            try {
+                int slash = entry.indexOf('/');
+                InetAddress address = parseLiteral(slash < 0 ? entry.trim() : entry.substring(0, slash).trim());
+                if (address == null) throw new IllegalArgumentException("not an IP address");
+                int bits = address.getAddress().length * 8;
+                int prefix = slash < 0 ? bits : Integer.parseInt(entry.substring(slash + 1).trim());
+                if (prefix < 0 || prefix > bits) throw new IllegalArgumentException("bad prefix length");
+                if (address instanceof Inet4Address) {
+                    int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+                    v4.add(new int[]{address.hashCode() & mask, mask});
+                } else {
+                    v6.add(address.getAddress());
+                    v6Prefixes.add(prefix);
+                }
+            } catch (Exception e) {
+                System.err.println("Ignoring invalid trusted proxy entry \"" + entry + "\": " + e.getMessage());
+            }
+        }
+        this.v4Networks = v4.stream().mapToInt(range -> range[0]).toArray();
+        this.v4Masks = v4.stream().mapToInt(range -> range[1]).toArray();
+        this.v6Networks = v6.toArray(new byte[0][]);
+        this.v6Prefixes = v6Prefixes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @param address The address.
+     * @return Whether the address is a trusted proxy.
+     */
+    public boolean contains(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // an Inet4Address' hash code is its address
+            int bits = address.hashCode();
+            for (int i = 0; i < v4Networks.length; i++) {
+                if ((bits & v4Masks[i]) == v4Networks[i]) return true;
+            }
+            return false;
+        }
+        if (v6Networks.length == 0) return false;
+        byte[] bytes = address.getAddress();
+        for (int i = 0; i < v6Networks.length; i++) {
+            if (bytes.length == v6Networks[i].length && prefixMatches(bytes, v6Networks[i], v6Prefixes[i])) return true;
+        }
+        return false;
+    }
+
+    private static boolean prefixMatches(byte[] address, byte[] network, int prefix) {
+        int fullBytes = prefix / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (address[i] != network[i]) return false;
+        }
+        int rest = prefix % 8;
+        if (rest == 0) return true;
+        int mask = 0xFF << (8 - rest);
+        return (address[fullBytes] & mask) == (network[fullBytes] & mask);
+    }
+
+    /**
+     * Resolves the client behind a chain of proxies from an X-Forwarded-For style header, a comma separated list
+     *  of addresses where each proxy appended the address it received the request from.
+     * @param header The header value.
+     * @return The rightmost address that isn't a trusted proxy, the leftmost address if all of them are, or null if
+     *  the rightmost entry isn't an IP address.
+     */
+    public InetAddress resolveForwarded(String header) {
+        InetAddress last = null;
+        int end = header.length();
+        while (end > 0) {
+            int start = header.lastIndexOf(',', end - 1) + 1;
+            InetAddress address = parseLiteral(stripPort(header.substring(start, end).trim()));
+            // a proxy we trust wrote this entry, so an unparseable one means the chain can't be trusted past here
+            if (address == null) return last;
+            if (!contains(address)) return address;
+            last = address;
+            end = start - 1;
+        }
+        return last;
+    }
+
+    private static String stripPort(String entry) {
+        if (entry.startsWith("[")) {
+            int close = entry.indexOf(']');
+            return close < 0 ? entry : entry.substring(1, close);
+        }
+        int colon = entry.indexOf(':');
+        // a single colon is an IPv4 address with a port, more are an IPv6 address
+        return colon >= 0 && colon == entry.lastIndexOf(':') ? entry.substring(0, colon) : entry;
+    }
+
+    /**
+     * Parses an IP address literal, never resolving host names.
+     * @param literal The literal.
+     * @return The address, or null if the literal isn't an IP address.
+     */
+    public static InetAddress parseLiteral(String literal) {
+        if (literal.isEmpty()) return null;
+        try {
+            if (literal.indexOf(':') >= 0) {
+                // with a colon in it, InetAddress parses it as an IPv6 literal or rejects it, without a lookup
+                for (int i = 0; i < literal.length(); i++) {
+                    char c = literal.charAt(i);
+                    if (Character.digit(c, 16) < 0 && c != ':' && c != '.') return null;
+                }
+                return InetAddress.getByName(literal);
+            }
+            byte[] octets = new byte[4];
+            int octet = 0;
+            int value = -1;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                if (c == '.') {
+                    if (value < 0 || octet == 3) return null;
+                    octets[octet++] = (byte) value;
+                    value = -1;
+                } else if (c >= '0' && c <= '9') {
+                    value = (value < 0 ? 0 : value * 10) + (c - '0');
+                    if (value > 255) return null;
+                } else {
+                    return null;
+                }
+            }
+            if (value < 0 || octet != 3) return null;
+            octets[3] = (byte) value;
+            return InetAddress.getByAddress(octets);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}